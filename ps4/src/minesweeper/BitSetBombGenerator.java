@@ -0,0 +1,97 @@
+/* Copyright (c) 2007-2016 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+package minesweeper;
+
+import java.util.BitSet;
+import java.util.SplittableRandom;
+
+/**
+ * Immutable BombGenerator placing the bombs given by a bit set, where the
+ * square (r, c) of a board with col columns is bit r * col + c.
+ */
+public class BitSetBombGenerator implements BombGenerator {
+
+    // Abstraction function:
+    //      Represents the bomb layout where (r, c) contains a bomb iff
+    //      bombs.get(r * col + c).
+    // Representation invariant:
+    //      col >= 0
+    // Safety from rep exposure:
+    //      bombs is private, copied from the client or made by exactCount,
+    //      and never returned.
+    // Thread safety:
+    //      Immutable, so it may be shared by the threads building boards.
+    private final BitSet bombs;
+    private final int col;
+
+    /**
+     * Make a generator of the bombs in a bit set.
+     *
+     * @param bombs bit r * col + c is set iff the square (r, c) contains a bomb
+     * @param col the number of columns of the board, requires col >= 0
+     */
+    public BitSetBombGenerator(BitSet bombs, int col) {
+        this(bombs, col, true);
+    }
+
+    // Make a generator of the bombs in a bit set, which is copied iff copy.
+    private BitSetBombGenerator(BitSet bombs, int col, boolean copy) {
+        if (col < 0)
+            throw new IllegalArgumentException("col " + col + " must not be negative");
+        this.bombs = copy ? (BitSet) bombs.clone() : bombs;
+        this.col = col;
+    }
+
+    /**
+     * Make a generator placing exactly a given number of bombs, uniformly at
+     * random among the squares of a board. The bombs are sampled with
+     * Floyd's algorithm, so placing k bombs takes O(min(k, row * col - k))
+     * time whatever the size of the board.
+     *
+     * @param row the number of rows of the board, requires row >= 0
+     * @param col the number of columns of the board, requires col >= 0
+     * @param count the number of bombs, requires 0 <= count <= row * col
+     * @param seed the same seed places the same bombs
+     * @return the generator
+     */
+    public static BitSetBombGenerator exactCount(int row, int col, int count, long seed) {
+        if (row < 0 || col < 0 || (long) row * col > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("bad board size " + row + "x" + col);
+        int squares = row * col;
+        if (count < 0 || count > squares)
+            throw new IllegalArgumentException("count " + count + " must be between 0 and " + squares);
+        // Sample the squares without bombs instead when there are fewer of them
+        boolean complement = count > squares / 2;
+        int sampled = complement ? squares - count : count;
+        SplittableRandom random = new SplittableRandom(seed);
+        BitSet chosen = new BitSet(squares);
+        for (int j = squares - sampled; j < squares; j++) {
+            int t = random.nextInt(j + 1);
+            chosen.set(chosen.get(t) ? j : t);
+        }
+        if (complement)
+            chosen.flip(0, squares);
+        return new BitSetBombGenerator(chosen, col, false);
+    }
+
+    /**
+     * @return the number of bombs.
+     */
+    public int bombCount() {
+        return bombs.cardinality();
+    }
+
+    @Override
+    public boolean generate(int r, int c) {
+        return bombs.get(r * col + c);
+    }
+
+    /**
+     * @return true, as the bits are only read.
+     */
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+}
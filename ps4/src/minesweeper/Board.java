@@ -3,37 +3,130 @@
  */
 package minesweeper;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.IntConsumer;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Checksum;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
 
 /**
- * TODO: Specification
- * Board is a grid of Cells
+ * Board is a grid of squares, each packed into a single byte.
+ * The grid is partitioned into square tiles, each with its own lock, so
+ * that moves on different tiles proceed in parallel.
  */
 public class Board {
-    
-    // TODO: Abstraction function, rep invariant, rep exposure, thread safety
+
     // Abstraction function:
-    //      Represents the game board whose grid is defined as a 2-dim
-    //      array of Cells.
+    //      Represents the game board of row x col squares, where the square
+    //      (r, c) is described by cells[r * col + c]:
+    //          bits 0-1: the state, one of UNTOUCHED_BITS, FLAGGED_BITS, DUG_BITS
+    //          bit 2:    set iff the square contains a bomb
+    //          bits 3-6: the number of its neighbours with a bomb
+    //      A dug square is displayed as ' ' or '1'-'8' according to the number
+    //      of its neighbours with a bomb.
+    //      frame is the displayed board as returned by toString, where the
+    //      square (r, c) is displayed at frame[2 * (r * col + c)];
+    //      version counts the mutations which changed the board, and snapshot
+    //      is the frame at snapshot.version;
+    //      for the last min(logHead, logSquares.length) changes, the square
+    //      logSquares[k % logSquares.length] was changed by the mutation which
+    //      moved the board to logVersions[k % logSquares.length];
+    //      every change after oldestDiffVersion is still in the log.
+    //      The square (r, c) belongs to the tile
+    //      (r / tileSize) * tileCols + c / tileSize, guarded by tileLocks[tile].
     // Representation invariant:
-    //      Each of the cell's state fall in {' ', 'F', '-', '1'-'8'};
-    //      the state of the cell corresponds to the number of its neighbour-with-bomb
+    //      cells.length == row * col;
+    //      the state bits of each square are never 0b11;
+    //      a dug square never contains a bomb;
+    //      the count bits of each square equal the number of its neighbours
+    //      whose bomb bit is set;
+    //      frame.length == max(2 * row * col - 1, 0), and frame displays cells;
+    //      snapshot.version <= version, and snapshot displays cells if they are equal;
+    //      the versions in the log increase from the oldest entry to the newest,
+    //      and oldestDiffVersion <= version;
+    //      tileSize > 0, and tileLocks has one lock per tile.
     // Safety from rep exposure:
-    //      Row, col and board are private and final;
+    //      Row, col, cells, the tile locks, frame and the log are private,
+    //      and a Mutation never leaves the thread using it;
+    //      Snapshot and Delta are immutable, and a Delta copies the changes
+    //      out of the log;
     //      only getRow and getCol which return the row and col are exposed
     //      to the client;
     //      therefore, the board is guaranteed to be safe from rep exposure.
     // Thread safety:
-    //      row and col are private and final, board is mutable but never exposed to
-    //      clients;
-    //      all the mutators are synchronized, and for one game there is only one board,
-    //      which implies no dead locks.
-    // TODO: Specify, test, and implement in problem 2
+    //      row, col and the tile geometry are private and final;
+    //      the state of a square is only accessed while holding the lock of
+    //      its tile, and its bomb bit and count only change while holding
+    //      the locks of all the tiles of its 3x3 neighbourhood, so they may
+    //      be read while holding the lock of any of those tiles;
+    //      frame, version and the log are only written while holding the
+    //      write lock of publishLock, which is taken after the tile locks,
+    //      and under which the listener hears of each move, in version order;
+    //      readers copy them under an optimistic read of publishLock which
+    //      they validate afterwards, so they never block the writers, and
+    //      only fall back to its read lock after OPTIMISTIC_ATTEMPTS failed
+    //      validations; version, snapshot and checkMode are volatile, and the
+    //      snapshot is immutable, so an up-to-date snapshot is read without
+    //      any lock; the contention counters are LongAdders;
+    //      the per-move scratch state is confined to a Mutation per thread.
+    //      A mutator acquires tiles in increasing order, except that it only
+    //      tries to lock a tile lower than one it holds; if that fails it
+    //      rolls back, releases its tiles, and retries with the larger set in
+    //      order. A batch locks the tiles of its moves in increasing order
+    //      for all of them, and its moves count as holding them; a move which
+    //      needs a lower tile outside them first has the batch release its
+    //      tiles and lock the whole board in order. So no thread ever waits
+    //      for a tile while holding a higher one, which implies no dead locks.
     private final int row;
     private final int col;
-    private final Cell[][] board;
+    private final byte[] cells;
+    private final int tileSize;
+    // Number of tiles per row of tiles.
+    private final int tileCols;
+    private final ReentrantLock[] tileLocks;
+    // Scratch state of the mutation in progress on each thread, trimmed
+    // after a large flood so that it stays small between mutations.
+    private final ThreadLocal<Mutation> mutations = ThreadLocal.withInitial(Mutation::new);
+    private volatile CheckMode checkMode = DEFAULT_CHECK_MODE;
+    // Guards frame, version and the log.
+    private final StampedLock publishLock = new StampedLock();
+    // The displayed board, patched in place by the mutators.
+    private final byte[] frame;
+    private volatile long version = 0;
+    // The last snapshot rendered, possibly older than version.
+    private volatile Snapshot snapshot = null;
+    // Ring buffer of the squares changed by recent mutations, see the
+    // abstraction function.
+    private final int[] logSquares;
+    private final long[] logVersions;
+    private long logHead = 0;
+    private long oldestDiffVersion = 0;
+    // Contention counters, see Contention.
+    private final LongAdder cachedReads = new LongAdder();
+    private final LongAdder optimisticReads = new LongAdder();
+    private final LongAdder failedOptimisticReads = new LongAdder();
+    private final LongAdder lockedReads = new LongAdder();
+    private final LongAdder writes = new LongAdder();
+    private final LongAdder contendedWrites = new LongAdder();
+    private final LongAdder contendedTileLocks = new LongAdder();
+    private final LongAdder retriedDigs = new LongAdder();
+    // Hears of every move which changed the board, or null.
+    private volatile MoveListener listener = null;
 
     public static final char FLAGGED = 'F';
     public static final char UNTOUCHED = '-';
@@ -42,259 +135,1134 @@ public class Board {
     public static final boolean BOMB = true;
     public static final boolean NOTBOMB = false;
 
+    /**
+     * How much of the rep invariant checkRep verifies after each mutation.
+     * The checks are assertions, so they only have effects when assertions
+     * are enabled.
+     */
+    public enum CheckMode {
+        /** Check nothing. */
+        OFF,
+        /** Check a random region of SAMPLE_SIZE x SAMPLE_SIZE squares. */
+        SAMPLED,
+        /** Check only the squares changed by the mutation. */
+        INCREMENTAL,
+        /** Check every square of the board. */
+        FULL
+    }
+
+    // Full checks when assertions are enabled (e.g. in tests), otherwise
+    // the mutators should not pay for checks which cannot fail.
+    private static final CheckMode DEFAULT_CHECK_MODE =
+            Board.class.desiredAssertionStatus() ? CheckMode.FULL : CheckMode.OFF;
+    // Side length of the region checked in CheckMode.SAMPLED.
+    private static final int SAMPLE_SIZE = 16;
+    // Bounds of the number of changes kept for diff.
+    private static final int MIN_LOG_CAPACITY = 64;
+    private static final int MAX_LOG_CAPACITY = 1 << 16;
+    // Optimistic reads tried before a reader takes the read lock.
+    private static final int OPTIMISTIC_ATTEMPTS = 3;
+    // Boards with at least this many squares are filled in parallel, in
+    // bands of about BAND_SQUARES squares, if their generator is thread-safe.
+    private static final int PARALLEL_THRESHOLD = 1 << 18;
+    private static final int BAND_SQUARES = 1 << 16;
+    // Longest scratch array kept by a thread between its mutations.
+    private static final int MAX_RETAINED_SCRATCH = 1 << 12;
+    // Most squares of a board, as the frame holds 2 bytes per square in one
+    // array; ChunkedBoard holds larger maps.
+    private static final int MAX_SQUARES = (Integer.MAX_VALUE - 8) / 2;
+    // Binary snapshot format, see save.
+    private static final int SNAPSHOT_MAGIC = 0x4D535742; // "MSWB"
+    private static final int SNAPSHOT_FORMAT = 1;
+    private static final int SNAPSHOT_COMPRESSED = 0b1;
+
+    /**
+     * An immutable view of the board as displayed to the players at a given
+     * version.
+     */
+    public static final class Snapshot {
+        private final long version;
+        private final String board;
+
+        private Snapshot(long version, String board) {
+            this.version = version;
+            this.board = board;
+        }
+
+        /** @return the version of the board this snapshot displays. */
+        public long getVersion() { return version; }
+
+        /** @return the board as returned by Board.toString() at getVersion(). */
+        @Override public String toString() { return board; }
+    }
+
+    /**
+     * An immutable list of the squares which changed between two versions of
+     * the board, together with their state at the later version.
+     */
+    public static final class Delta {
+        private final long fromVersion;
+        private final long toVersion;
+        private final int col;
+        private final int[] squares;
+        private final char[] states;
+
+        private Delta(long fromVersion, long toVersion, int col, int[] squares, char[] states) {
+            this.fromVersion = fromVersion;
+            this.toVersion = toVersion;
+            this.col = col;
+            this.squares = squares;
+            this.states = states;
+        }
+
+        /** @return the version the changes are relative to. */
+        public long getFromVersion() { return fromVersion; }
+
+        /** @return the version of the board after the changes. */
+        public long getToVersion() { return toVersion; }
+
+        /** @return the number of changed squares. */
+        public int size() { return squares.length; }
+
+        /**
+         * @param k index of a change, requires 0 <= k < size()
+         * @return the row of the k-th changed square.
+         */
+        public int getRow(int k) { return squares[k] / col; }
+
+        /**
+         * @param k index of a change, requires 0 <= k < size()
+         * @return the column of the k-th changed square.
+         */
+        public int getCol(int k) { return squares[k] % col; }
+
+        /**
+         * @param k index of a change, requires 0 <= k < size()
+         * @return the state of the k-th changed square at getToVersion(), as
+         *         displayed by Board.toString().
+         */
+        public char getState(int k) { return states[k]; }
+    }
+
+    /**
+     * A kind of move of a player.
+     */
+    public enum Move { DIG, FLAG, DEFLAG }
+
+    /**
+     * Hears of the moves which change a board, in the order of the versions
+     * they move it to. Called while the board is locked, so it must be quick
+     * and must not call the board back.
+     */
+    public interface MoveListener {
+        /**
+         * @param version the version of the board after the move.
+         * @param move the kind of move.
+         * @param r the row of the square moved on.
+         * @param c the column of the square moved on.
+         */
+        void moved(long version, Move move, int r, int c);
+    }
+
+    /**
+     * Scratch state of a mutation, reused by the mutations of one thread.
+     */
+    private static final class Mutation {
+        // Stack of the squares waiting to be sniffed; only used by dig.
+        private int[] pending = new int[0];
+        // Indices of the squares changed by the mutation, touched[0..touchedCount).
+        private int[] touched = new int[0];
+        private int touchedCount = 0;
+        // The tiles the mutation needs, held[0..heldCount), which are locked
+        // while it is in progress.
+        private int[] held = new int[0];
+        private int heldCount = 0;
+        // The highest tile held, or -1 if none.
+        private int maxHeld = -1;
+        // A tile which could not be locked in order, or -1 if none.
+        private int blocked = -1;
+        // The version the move published, or 0 if it changed nothing.
+        private long publishedVersion = 0;
+        // The move being made, on the square (r, c).
+        private Move move;
+        private int r;
+        private int c;
+        // The tiles locked by the batch in progress on the thread, which
+        // outlive its moves: batched[0..batchedCount) in increasing order,
+        // or every tile if wholeBoard.
+        private int[] batched = new int[0];
+        private int batchedCount = 0;
+        private boolean wholeBoard = false;
+
+        // Forget the previous mutation, and start the given move.
+        private void reset(Move move, int r, int c){
+            this.move = move;
+            this.r = r;
+            this.c = c;
+            publishedVersion = 0;
+            touchedCount = 0;
+            heldCount = 0;
+            maxHeld = -1;
+            blocked = -1;
+        }
+
+        // Drop the scratch arrays grown by a large flood, so that a thread
+        // which once dug a large area does not keep them for the board.
+        private void trim(){
+            if(pending.length > MAX_RETAINED_SCRATCH)
+                pending = new int[0];
+            if(touched.length > MAX_RETAINED_SCRATCH)
+                touched = new int[0];
+            if(held.length > MAX_RETAINED_SCRATCH)
+                held = new int[0];
+        }
+    }
+
+    /**
+     * An immutable record of how often the readers and the writers of a
+     * board have got in each other's way since it was made.
+     */
+    public static final class Contention {
+        private final long cachedReads;
+        private final long optimisticReads;
+        private final long failedOptimisticReads;
+        private final long lockedReads;
+        private final long writes;
+        private final long contendedWrites;
+        private final long contendedTileLocks;
+        private final long retriedDigs;
+
+        private Contention(long cachedReads, long optimisticReads, long failedOptimisticReads, long lockedReads,
+                           long writes, long contendedWrites, long contendedTileLocks, long retriedDigs) {
+            this.cachedReads = cachedReads;
+            this.optimisticReads = optimisticReads;
+            this.failedOptimisticReads = failedOptimisticReads;
+            this.lockedReads = lockedReads;
+            this.writes = writes;
+            this.contendedWrites = contendedWrites;
+            this.contendedTileLocks = contendedTileLocks;
+            this.retriedDigs = retriedDigs;
+        }
+
+        /** @return the number of snapshots served from the cache, without any lock. */
+        public long getCachedReads() { return cachedReads; }
+
+        /** @return the number of reads which completed under an optimistic read. */
+        public long getOptimisticReads() { return optimisticReads; }
+
+        /** @return the number of optimistic reads invalidated by a concurrent write. */
+        public long getFailedOptimisticReads() { return failedOptimisticReads; }
+
+        /** @return the number of reads which fell back to the read lock. */
+        public long getLockedReads() { return lockedReads; }
+
+        /** @return the number of mutations published. */
+        public long getWrites() { return writes; }
+
+        /** @return the number of mutations which waited to publish. */
+        public long getContendedWrites() { return contendedWrites; }
+
+        /** @return the number of times a mutation waited for the lock of a tile. */
+        public long getContendedTileLocks() { return contendedTileLocks; }
+
+        /** @return the number of digs rolled back and retried to lock their tiles in order. */
+        public long getRetriedDigs() { return retriedDigs; }
+
+        /*
+         * @see Object.toString()
+         */
+        @Override public String toString() {
+            return "reads: " + cachedReads + " cached, " + optimisticReads + " optimistic ("
+                    + failedOptimisticReads + " failed), " + lockedReads + " locked; writes: " + writes + " ("
+                    + contendedWrites + " contended), " + contendedTileLocks + " contended tile locks, "
+                    + retriedDigs + " retried digs";
+        }
+    }
+
+    // Layout of a packed square, see the abstraction function.
+    private static final int STATE_MASK = 0b011;
+    private static final int UNTOUCHED_BITS = 0b000;
+    private static final int FLAGGED_BITS = 0b001;
+    private static final int DUG_BITS = 0b010;
+    private static final int BOMB_BIT = 0b100;
+    private static final int BOMB_SHIFT = 2;
+    private static final int COUNT_SHIFT = 3;
+    private static final int COUNT_MASK = 0b1111 << COUNT_SHIFT;
+
+    // Offsets of the 8 neighbours of a square.
+    private static final int NEIGHBOURS = 8;
+    private static final int[] NEIGHBOUR_ROW = { -1, -1, -1,  0, 0,  1, 1, 1 };
+    private static final int[] NEIGHBOUR_COL = { -1,  0,  1, -1, 1, -1, 0, 1 };
+
+    /**
+     * Make a board whose moves are serialized, as if it had a single tile.
+     * @param row the number of rows.
+     * @param col the number of columns.
+     * @param generator tells whether each square contains a bomb.
+     * @throws IllegalArgumentException if the board has more than about 2^30 squares.
+     */
     public Board(int row, int col, BombGenerator generator) {
+        this(row, col, generator, Math.max(Math.max(row, col), 1));
+    }
+
+    /**
+     * Make a board partitioned into tiles of tileSize x tileSize squares.
+     * Moves whose squares lie in different tiles proceed in parallel; a dig
+     * which floods across tiles locks all of them. A large board is filled
+     * by several threads if generator.isThreadSafe().
+     * @param row the number of rows.
+     * @param col the number of columns.
+     * @param generator tells whether each square contains a bomb.
+     * @param tileSize side length of a tile, requires tileSize > 0.
+     * @throws IllegalArgumentException if the board has more than about 2^30 squares.
+     */
+    public Board(int row, int col, BombGenerator generator, int tileSize) {
+        if (tileSize <= 0)
+            throw new IllegalArgumentException("tileSize " + tileSize + " must be positive");
+        if ((long) row * col > MAX_SQUARES)
+            throw new IllegalArgumentException("board of " + row + "x" + col + " squares is larger than "
+                    + MAX_SQUARES + " squares");
         this.row = row;
         this.col = col;
-        board = new Cell[row][col];
-        for (int r = 0; r < row; r++)
-            for(int c = 0; c < col; c++){
-                boolean isBomb = generator.generate(r, c);
-                board[r][c] = new Cell(r, c, isBomb);
+        this.tileSize = tileSize;
+        cells = new byte[row * col];
+        tileCols = col == 0 ? 1 : (col - 1) / tileSize + 1;
+        int tileRows = row == 0 ? 1 : (row - 1) / tileSize + 1;
+        tileLocks = new ReentrantLock[Math.multiplyExact(tileRows, tileCols)];
+        for (int t = 0; t < tileLocks.length; t++)
+            tileLocks[t] = new ReentrantLock();
+        frame = new byte[Math.max(2 * cells.length - 1, 0)];
+        // Fill bands of rows, in parallel on a large board if the generator
+        // allows it: first the bombs, then, once all are placed, the counts
+        // of neighbouring bombs, which are afterwards only updated when a
+        // bomb is removed. Each band only writes its own squares.
+        int bandRows = col == 0 ? Math.max(row, 1) : Math.max(BAND_SQUARES / col, 1);
+        int bands = row == 0 ? 0 : (row - 1) / bandRows + 1;
+        boolean parallel = cells.length >= PARALLEL_THRESHOLD && generator.isThreadSafe();
+        forEachBand(bands, parallel, band -> {
+            for (int r = band * bandRows; r < Math.min((band + 1) * bandRows, row); r++)
+                for(int c = 0; c < col; c++){
+                    if (generator.generate(r, c))
+                        cells[r * col + c] |= BOMB_BIT;
+                }
+        });
+        forEachBand(bands, parallel, band -> {
+            for (int r = band * bandRows; r < Math.min((band + 1) * bandRows, row); r++){
+                countRow(r);
+                for(int c = 0; c < col; c++){
+                    // All the squares are untouched
+                    frame[2 * (r * col + c)] = Board.UNTOUCHED;
+                    if (r * col + c < cells.length - 1)
+                        frame[2 * (r * col + c) + 1] = (byte) (c == col - 1 ? '\n' : ' ');
+                }
             }
+        });
+        int logCapacity = Math.min(Math.max(2 * cells.length, MIN_LOG_CAPACITY), MAX_LOG_CAPACITY);
+        logSquares = new int[logCapacity];
+        logVersions = new long[logCapacity];
 
-        checkRep();
+        checkRep(null);
     }
 
     public int getCol() { return col; }
 
     public int getRow() { return row; }
 
-    // Check if the coordinates are valid, and return the reference to the given cell.
-    private Cell getCell(int r, int c){
-        assert isValidCoordinate(r, c): "Illegal coordinates row=" + r + ", col=" + c;
-        return board[r][c];
-    }
+    /** @return the side length of the tiles of the board. */
+    public int getTileSize() { return tileSize; }
 
-    // Test if the input coordinates are valid
-    private boolean isValidCoordinate(int r, int c){
-        return r >= 0 && r < row && c >= 0 && c < col;
+    /**
+     * @return how much of the rep invariant is checked after each mutation.
+     */
+    public CheckMode getCheckMode() { return checkMode; }
+
+    /**
+     * Set how much of the rep invariant is checked after each mutation.
+     * By default, every square is checked if assertions are enabled, and
+     * nothing is checked otherwise.
+     * @param checkMode the new check mode.
+     */
+    public void setCheckMode(CheckMode checkMode) {
+        this.checkMode = checkMode;
     }
 
-    // Find all the valid neighbours of a given cell
-    // @return: Valid neighbours represented by a set of cells.
-    private Set<Cell> getNeighbours(Cell cell){
-        Set<Cell> neighbours = new HashSet<>();
-        int r = cell.getRow();
-        int c = cell.getCol();
-        for(int rTmp = r-1; rTmp <= r+1; rTmp++)
-            for(int cTmp = c-1; cTmp <= c+1; cTmp++)
-                // The cell itself should be excluded
-                if(!(rTmp == r && cTmp == c) && isValidCoordinate(rTmp, cTmp))
-                    neighbours.add(getCell(rTmp, cTmp));
-        return neighbours;
+    /**
+     * Set the listener hearing of the moves which change the board from now on.
+     * @param listener the listener, or null for none.
+     */
+    public void setMoveListener(MoveListener listener) {
+        this.listener = listener;
     }
 
-    // Get the state of the given point.
-    private char getCellState(Cell cell){ return cell.getState(); }
+    /**
+     * @return the number of mutations which have changed the board so far;
+     *         the board is unchanged as long as its version is unchanged.
+     */
+    public long getVersion() { return version; }
+
+    /**
+     * @return the version of the board right after the last dig, flag or
+     *         deflag made on it by the calling thread, or 0 if that move
+     *         changed nothing; unlike getVersion(), the moves of the other
+     *         threads since then are not counted.
+     */
+    public long getLastMoveVersion() { return mutations.get().publishedVersion; }
 
-    // Set the state of the given point.
-    private void setCellState(Cell cell, char state){ cell.setState(state); }
+    /**
+     * @return how often the readers and the writers of this board have got
+     *         in each other's way so far.
+     */
+    public Contention contention() {
+        return new Contention(cachedReads.sum(), optimisticReads.sum(), failedOptimisticReads.sum(),
+                lockedReads.sum(), writes.sum(), contendedWrites.sum(), contendedTileLocks.sum(), retriedDigs.sum());
+    }
 
-    // Check if a cell contains a bomb.
-    private boolean checkCellBomb(Cell cell){ return cell.checkBomb(); }
+    /**
+     * Get the squares which changed since a given version of the board.
+     * Only a bounded number of recent changes is kept, so old versions may
+     * no longer be diffable.
+     * @param since a version of this board.
+     * @return the squares changed from version since to the current version,
+     *         or empty if since is not a version between the oldest diffable
+     *         version and the current version. Never blocks the mutators.
+     */
+    public Optional<Delta> diff(long since){
+        return read(() -> diffOf(since));
+    }
 
-    // Set the cell with/without a bomb
-    private void setCellBomb(Cell cell, boolean isBomb){ cell.setBomb(isBomb); }
+    // Compute diff(since) from frame, version and the log, which may be
+    // inconsistent unless the caller holds publishLock.
+    private Optional<Delta> diffOf(long since){
+        long version = this.version;
+        long head = logHead;
+        if(since < oldestDiffVersion || since > version)
+            return Optional.empty();
+        int count = 0;
+        int[] squares = new int[0];
+        for(long k = head - 1; k >= 0 && k >= head - logSquares.length; k--){
+            int slot = (int) (k % logSquares.length);
+            if(logVersions[slot] <= since)
+                break;
+            squares = push(squares, count++, logSquares[slot]);
+        }
+        // A square may have been changed several times, report it once
+        Arrays.sort(squares, 0, count);
+        int distinct = 0;
+        for(int k = 0; k < count; k++)
+            if(distinct == 0 || squares[distinct - 1] != squares[k])
+                squares[distinct++] = squares[k];
+        squares = Arrays.copyOf(squares, distinct);
+        char[] states = new char[distinct];
+        for(int k = 0; k < distinct; k++)
+            states[k] = (char) frame[2 * squares[k]];
+        return Optional.of(new Delta(since, version, col, squares, states));
+    }
 
-    // Count the number of neighbours with a bomb of a given cell
-    private int neighbourBombCount(Cell cell){
-        Set<Cell> neighbours = getNeighbours(cell);
-        int count = (int) neighbours.stream()
-                        .filter((neighbour) -> getCellState(neighbour) == Board.UNTOUCHED && checkCellBomb(neighbour))
-                        .count();
-        return count;
+    /**
+     * @return the current board as displayed to the players, together with
+     *         its version. The board is only rendered again if it has changed
+     *         since the last call. Never blocks the mutators.
+     */
+    public Snapshot snapshot(){
+        Snapshot cached = snapshot;
+        if(cached != null && cached.version == version){
+            cachedReads.increment();
+            return cached;
+        }
+        Snapshot rendered = read(() -> new Snapshot(version, new String(frame, StandardCharsets.US_ASCII)));
+        // Racing readers may cache an older snapshot; the next call renders it again
+        if(cached == null || cached.version < rendered.version)
+            snapshot = rendered;
+        return rendered;
     }
 
-    // Set the dug state of a cell, i.e., set its state to ' ' or '1'-'8' according to
-    // the number of bombs.
-    private void setDug(Cell cell, int count){
-        if (count == 0) setCellState(cell, Board.ZEROBOMB);
-        else
-            setCellState(cell, (char)('0' + count));
+    /**
+     * Write a binary snapshot of the board, from which load makes an equal
+     * board at the same version. The snapshot is:
+     * <pre>
+     *   SNAPSHOT ::= MAGIC FORMAT FLAGS ROWS COLS VERSION SQUARES
+     * </pre>
+     * where MAGIC is the int 0x4D535742 ("MSWB"), FORMAT the short 1, FLAGS
+     * a byte whose bit 0 is set iff SQUARES is compressed with DEFLATE,
+     * ROWS and COLS ints and VERSION a long, all big-endian; SQUARES packs
+     * square i into the low (for even i) or high (for odd i) half of byte
+     * i / 2, with its state in bits 0-1 (0 untouched, 1 flagged, 2 dug) and
+     * bit 2 set iff it contains a bomb.
+     * Blocks the mutators only while the squares are copied.
+     * @param out where to write the snapshot; it is flushed, not closed.
+     * @param compress true iff the squares should be compressed.
+     * @throws IOException if writing to out fails.
+     */
+    public void save(OutputStream out, boolean compress) throws IOException {
+        save(out, compress, null);
     }
 
-    // Sniff the given cell. The rule is:
-    // 1. Count all the neighbours with a bomb of the cell;
-    // 2. Set the state of the given cell to setDug(cell, count)
-    // 3. If the count == 0, for each of the untouched neighbours, do 1-3 recursively.
-    private void sniff(Cell cell){
-        Set<Cell> neighbours = getNeighbours(cell);
-        int count = neighbourBombCount(cell);
-        setDug(cell, count);
+    /**
+     * Write a binary snapshot of the board, as save(out, compress), and tell
+     * which one: its version, and the checksum of its uncompressed form.
+     * @param out where to write the snapshot; it is flushed, not closed.
+     * @param compress true iff the squares should be compressed.
+     * @param uncompressed updated with the bytes save(out, false) writes at
+     *                     the same version, or null for none.
+     * @return the version of the board saved.
+     * @throws IOException if writing to out fails.
+     */
+    public long save(OutputStream out, boolean compress, Checksum uncompressed) throws IOException {
+        byte[] copy;
+        long savedVersion;
+        // Every mutation has published its version before unlocking its tiles
+        for (int t = 0; t < tileLocks.length; t++)
+            lockTile(t);
+        try {
+            copy = cells.clone();
+            savedVersion = version;
+        } finally {
+            for (int t = tileLocks.length - 1; t >= 0; t--)
+                tileLocks[t].unlock();
+        }
+        byte[] squares = new byte[(copy.length + 1) / 2];
+        for (int i = 0; i < copy.length; i++)
+            squares[i >> 1] |= (copy[i] & (STATE_MASK | BOMB_BIT)) << ((i & 1) << 2);
 
-        if(count == 0){
-            for(Cell neighbour : neighbours){
-                if(getCellState(neighbour) == Board.UNTOUCHED)
-                    sniff(neighbour);
+        if (uncompressed != null) {
+            OutputStream checked = new CheckedOutputStream(OutputStream.nullOutputStream(), uncompressed);
+            writeSnapshotHeader(new DataOutputStream(checked), 0, savedVersion);
+            uncompressed.update(squares, 0, squares.length);
+        }
+        writeSnapshotHeader(new DataOutputStream(out), compress ? SNAPSHOT_COMPRESSED : 0, savedVersion);
+        if (compress) {
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try {
+                DeflaterOutputStream deflated = new DeflaterOutputStream(out, deflater);
+                deflated.write(squares);
+                deflated.finish();
+            } finally {
+                deflater.end();
             }
+        } else {
+            out.write(squares);
         }
+        out.flush();
+        return savedVersion;
+    }
+
+    // Write the header of a snapshot of the board at savedVersion, see save.
+    private void writeSnapshotHeader(DataOutputStream header, int flags, long savedVersion) throws IOException {
+        header.writeInt(SNAPSHOT_MAGIC);
+        header.writeShort(SNAPSHOT_FORMAT);
+        header.writeByte(flags);
+        header.writeInt(row);
+        header.writeInt(col);
+        header.writeLong(savedVersion);
+        header.flush();
     }
+
     /**
-     * Dig the given board cell following the steps below:
-     * 1. If the cell's coords are invalid, or it has been DUG/FLAGGED, return false;
-     * 2. Else, check if the given cell contains a bomb, store the result in hasBomb;
-     * 3. If hasBomb == true, set its isBomb variable to false; then, each of its dug
-     * neighbour should decrease the number of neighbour-with-bomb by 1.
-     * 4. sniff(cell)
-     *
-     * @param r the row of the cell.
-     * @param c the column of the cell.
-     * @return if the cell of the given position contains a bomb.
+     * Make a board, with a single tile, from a snapshot written by save.
+     * @param in where to read the snapshot; it is not closed. If the squares
+     *           are compressed, bytes after the end of the snapshot may be
+     *           read too, so the snapshot should end the stream.
+     * @return the board saved, at the version it was saved; changes before
+     *         that version are not diffable.
+     * @throws IOException if reading from in fails, or the snapshot is malformed.
      */
-    public synchronized boolean dig(int r, int c){
-        Cell cell;
-        try{
-            cell = getCell(r, c);
-        }catch(Exception e){
-            return false; // Invalid coords
+    public static Board load(InputStream in) throws IOException {
+        return load(in, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Make a board from a snapshot written by save, as load(in) but
+     * partitioned into tiles as by Board(row, col, generator, tileSize).
+     * @param in where to read the snapshot, as by load(in); it is not closed.
+     * @param tileSize side length of a tile, requires tileSize > 0.
+     * @return the board saved, at the version it was saved.
+     * @throws IOException if reading from in fails, or the snapshot is malformed.
+     */
+    public static Board load(InputStream in, int tileSize) throws IOException {
+        DataInputStream header = new DataInputStream(in);
+        if (header.readInt() != SNAPSHOT_MAGIC)
+            throw new IOException("not a board snapshot");
+        int format = header.readUnsignedShort();
+        if (format != SNAPSHOT_FORMAT)
+            throw new IOException("unsupported board snapshot format " + format);
+        int flags = header.readUnsignedByte();
+        if ((flags & ~SNAPSHOT_COMPRESSED) != 0)
+            throw new IOException("unknown board snapshot flags " + flags);
+        int row = header.readInt();
+        int col = header.readInt();
+        long savedVersion = header.readLong();
+        if (row < 0 || col < 0 || (long) row * col > MAX_SQUARES || savedVersion < 0)
+            throw new IOException("malformed board snapshot header");
+        byte[] squares = new byte[(int) (((long) row * col + 1) / 2)];
+        DataInputStream body = (flags & SNAPSHOT_COMPRESSED) != 0
+                ? new DataInputStream(new InflaterInputStream(in)) : header;
+        body.readFully(squares);
+
+        Board board = new Board(row, col,
+                (r, c) -> (packedSquare(squares, r * col + c) & BOMB_BIT) != 0, tileSize);
+        board.restore(squares, savedVersion);
+        return board;
+    }
+
+    // Get the square at index i of the SQUARES of a snapshot, see save.
+    private static int packedSquare(byte[] squares, int i){
+        return (squares[i >> 1] >>> ((i & 1) << 2)) & 0b1111;
+    }
+
+    // Set the states of the squares of a board just made by load, and move
+    // it to version savedVersion.
+    private void restore(byte[] squares, long savedVersion) throws IOException {
+        for (int i = 0; i < cells.length; i++) {
+            int state = packedSquare(squares, i) & STATE_MASK;
+            if (state == STATE_MASK || (state == DUG_BITS && hasBomb(i)))
+                throw new IOException("malformed board snapshot square " + i);
+            setState(i, state);
+            frame[2 * i] = (byte) displayOf(i);
         }
-        if(getCellState(cell) != Board.UNTOUCHED)
-            return false;
+        version = savedVersion;
+        oldestDiffVersion = savedVersion;
+        checkRep(null);
+    }
 
-        boolean hasBomb = checkCellBomb(cell);
-        if(hasBomb){
-            setCellBomb(cell, Board.NOTBOMB); // Remove the bomb
-            Set<Cell> neighbours = getNeighbours(cell);
-            for(Cell neighbour : neighbours){
-                if(getCellState(neighbour) != Board.UNTOUCHED && getCellState(neighbour) != Board.FLAGGED){
-                    // Decrease the number of neighbouring bombs by 1
-                    int prevBombCount = (int)getCellState(neighbour) - '0';
-                    setDug(neighbour, prevBombCount - 1);
+    // Run reader, which copies what it needs of frame, version and the log,
+    // under an optimistic read of publishLock, or under its read lock if
+    // concurrent mutations keep invalidating the optimistic reads.
+    // @return: the result of reader, computed from a consistent state.
+    private <T> T read(Supplier<T> reader){
+        for(int attempt = 0; attempt < OPTIMISTIC_ATTEMPTS; attempt++){
+            long stamp = publishLock.tryOptimisticRead();
+            if(stamp != 0){
+                T result = null;
+                RuntimeException failure = null;
+                try{
+                    result = reader.get();
+                }catch(RuntimeException re){
+                    failure = re; // Possibly caused by an inconsistent state
+                }
+                if(publishLock.validate(stamp)){
+                    if(failure != null)
+                        throw failure;
+                    optimisticReads.increment();
+                    return result;
                 }
             }
+            failedOptimisticReads.increment();
         }
-        sniff(cell);
+        long stamp = publishLock.readLock();
+        try{
+            lockedReads.increment();
+            return reader.get();
+        }finally{
+            publishLock.unlockRead(stamp);
+        }
+    }
+
+    // Run fill(band) for each band in [0, bands), on several threads iff parallel.
+    private static void forEachBand(int bands, boolean parallel, IntConsumer fill){
+        IntStream range = IntStream.range(0, bands);
+        (parallel ? range.parallel() : range).forEach(fill);
+    }
 
-        checkRep();
+    // Test if the input coordinates are valid
+    private boolean isValidCoordinate(int r, int c){
+        return r >= 0 && r < row && c >= 0 && c < col;
+    }
 
-        return hasBomb;
+    // Get the tile of the square (r, c).
+    private int tileOf(int r, int c){
+        return (r / tileSize) * tileCols + c / tileSize;
     }
 
-    /**
-     * Flag an untouched cell.
-     * @param r the row of the cell.
-     * @param c the column of the cell.
-     */
-    public synchronized void flag(int r, int c){
-        Cell cell;
-        try{
-            cell = getCell(r, c);
-        }catch(Exception e){
-            return; // Invalid coords
+    // Add the tile t to the tiles m needs, unless it is already there.
+    private static void need(Mutation m, int t){
+        for(int k = 0; k < m.heldCount; k++)
+            if(m.held[k] == t)
+                return;
+        m.held = push(m.held, m.heldCount++, t);
+    }
+
+    // Lock the tiles m needs, including the one it was blocked on, in
+    // increasing order; m counts as holding the tiles of the batch in
+    // progress, if any. Requires m to hold no tile of its own.
+    private void lockTiles(Mutation m){
+        if(m.blocked >= 0)
+            need(m, m.blocked);
+        m.blocked = -1;
+        Arrays.sort(m.held, 0, m.heldCount);
+        int batchMax = m.wholeBoard ? tileLocks.length - 1
+                : m.batchedCount == 0 ? -1 : m.batched[m.batchedCount - 1];
+        for(int k = 0; k < m.heldCount && m.held[k] < batchMax; k++)
+            if(!tileLocks[m.held[k]].isHeldByCurrentThread()){
+                // Out of order for the batch, e.g. a flood escaping its tiles
+                lockBoard(m);
+                batchMax = tileLocks.length - 1;
+                break;
+            }
+        for(int k = 0; k < m.heldCount; k++)
+            lockTile(m.held[k]);
+        m.maxHeld = Math.max(m.heldCount == 0 ? -1 : m.held[m.heldCount - 1], batchMax);
+    }
+
+    // Lock the whole board for the batch in progress, in place of its tiles,
+    // which are released first, so that the tiles are still locked in
+    // increasing order. Requires m to hold no tile of its own.
+    private void lockBoard(Mutation m){
+        for(int k = m.batchedCount - 1; k >= 0; k--)
+            tileLocks[m.batched[k]].unlock();
+        m.batchedCount = 0;
+        for(int t = 0; t < tileLocks.length; t++)
+            lockTile(t);
+        m.wholeBoard = true;
+    }
+
+    // Unlock the tiles locked by the batch in progress, and end it.
+    private void unlockBatch(Mutation m){
+        if(m.wholeBoard)
+            for(int t = tileLocks.length - 1; t >= 0; t--)
+                tileLocks[t].unlock();
+        for(int k = m.batchedCount - 1; k >= 0; k--)
+            tileLocks[m.batched[k]].unlock();
+        m.batchedCount = 0;
+        m.wholeBoard = false;
+        if(m.batched.length > MAX_RETAINED_SCRATCH)
+            m.batched = new int[0];
+    }
+
+    // Unlock the tiles locked by lockTiles or acquire; m still needs them.
+    private void unlockTiles(Mutation m){
+        for(int k = m.heldCount - 1; k >= 0; k--)
+            tileLocks[m.held[k]].unlock();
+        m.maxHeld = -1;
+    }
+
+    // Lock the tile t, waiting for it if necessary.
+    private void lockTile(int t){
+        if(!tileLocks[t].tryLock()){
+            contendedTileLocks.increment();
+            tileLocks[t].lock();
         }
-        if(getCellState(cell) == Board.UNTOUCHED){
-            setCellState(cell, Board.FLAGGED);
+    }
+
+    // Lock the tile t, if not yet locked by m, without breaking the lock order.
+    // @return: true iff the tile is locked; otherwise it is recorded as
+    //          m.blocked, and m must roll back and lock its tiles again.
+    private boolean acquire(Mutation m, int t){
+        if(tileLocks[t].isHeldByCurrentThread())
+            return true;
+        if(t > m.maxHeld)
+            lockTile(t); // In order: no tile higher than t is held
+        else if(!tileLocks[t].tryLock()){
+            m.blocked = t;
+            return false;
         }
+        m.held = push(m.held, m.heldCount++, t);
+        m.maxHeld = Math.max(m.maxHeld, t);
+        return true;
+    }
+
+    // Get the state bits of the square at index i.
+    private int stateOf(int i){ return cells[i] & STATE_MASK; }
 
-        checkRep();
+    // Set the state bits of the square at index i, keeping its bomb bit.
+    private void setState(int i, int state){
+        cells[i] = (byte) ((cells[i] & ~STATE_MASK) | state);
     }
 
-    /**
-     * Deflag a flagged cell, change it to untouched.
-     * @param r the row of the cell.
-     * @param c the column of the cell.
-     */
-    public synchronized void deflag(int r, int c){
-        Cell cell;
-        try{
-            cell = getCell(r, c);
-        }catch(Exception e){
-            return; // Invalid coords
+    // Check if the square at index i contains a bomb.
+    private boolean hasBomb(int i){ return (cells[i] & BOMB_BIT) != 0; }
+
+    // Get the cached number of neighbours with a bomb of the square at index i.
+    private int countOf(int i){ return (cells[i] & COUNT_MASK) >>> COUNT_SHIFT; }
+
+    // Add delta to the cached count of each neighbour of the square (r, c).
+    private void addToNeighbourCounts(int r, int c, int delta){
+        for(int k = 0; k < NEIGHBOURS; k++){
+            int rTmp = r + NEIGHBOUR_ROW[k];
+            int cTmp = c + NEIGHBOUR_COL[k];
+            if(isValidCoordinate(rTmp, cTmp))
+                cells[rTmp * col + cTmp] += delta << COUNT_SHIFT;
         }
-        if(getCellState(cell) == Board.FLAGGED){
-            setCellState(cell, Board.UNTOUCHED);
+    }
+
+    // Set the counts of the squares of row r, which must be 0, from the bomb
+    // bits of the rows r - 1 to r + 1: the count of (r, c) is the sum of the
+    // bombs of the columns c - 1 to c + 1 of those rows, less its own bomb.
+    private void countRow(int r){
+        int before = 0;
+        int here = col == 0 ? 0 : columnBombs(r, 0);
+        for(int c = 0; c < col; c++){
+            int after = c + 1 < col ? columnBombs(r, c + 1) : 0;
+            int i = r * col + c;
+            cells[i] |= (before + here + after - ((cells[i] & BOMB_BIT) >>> BOMB_SHIFT)) << COUNT_SHIFT;
+            before = here;
+            here = after;
         }
+    }
 
-        checkRep();
+    // Count the bombs of the squares (r - 1, c) to (r + 1, c) of the board.
+    private int columnBombs(int r, int c){
+        int i = r * col + c;
+        int bombs = cells[i] & BOMB_BIT;
+        if(r > 0)
+            bombs += cells[i - col] & BOMB_BIT;
+        if(r < row - 1)
+            bombs += cells[i + col] & BOMB_BIT;
+        return bombs >>> BOMB_SHIFT;
     }
 
-    @Override public synchronized String toString(){
-        String boardString = "";
-        for(int r = 0; r < row; r++){
-            for(int c = 0; c < col; c++){
-                if(c == col - 1){
-                    boardString += getCellState(getCell(r, c));
-                }else
-                    boardString += getCellState(getCell(r, c)) + " ";
-            }
-            // Since the requestHandler leverages PrintWriter.println
-            // for the last line we don't need a NEWLINE.
-            if(r != row - 1)
-                boardString += '\n';
+    // Count the number of neighbours with a bomb of the square (r, c) from
+    // scratch; only used to check the cached counts.
+    private int neighbourBombCount(int r, int c){
+        int count = 0;
+        for(int k = 0; k < NEIGHBOURS; k++){
+            int rTmp = r + NEIGHBOUR_ROW[k];
+            int cTmp = c + NEIGHBOUR_COL[k];
+            if(isValidCoordinate(rTmp, cTmp) && hasBomb(rTmp * col + cTmp))
+                count++;
         }
-        return boardString;
-    }
-
-    void checkRep(){
-        for (int r = 0; r < row; r++)
-            for (int c = 0; c < col; c++){
-                Cell cell = getCell(r, c);
-                cell.checkRep();
-                // Check for bomb number and cell state consistency
-                char state = getCellState(cell);
-                if(state != Board.UNTOUCHED && state != Board.FLAGGED){
-                    int bombCount = neighbourBombCount(cell);
-                    if(state == Board.ZEROBOMB){
-                        assert bombCount == 0 :
-                                String.format("Cell (%d, %d) inconsistent state %c and bomb number %d", r, c, state, bombCount);
-                    }else{
-                        assert bombCount == (int) state - '0' :
-                                String.format("Cell (%d, %d) inconsistent state %c and bomb number %d", r, c, state, bombCount);
-                    }
+        return count;
+    }
+
+    // Get the character displayed for the square at index i.
+    private char displayOf(int i){
+        switch (stateOf(i)) {
+            case FLAGGED_BITS:
+                return Board.FLAGGED;
+            case DUG_BITS:
+                int count = countOf(i);
+                return count == 0 ? Board.ZEROBOMB : (char)('0' + count);
+            default:
+                return Board.UNTOUCHED;
+        }
+    }
+
+    // Sniff the given square. The rule is:
+    // 1. Set the state of the given square to dug;
+    // 2. Count all the neighbours with a bomb of the square;
+    // 3. If the count == 0, do 1-3 for each of the untouched neighbours.
+    // The squares waiting to be sniffed are kept on an explicit stack of
+    // indices, so a large empty area neither overflows the call stack nor
+    // allocates per square. A square is marked dug when it is pushed, so
+    // it is pushed at most once.
+    // Requires the tile of (r, c) to be locked by m; the tiles the flood
+    // reaches are locked on the way.
+    // @return: true iff the flood completed; otherwise a tile could not be
+    //          locked in order, and m must roll back.
+    private boolean sniff(Mutation m, int r, int c){
+        int top = 0;
+        setState(r * col + c, DUG_BITS);
+        touch(m, r * col + c);
+        m.pending = push(m.pending, top++, r * col + c);
+        while(top > 0){
+            int i = m.pending[--top];
+            if(countOf(i) != 0)
+                continue;
+            int rCur = i / col;
+            int cCur = i % col;
+            for(int k = 0; k < NEIGHBOURS; k++){
+                int rTmp = rCur + NEIGHBOUR_ROW[k];
+                int cTmp = cCur + NEIGHBOUR_COL[k];
+                if(!isValidCoordinate(rTmp, cTmp))
+                    continue;
+                if(!acquire(m, tileOf(rTmp, cTmp)))
+                    return false;
+                int j = rTmp * col + cTmp;
+                if(stateOf(j) == UNTOUCHED_BITS){
+                    setState(j, DUG_BITS);
+                    touch(m, j);
+                    m.pending = push(m.pending, top++, j);
                 }
             }
+        }
+        return true;
     }
-}
 
-class Cell {
-    // Abstraction function:
-    //      A board cell whose state represents if a cell was
-    //      dug/flagged
-    // Representation invariant:
-    //      The state must fall in {'F', '-', ' ', '1'-'8'}
-    // Safety from rep exposure:
-    //      The state is set to private, and it is of primitive type,
-    //      thus it is guaranteed immutable.
+    // Record that the square at index i has been changed by the mutation m.
+    private static void touch(Mutation m, int i){
+        m.touched = push(m.touched, m.touchedCount++, i);
+    }
+
+    // Finish the mutation m while its tiles are still locked: redisplay the
+    // squares it changed, if any, move to the next version, and check the
+    // rep invariant.
+    private void publish(Mutation m){
+        if(m.touchedCount == 0 && checkMode == CheckMode.OFF)
+            return; // Nothing to publish nor to check
+        long stamp = publishLock.tryWriteLock();
+        if(stamp == 0){
+            contendedWrites.increment();
+            stamp = publishLock.writeLock();
+        }
+        try{
+            write(m);
+        }finally{
+            publishLock.unlockWrite(stamp);
+        }
+    }
+
+    // Publish the mutation m, see publish. Requires the write lock of publishLock.
+    private void write(Mutation m){
+        if(m.touchedCount > 0){
+            writes.increment();
+            version++;
+            for(int k = 0; k < m.touchedCount; k++){
+                int i = m.touched[k];
+                frame[2 * i] = (byte) displayOf(i);
+                int slot = (int) (logHead % logSquares.length);
+                if(logHead >= logSquares.length) // Overwrite the oldest change
+                    oldestDiffVersion = logVersions[slot];
+                logSquares[slot] = i;
+                logVersions[slot] = version;
+                logHead++;
+            }
+            m.publishedVersion = version;
+            MoveListener listener = this.listener;
+            if(listener != null)
+                listener.moved(version, m.move, m.r, m.c);
+        }
+        checkRep(m);
+    }
+
+    // Store value at stack[top], growing the stack if it is full.
+    // @return: the stack holding the value.
+    private static int[] push(int[] stack, int top, int value){
+        if(top == stack.length)
+            stack = Arrays.copyOf(stack, Math.max(2 * stack.length, 16));
+        stack[top] = value;
+        return stack;
+    }
+
+    /**
+     * Dig the given board square following the steps below:
+     * 1. If the square's coords are invalid, or it has been DUG/FLAGGED, return false;
+     * 2. Else, check if the given square contains a bomb, store the result in hasBomb;
+     * 3. If hasBomb == true, remove the bomb; the displayed number of each of its dug
+     * neighbours decreases by 1 accordingly.
+     * 4. sniff(square)
+     *
+     * @param r the row of the square.
+     * @param c the column of the square.
+     * @return if the square of the given position contains a bomb.
+     */
+    public boolean dig(int r, int c){
+        if(!isValidCoordinate(r, c))
+            return false; // Invalid coords
+        Mutation m = mutations.get();
+        m.reset(Move.DIG, r, c);
+        // Removing a bomb changes the counts of the whole 3x3 neighbourhood
+        for(int dr = -1; dr <= 1; dr++)
+            for(int dc = -1; dc <= 1; dc++)
+                if(isValidCoordinate(r + dr, c + dc))
+                    need(m, tileOf(r + dr, c + dc));
+        int i = r * col + c;
+        while(true){
+            lockTiles(m);
+            try{
+                if(stateOf(i) != UNTOUCHED_BITS){
+                    publish(m);
+                    return false;
+                }
+                boolean hasBomb = hasBomb(i);
+                if(hasBomb){
+                    cells[i] &= ~BOMB_BIT; // Remove the bomb
+                    addToNeighbourCounts(r, c, -1);
+                    for(int k = 0; k < NEIGHBOURS; k++)
+                        if(isValidCoordinate(r + NEIGHBOUR_ROW[k], c + NEIGHBOUR_COL[k]))
+                            touch(m, (r + NEIGHBOUR_ROW[k]) * col + c + NEIGHBOUR_COL[k]);
+                }
+                int sniffed = m.touchedCount;
+                if(sniff(m, r, c)){
+                    publish(m);
+                    return hasBomb;
+                }
+                // The flood reached a tile which could not be locked in
+                // order: undo the dig before releasing the tiles, and retry
+                for(int k = sniffed; k < m.touchedCount; k++)
+                    setState(m.touched[k], UNTOUCHED_BITS);
+                if(hasBomb){
+                    cells[i] |= BOMB_BIT;
+                    addToNeighbourCounts(r, c, 1);
+                }
+                m.touchedCount = 0;
+                retriedDigs.increment();
+            }finally{
+                unlockTiles(m);
+                m.trim();
+            }
+        }
+    }
 
-    private Set<Character> validStates = new HashSet<>(Arrays.asList(Board.FLAGGED, Board.UNTOUCHED, Board.ZEROBOMB, '1', '2', '3', '4', '5', '6', '7', '8'));
+    /**
+     * Make several moves with the tiles they need locked once, e.g. the
+     * pipelined moves of a client: each move then takes its tiles without
+     * waiting, and the moves of the other players on those tiles wait until
+     * the batch is over, while the rest of the board stays free. A dig whose
+     * flood escapes those tiles locks the whole board for the rest of the
+     * batch. The board may be read meanwhile.
+     * @param rows the rows of the squares of the moves.
+     * @param cols the columns of the squares of the moves.
+     * @param count the number of moves, requires count <= rows.length and
+     *              count <= cols.length.
+     * @param moves makes the moves, on the squares given, on this board and
+     *              on no other board; requires no batch of this board in
+     *              progress on the calling thread.
+     */
+    public void batch(int[] rows, int[] cols, int count, Runnable moves){
+        Mutation m = mutations.get();
+        assert m.batchedCount == 0 && !m.wholeBoard : "Nested batch";
+        // A dig may change the counts of the 3x3 neighbourhood of its square
+        for(int k = 0; k < count; k++)
+            for(int dr = -1; dr <= 1; dr++)
+                for(int dc = -1; dc <= 1; dc++)
+                    if(isValidCoordinate(rows[k] + dr, cols[k] + dc))
+                        m.batched = push(m.batched, m.batchedCount++, tileOf(rows[k] + dr, cols[k] + dc));
+        Arrays.sort(m.batched, 0, m.batchedCount);
+        int distinct = 0;
+        for(int k = 0; k < m.batchedCount; k++)
+            if(distinct == 0 || m.batched[distinct - 1] != m.batched[k])
+                m.batched[distinct++] = m.batched[k];
+        m.batchedCount = distinct;
+        for(int k = 0; k < m.batchedCount; k++)
+            lockTile(m.batched[k]);
+        try{
+            moves.run();
+        }finally{
+            unlockBatch(m);
+        }
+    }
 
-    private final int r;
-    private final int c;
-    private char state;
-    private boolean isBomb;
+    /**
+     * Flag an untouched square.
+     * @param r the row of the square.
+     * @param c the column of the square.
+     */
+    public void flag(int r, int c){
+        mark(Move.FLAG, r, c, UNTOUCHED_BITS, FLAGGED_BITS);
+    }
 
-    Cell(int r, int c, boolean isBomb){
-        this.r = r;
-        this.c = c;
-        this.state = Board.UNTOUCHED;
-        this.isBomb = isBomb;
+    /**
+     * Deflag a flagged square, change it to untouched.
+     * @param r the row of the square.
+     * @param c the column of the square.
+     */
+    public void deflag(int r, int c){
+        mark(Move.DEFLAG, r, c, FLAGGED_BITS, UNTOUCHED_BITS);
     }
 
-    // For test only. Otherwise, the first constructor should always be used.
-//    Cell(int r, int c, char state, boolean isBomb) {
-//        this.r = r;
-//        this.c = c;
-//        this.state = state;
-//        this.isBomb = isBomb;
-//        checkRep();
-//    }
+    // Make the move of changing the state of the square (r, c) from from to
+    // to, if it is valid and in state from.
+    private void mark(Move move, int r, int c, int from, int to){
+        if(!isValidCoordinate(r, c))
+            return; // Invalid coords
+        Mutation m = mutations.get();
+        m.reset(move, r, c);
+        need(m, tileOf(r, c));
+        lockTiles(m);
+        try{
+            int i = r * col + c;
+            if(stateOf(i) == from){
+                setState(i, to);
+                touch(m, i);
+            }
+            publish(m);
+        }finally{
+            unlockTiles(m);
+        }
+    }
 
-    int getRow(){ return r; }
-    int getCol(){ return c; }
-    char getState() { return state; }
+    /**
+     * Render a rectangular window of the board as displayed to the players,
+     * as toString renders the whole board: one row of the window per line,
+     * and its squares separated by a space. Costs time proportional to the
+     * size of the window, not of the board. Never blocks the mutators.
+     * @param r0 the top row of the window, requires r0 >= 0.
+     * @param c0 the left column of the window, requires c0 >= 0.
+     * @param rows the number of rows of the window, requires rows >= 0.
+     * @param cols the number of columns of the window, requires cols >= 0.
+     * @param out where the window, clipped to the board, is appended; it
+     *            may be reused for each window. Nothing is appended if the
+     *            window is outside the board.
+     * @return the version of the board rendered.
+     */
+    public long render(int r0, int c0, int rows, int cols, StringBuilder out){
+        if(r0 < 0 || c0 < 0 || rows < 0 || cols < 0)
+            throw new IllegalArgumentException("bad rectangle " + r0 + "," + c0 + " " + rows + "x" + cols);
+        int r1 = (int) Math.min((long) r0 + rows, row);
+        int c1 = (int) Math.min((long) c0 + cols, col);
+        if(r1 <= r0 || c1 <= c0)
+            return version;
+        out.ensureCapacity(out.length() + Math.multiplyExact(2 * (r1 - r0), c1 - c0));
+        int mark = out.length();
+        return read(() -> {
+            out.setLength(mark); // Undo a failed optimistic read
+            for(int r = r0; r < r1; r++){
+                if(r > r0)
+                    out.append('\n');
+                // The squares of a row are already separated by spaces in frame
+                int end = 2 * (r * col + c1 - 1);
+                for(int i = 2 * (r * col + c0); i <= end; i++)
+                    out.append((char) frame[i]);
+            }
+            return version;
+        });
+    }
 
-    void setState(char state) {
-        this.state = state;
-        checkRep();
+    /**
+     * @return the board as displayed to the players: one row per line, and
+     *         the squares of a row separated by a space. The board is only
+     *         rendered again if it has changed since the last call.
+     */
+    @Override public String toString(){
+        return snapshot().toString();
     }
 
-    boolean checkBomb(){ return isBomb; }
-    void setBomb(boolean isBomb){
-        this.isBomb = isBomb;
-        checkRep();
+    // Check the rep invariant to the extent given by checkMode, for the
+    // squares of the tiles locked by the mutation m, or for the whole board
+    // if m is null. Requires the write lock of publishLock, unless m is null.
+    private void checkRep(Mutation m){
+        switch (checkMode) {
+            case FULL:
+                assert cells.length == row * col : "Board size mismatch";
+                if (m == null) {
+                    for (int i = 0; i < cells.length; i++)
+                        checkSquare(i);
+                    break;
+                }
+                for (int k = 0; k < m.heldCount; k++) {
+                    int r0 = m.held[k] / tileCols * tileSize;
+                    int c0 = m.held[k] % tileCols * tileSize;
+                    for (int r = r0; r < Math.min(r0 + tileSize, row); r++)
+                        for (int c = c0; c < Math.min(c0 + tileSize, col); c++)
+                            checkSquare(r * col + c);
+                }
+                break;
+            case SAMPLED:
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                int r0 = random.nextInt(Math.max(row - SAMPLE_SIZE, 0) + 1);
+                int c0 = random.nextInt(Math.max(col - SAMPLE_SIZE, 0) + 1);
+                for (int r = r0; r < Math.min(r0 + SAMPLE_SIZE, row); r++)
+                    for (int c = c0; c < Math.min(c0 + SAMPLE_SIZE, col); c++)
+                        if (m == null || tileLocks[tileOf(r, c)].isHeldByCurrentThread())
+                            checkSquare(r * col + c);
+                break;
+            case INCREMENTAL:
+                for (int k = 0; m != null && k < m.touchedCount; k++)
+                    checkSquare(m.touched[k]);
+                break;
+            default:
+                break;
+        }
     }
 
-    void checkRep(){
-        assert validStates.contains(this.state): "Invalid state: " + this.state;
+    // Check the rep invariant of the square at index i.
+    private void checkSquare(int i){
+        int state = stateOf(i);
+        assert state != STATE_MASK : "Invalid state of square " + i;
+        assert state != DUG_BITS || !hasBomb(i) :
+                String.format("Square (%d, %d) is dug but contains a bomb", i / col, i % col);
+        assert countOf(i) == neighbourBombCount(i / col, i % col) :
+                String.format("Square (%d, %d) inconsistent bomb number %d", i / col, i % col, countOf(i));
+        assert frame[2 * i] == displayOf(i) :
+                String.format("Square (%d, %d) displayed as %c", i / col, i % col, (char) frame[2 * i]);
     }
-}
\ No newline at end of file
+}
@@ -11,4 +11,15 @@ public interface BombGenerator {
      * @return
      */
     boolean generate(int r, int c);
+
+    /**
+     * Tell whether generate may be called from several threads at the same
+     * time, in any order, and still place the same bombs; if so, a large
+     * Board is filled in parallel.
+     * @return true iff generate is thread-safe and depends only on (r, c);
+     *         false unless overridden.
+     */
+    default boolean isThreadSafe() {
+        return false;
+    }
 }
@@ -0,0 +1,431 @@
+/* Copyright (c) 2007-2016 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+package minesweeper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A board whose squares are only stored once played: the board is cut into
+ * chunks of CHUNK_SIZE x CHUNK_SIZE squares, a chunk is allocated the first
+ * time a move touches it, and its bombs are derived from the generator, which
+ * must give the same answer each time it is asked about a square (e.g. a
+ * RandomBombGenerator). A chunk which holds no change of the players is
+ * evicted, so the memory is proportional to the explored area, and a board
+ * may have up to Integer.MAX_VALUE rows and columns.
+ * <p>
+ * The moves follow the rules of Board. A dig on a board with few bombs
+ * may flood a large area, which is stored as well.
+ */
+public class ChunkedBoard {
+
+    // Abstraction function:
+    //      Represents the game board of row x col squares where the square
+    //      (r, c) is described by the chunk keyed by key(r, c), if any, at
+    //      index indexOf(r, c), packed as a square of Board:
+    //          bits 0-1: the state, one of UNTOUCHED_BITS, FLAGGED_BITS, DUG_BITS
+    //          bit 2:    set iff the square contains a bomb
+    //          bits 3-6: the number of its neighbours with a bomb
+    //      or, if there is no such chunk, is untouched and contains a bomb iff
+    //      generator.generate(r, c).
+    //      version counts the moves which changed the board.
+    // Representation invariant:
+    //      row >= 0, col >= 0;
+    //      every chunk has changes > 0, the number of its squares which are
+    //      not untouched plus the number of its bombs removed by digs;
+    //      the squares of a chunk outside the board are 0;
+    //      the state bits of each square are never 0b11;
+    //      a dug square never contains a bomb;
+    //      the count bits of each square equal the number of its neighbours
+    //      which contain a bomb.
+    // Safety from rep exposure:
+    //      All fields are private; the chunks never leave this class, and
+    //      render returns a new String.
+    // Thread safety:
+    //      Every public method which reads or writes the chunks is synchronized,
+    //      so the moves are serialized; row, col and the generator are final,
+    //      and the generator is only asked about squares, so it may be shared.
+
+    /** Side length of a chunk, in squares. */
+    public static final int CHUNK_SIZE = 64;
+    private static final int CHUNK_SHIFT = 6;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    // Layout of a packed square, as in Board.
+    private static final int STATE_MASK = 0b011;
+    private static final int UNTOUCHED_BITS = 0b000;
+    private static final int FLAGGED_BITS = 0b001;
+    private static final int DUG_BITS = 0b010;
+    private static final int BOMB_BIT = 0b100;
+    private static final int COUNT_SHIFT = 3;
+    private static final int COUNT_MASK = 0b1111 << COUNT_SHIFT;
+
+    // Offsets of the 8 neighbours of a square.
+    private static final int NEIGHBOURS = 8;
+    private static final int[] NEIGHBOUR_ROW = { -1, -1, -1,  0, 0,  1, 1, 1 };
+    private static final int[] NEIGHBOUR_COL = { -1,  0,  1, -1, 1, -1, 0, 1 };
+
+    // Check the touched chunks after each move when assertions are enabled
+    // (e.g. in tests); the checks ask the generator about each square again.
+    private static final boolean CHECK_REP = ChunkedBoard.class.desiredAssertionStatus();
+
+    private final int row;
+    private final int col;
+    private final BombGenerator generator;
+    private final Map<Long, Chunk> chunks = new HashMap<>();
+    private long version = 0;
+    private long chunksEvicted = 0;
+    // Scratch state of the move in progress: the squares waiting to be
+    // sniffed, packed by pack, and the chunks the move touched, which are
+    // marked as touched.
+    private long[] pending = new long[16];
+    private final List<Chunk> touched = new ArrayList<>();
+
+    /**
+     * The stored squares of CHUNK_SIZE x CHUNK_SIZE squares of the board,
+     * starting at the square (r0, c0).
+     */
+    private static final class Chunk {
+        private final int r0;
+        private final int c0;
+        private final byte[] cells = new byte[CHUNK_SIZE * CHUNK_SIZE];
+        // Squares not untouched, plus bombs removed.
+        private int changes = 0;
+        // True iff the chunk is in the touched list of the move in progress.
+        private boolean touched = false;
+
+        private Chunk(int r0, int c0) {
+            this.r0 = r0;
+            this.c0 = c0;
+        }
+    }
+
+    /**
+     * Make a board, none of whose squares is stored yet.
+     * @param row the number of rows, requires row >= 0.
+     * @param col the number of columns, requires col >= 0.
+     * @param generator tells whether each square contains a bomb; it is asked
+     *                  about a square again each time its chunk is allocated,
+     *                  and must give the same answer.
+     */
+    public ChunkedBoard(int row, int col, BombGenerator generator) {
+        if (row < 0 || col < 0)
+            throw new IllegalArgumentException("bad board size " + row + "x" + col);
+        this.row = row;
+        this.col = col;
+        this.generator = generator;
+    }
+
+    public int getCol() { return col; }
+
+    public int getRow() { return row; }
+
+    /**
+     * @return the number of moves which have changed the board so far.
+     */
+    public synchronized long getVersion() { return version; }
+
+    /**
+     * @return the number of chunks stored, each of CHUNK_SIZE x CHUNK_SIZE squares.
+     */
+    public synchronized int getChunkCount() { return chunks.size(); }
+
+    /**
+     * @return the number of chunks dropped so far because the players' moves
+     *         left them as generated.
+     */
+    public synchronized long getChunksEvicted() { return chunksEvicted; }
+
+    // Test if the input coordinates are valid
+    private boolean isValidCoordinate(int r, int c){
+        return r >= 0 && r < row && c >= 0 && c < col;
+    }
+
+    // Get the key of the chunk of the square (r, c).
+    private static long key(int r, int c){
+        return ((long) (r >>> CHUNK_SHIFT) << 32) | (c >>> CHUNK_SHIFT);
+    }
+
+    // Get the index of the square (r, c) in the cells of its chunk.
+    private static int indexOf(int r, int c){
+        return ((r & CHUNK_MASK) << CHUNK_SHIFT) | (c & CHUNK_MASK);
+    }
+
+    // Pack the coordinates of a square into a long, and back.
+    private static long pack(int r, int c){ return ((long) r << 32) | (c & 0xffffffffL); }
+    private static int rowOf(long packed){ return (int) (packed >>> 32); }
+    private static int colOf(long packed){ return (int) packed; }
+
+    // Check if the valid square (r, c) contains a bomb, without allocating its chunk.
+    private boolean hasBomb(int r, int c){
+        Chunk chunk = chunks.get(key(r, c));
+        if(chunk == null)
+            return generator.generate(r, c);
+        return (chunk.cells[indexOf(r, c)] & BOMB_BIT) != 0;
+    }
+
+    // Get the chunk of the valid square (r, c), allocating it if necessary,
+    // and record that the move in progress touched it.
+    private Chunk chunkOf(int r, int c){
+        long key = key(r, c);
+        Chunk chunk = chunks.get(key);
+        if(chunk == null){
+            chunk = allocate(r & ~CHUNK_MASK, c & ~CHUNK_MASK);
+            chunks.put(key, chunk);
+        }
+        if(!chunk.touched){
+            chunk.touched = true;
+            touched.add(chunk);
+        }
+        return chunk;
+    }
+
+    // Make the chunk starting at the square (r0, c0), as generated, except for
+    // the bombs of the neighbouring chunks which have been removed.
+    private Chunk allocate(int r0, int c0){
+        Chunk chunk = new Chunk(r0, c0);
+        int rows = (int) Math.min(CHUNK_SIZE, (long) row - r0);
+        int cols = (int) Math.min(CHUNK_SIZE, (long) col - c0);
+        for(int dr = 0; dr < rows; dr++)
+            for(int dc = 0; dc < cols; dc++)
+                if(generator.generate(r0 + dr, c0 + dc))
+                    chunk.cells[(dr << CHUNK_SHIFT) | dc] |= BOMB_BIT;
+        for(int dr = 0; dr < rows; dr++)
+            for(int dc = 0; dc < cols; dc++){
+                int count = 0;
+                for(int k = 0; k < NEIGHBOURS; k++){
+                    int nr = dr + NEIGHBOUR_ROW[k];
+                    int nc = dc + NEIGHBOUR_COL[k];
+                    if(nr >= 0 && nr < rows && nc >= 0 && nc < cols){
+                        if((chunk.cells[(nr << CHUNK_SHIFT) | nc] & BOMB_BIT) != 0)
+                            count++;
+                    }else if(isValidCoordinate(r0 + nr, c0 + nc) && hasBomb(r0 + nr, c0 + nc)){
+                        count++;
+                    }
+                }
+                chunk.cells[(dr << CHUNK_SHIFT) | dc] |= count << COUNT_SHIFT;
+            }
+        return chunk;
+    }
+
+    // Finish a move: drop the chunks it touched which hold no change, and
+    // move to the next version if changed.
+    private void finish(boolean changed){
+        for(Chunk chunk : touched){
+            if(chunk.changes == 0){
+                chunks.remove(key(chunk.r0, chunk.c0));
+                chunksEvicted++;
+            }
+        }
+        if(changed)
+            version++;
+        if(CHECK_REP)
+            checkRep();
+        for(Chunk chunk : touched)
+            chunk.touched = false;
+        touched.clear();
+    }
+
+    /**
+     * Dig the given square, following the rules of Board.dig.
+     * @param r the row of the square.
+     * @param c the column of the square.
+     * @return if the square of the given position contains a bomb.
+     */
+    public synchronized boolean dig(int r, int c){
+        if(!isValidCoordinate(r, c))
+            return false; // Invalid coords
+        Chunk chunk = chunkOf(r, c);
+        int i = indexOf(r, c);
+        if((chunk.cells[i] & STATE_MASK) != UNTOUCHED_BITS){
+            finish(false);
+            return false;
+        }
+        boolean hasBomb = (chunk.cells[i] & BOMB_BIT) != 0;
+        if(hasBomb){
+            // Remove the bomb; the neighbours without a chunk count it when
+            // their chunk is allocated
+            chunk.cells[i] &= ~BOMB_BIT;
+            chunk.changes++;
+            for(int k = 0; k < NEIGHBOURS; k++){
+                int rTmp = r + NEIGHBOUR_ROW[k];
+                int cTmp = c + NEIGHBOUR_COL[k];
+                if(!isValidCoordinate(rTmp, cTmp))
+                    continue;
+                Chunk neighbour = chunks.get(key(rTmp, cTmp));
+                if(neighbour != null)
+                    neighbour.cells[indexOf(rTmp, cTmp)] -= 1 << COUNT_SHIFT;
+            }
+        }
+        sniff(r, c);
+        finish(true);
+        return hasBomb;
+    }
+
+    // Dig the untouched square (r, c) and flood the area around it, as
+    // Board.sniff does, allocating the chunks the flood reaches.
+    private void sniff(int r, int c){
+        int top = 0;
+        dug(chunkOf(r, c), indexOf(r, c));
+        pending[top++] = pack(r, c);
+        while(top > 0){
+            long square = pending[--top];
+            int rCur = rowOf(square);
+            int cCur = colOf(square);
+            Chunk chunk = chunks.get(key(rCur, cCur));
+            if((chunk.cells[indexOf(rCur, cCur)] & COUNT_MASK) != 0)
+                continue;
+            for(int k = 0; k < NEIGHBOURS; k++){
+                int rTmp = rCur + NEIGHBOUR_ROW[k];
+                int cTmp = cCur + NEIGHBOUR_COL[k];
+                if(!isValidCoordinate(rTmp, cTmp))
+                    continue;
+                Chunk neighbour = chunkOf(rTmp, cTmp);
+                int j = indexOf(rTmp, cTmp);
+                if((neighbour.cells[j] & STATE_MASK) == UNTOUCHED_BITS){
+                    dug(neighbour, j);
+                    if(top == pending.length)
+                        pending = Arrays.copyOf(pending, 2 * pending.length);
+                    pending[top++] = pack(rTmp, cTmp);
+                }
+            }
+        }
+    }
+
+    // Set the untouched square at index i of chunk to dug.
+    private static void dug(Chunk chunk, int i){
+        chunk.cells[i] = (byte) ((chunk.cells[i] & ~STATE_MASK) | DUG_BITS);
+        chunk.changes++;
+    }
+
+    /**
+     * Flag an untouched square.
+     * @param r the row of the square.
+     * @param c the column of the square.
+     */
+    public synchronized void flag(int r, int c){
+        mark(r, c, UNTOUCHED_BITS, FLAGGED_BITS);
+    }
+
+    /**
+     * Deflag a flagged square, change it to untouched.
+     * @param r the row of the square.
+     * @param c the column of the square.
+     */
+    public synchronized void deflag(int r, int c){
+        mark(r, c, FLAGGED_BITS, UNTOUCHED_BITS);
+    }
+
+    // Change the state of the square (r, c) from from to to, if it is valid
+    // and in state from.
+    private void mark(int r, int c, int from, int to){
+        if(!isValidCoordinate(r, c))
+            return; // Invalid coords
+        Chunk chunk = chunkOf(r, c);
+        int i = indexOf(r, c);
+        boolean changed = (chunk.cells[i] & STATE_MASK) == from;
+        if(changed){
+            chunk.cells[i] = (byte) ((chunk.cells[i] & ~STATE_MASK) | to);
+            chunk.changes += to == UNTOUCHED_BITS ? -1 : 1;
+        }
+        finish(changed);
+    }
+
+    // Get the character displayed for the square at index i of chunk.
+    private static char displayOf(Chunk chunk, int i){
+        switch (chunk.cells[i] & STATE_MASK) {
+            case FLAGGED_BITS:
+                return Board.FLAGGED;
+            case DUG_BITS:
+                int count = (chunk.cells[i] & COUNT_MASK) >>> COUNT_SHIFT;
+                return count == 0 ? Board.ZEROBOMB : (char)('0' + count);
+            default:
+                return Board.UNTOUCHED;
+        }
+    }
+
+    /**
+     * Render a rectangle of the board as displayed to the players, as
+     * Board.toString would display a board made of its squares.
+     * @param r0 the first row of the rectangle, requires 0 <= r0.
+     * @param c0 the first column of the rectangle, requires 0 <= c0.
+     * @param rows the number of rows of the rectangle, requires rows >= 0;
+     *             the rows beyond the board are left out.
+     * @param cols the number of columns of the rectangle, requires cols >= 0;
+     *             the columns beyond the board are left out.
+     * @return the rectangle: one row per line, and the squares of a row
+     *         separated by a space.
+     */
+    public synchronized String render(int r0, int c0, int rows, int cols){
+        if(r0 < 0 || c0 < 0 || rows < 0 || cols < 0)
+            throw new IllegalArgumentException("bad rectangle " + r0 + "," + c0 + " " + rows + "x" + cols);
+        int r1 = (int) Math.min((long) r0 + rows, row);
+        int c1 = (int) Math.min((long) c0 + cols, col);
+        if(r1 <= r0 || c1 <= c0)
+            return "";
+        StringBuilder builder = new StringBuilder(Math.multiplyExact(2 * (r1 - r0), c1 - c0));
+        for(int r = r0; r < r1; r++){
+            if(r > r0)
+                builder.append('\n');
+            // Look up each chunk once per row
+            for(int c = c0; c < c1; ){
+                int end = (int) Math.min((long) (c | CHUNK_MASK) + 1, c1);
+                Chunk chunk = chunks.get(key(r, c));
+                for(; c < end; c++){
+                    if(c > c0)
+                        builder.append(' ');
+                    builder.append(chunk == null ? Board.UNTOUCHED : displayOf(chunk, indexOf(r, c)));
+                }
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * @return the whole board as displayed to the players, as Board.toString;
+     *         only sensible for a board small enough to display.
+     */
+    @Override public String toString(){
+        return render(0, 0, row, col);
+    }
+
+    // Check the rep invariant of the chunks touched by the move in progress.
+    private void checkRep(){
+        assert row >= 0 && col >= 0 : "Negative board size";
+        for(Chunk chunk : touched){
+            if(chunk.changes == 0)
+                continue; // Evicted
+            assert chunks.get(key(chunk.r0, chunk.c0)) == chunk : "Chunk not stored";
+            int changes = 0;
+            for(int i = 0; i < chunk.cells.length; i++){
+                int r = chunk.r0 + (i >>> CHUNK_SHIFT);
+                int c = chunk.c0 + (i & CHUNK_MASK);
+                int cell = chunk.cells[i];
+                if(!isValidCoordinate(r, c)){
+                    assert cell == 0 : "Square outside the board";
+                    continue;
+                }
+                int state = cell & STATE_MASK;
+                assert state != STATE_MASK : "Invalid state of square " + r + "," + c;
+                assert state != DUG_BITS || (cell & BOMB_BIT) == 0 :
+                        String.format("Square (%d, %d) is dug but contains a bomb", r, c);
+                int count = 0;
+                for(int k = 0; k < NEIGHBOURS; k++)
+                    if(isValidCoordinate(r + NEIGHBOUR_ROW[k], c + NEIGHBOUR_COL[k])
+                            && hasBomb(r + NEIGHBOUR_ROW[k], c + NEIGHBOUR_COL[k]))
+                        count++;
+                assert (cell & COUNT_MASK) >>> COUNT_SHIFT == count :
+                        String.format("Square (%d, %d) inconsistent bomb number", r, c);
+                if(state != UNTOUCHED_BITS)
+                    changes++;
+                if((cell & BOMB_BIT) == 0 && generator.generate(r, c))
+                    changes++;
+            }
+            assert changes == chunk.changes : "Chunk changes " + chunk.changes + " but " + changes + " found";
+        }
+    }
+}
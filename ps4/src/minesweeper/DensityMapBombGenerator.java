@@ -0,0 +1,78 @@
+/* Copyright (c) 2007-2016 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+package minesweeper;
+
+/**
+ * Immutable BombGenerator placing a bomb in each square independently with
+ * a probability which varies across the board, reproducibly from a seed.
+ * The probabilities are given by a density map, a coarse grid stretched over
+ * the board: e.g. a 1x2 map makes the left and right halves of the board
+ * differently dangerous.
+ */
+public class DensityMapBombGenerator implements BombGenerator {
+
+    // Abstraction function:
+    //      Represents the bomb layout of a board of row x col squares where
+    //      (r, c) contains a bomb iff RandomBombGenerator.uniform(seed, r, c)
+    //      is less than densities[r * mapRows / row][c * mapCols / col].
+    // Representation invariant:
+    //      row > 0, col > 0;
+    //      densities is a non-empty rectangle of mapRows x mapCols numbers
+    //      between 0 and 1.
+    // Safety from rep exposure:
+    //      densities is private, copied from the client, and never returned.
+    // Thread safety:
+    //      Immutable, and generate has no side effects.
+    private final double[][] densities;
+    private final int mapRows;
+    private final int mapCols;
+    private final int row;
+    private final int col;
+    private final long seed;
+
+    /**
+     * Make a generator of random bombs following a density map.
+     *
+     * @param densities densities[i][j] is the probability that a square of the
+     *                  cell (i, j) of the map contains a bomb; requires a non-empty
+     *                  rectangle of numbers between 0 and 1
+     * @param row the number of rows of the board, requires row > 0
+     * @param col the number of columns of the board, requires col > 0
+     * @param seed the same seed places the same bombs
+     */
+    public DensityMapBombGenerator(double[][] densities, int row, int col, long seed) {
+        if (row <= 0 || col <= 0)
+            throw new IllegalArgumentException("bad board size " + row + "x" + col);
+        if (densities.length == 0 || densities[0].length == 0)
+            throw new IllegalArgumentException("empty density map");
+        this.mapRows = densities.length;
+        this.mapCols = densities[0].length;
+        this.densities = new double[mapRows][];
+        for (int i = 0; i < mapRows; i++) {
+            if (densities[i].length != mapCols)
+                throw new IllegalArgumentException("density map is not rectangular");
+            for (double density : densities[i])
+                if ( ! (density >= 0 && density <= 1))
+                    throw new IllegalArgumentException("density " + density + " must be between 0 and 1");
+            this.densities[i] = densities[i].clone();
+        }
+        this.row = row;
+        this.col = col;
+        this.seed = seed;
+    }
+
+    @Override
+    public boolean generate(int r, int c) {
+        double density = densities[(int) ((long) r * mapRows / row)][(int) ((long) c * mapCols / col)];
+        return RandomBombGenerator.uniform(seed, r, c) < density;
+    }
+
+    /**
+     * @return true, as each square only depends on the seed, the map and its coordinates.
+     */
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+}
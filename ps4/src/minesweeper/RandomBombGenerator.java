@@ -0,0 +1,73 @@
+/* Copyright (c) 2007-2016 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+package minesweeper;
+
+/**
+ * Immutable BombGenerator placing a bomb in each square independently with
+ * a given probability, reproducibly from a seed. Each square is decided by
+ * hashing the seed with its coordinates, as SplittableRandom mixes its
+ * seeds, so the squares may be generated in any order and by any thread.
+ */
+public class RandomBombGenerator implements BombGenerator {
+
+    // Abstraction function:
+    //      Represents the bomb layout where (r, c) contains a bomb iff
+    //      uniform(seed, r, c) < density.
+    // Representation invariant:
+    //      0 <= density <= 1
+    // Safety from rep exposure:
+    //      All fields are private, final and immutable.
+    // Thread safety:
+    //      Immutable, and generate has no side effects.
+    private final long seed;
+    private final double density;
+
+    // Odd increment of SplittableRandom, spreading consecutive inputs.
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+    /**
+     * Make a generator of random bombs.
+     *
+     * @param seed the same seed places the same bombs
+     * @param density probability that a square contains a bomb,
+     *                requires 0 <= density <= 1
+     */
+    public RandomBombGenerator(long seed, double density) {
+        if ( ! (density >= 0 && density <= 1))
+            throw new IllegalArgumentException("density " + density + " must be between 0 and 1");
+        this.seed = seed;
+        this.density = density;
+    }
+
+    /**
+     * Get a uniformly distributed number for a square, the same for the same
+     * seed and square.
+     *
+     * @param seed the seed
+     * @param r the row of the square
+     * @param c the column of the square
+     * @return a number in [0, 1)
+     */
+    static double uniform(long seed, int r, int c) {
+        long z = seed + GOLDEN_GAMMA * ((((long) r) << 32) | (c & 0xffffffffL));
+        // The 64-bit mix of SplittableRandom, Stafford's variant 13 of MurmurHash3's finalizer
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        z = z ^ (z >>> 31);
+        return (z >>> 11) * 0x1.0p-53;
+    }
+
+    @Override
+    public boolean generate(int r, int c) {
+        return uniform(seed, r, c) < density;
+    }
+
+    /**
+     * @return true, as each square only depends on the seed and its coordinates.
+     */
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+}
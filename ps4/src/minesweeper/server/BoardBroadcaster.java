@@ -0,0 +1,286 @@
+/* Copyright (c) 2007-2016 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+package minesweeper.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import minesweeper.Board;
+
+/**
+ * Pushes the changes of the boards watched by spectators to them. A single
+ * background thread diffs each watched board at a fixed interval, renders
+ * its changes once, and fans the same message out to the bounded queue of
+ * each spectator of the board; the thread serving a spectator's connection
+ * sends the messages of its queue. A spectator whose queue is full, as it
+ * reads slower than the board changes, is sent the whole board instead of
+ * the changes it missed.
+ */
+class BoardBroadcaster {
+
+    // Abstraction function:
+    //      Represents the broadcasting of the changes of each board of
+    //      channels.keySet() to the subscriptions of its channel, every
+    //      intervalMillis by scheduler once started; a channel has broadcast
+    //      the changes of its board up to its version. Each subscription
+    //      queues at most queueCapacity updates. broadcasts and resyncs count
+    //      the updates broadcast, and the subscriptions resynchronized.
+    // Representation invariant:
+    //      intervalMillis > 0, queueCapacity > 0;
+    //      no channel has an empty set of subscriptions, except while a
+    //      subscription is added or removed.
+    // Safety from rep exposure:
+    //      All fields are private; the boards are shared on purpose, as they
+    //      are the games watched; subscriptions are returned on purpose, to
+    //      be drained by their spectators.
+    // Thread safety:
+    //      channels is a ConcurrentMap, and the subscriptions of a channel
+    //      are only added and removed inside the atomic compute methods of
+    //      its entry, so no subscription is added to a removed channel; the
+    //      version of a channel is confined to the thread broadcasting, the
+    //      scheduler thread once started; the counters are atomic; see
+    //      Subscription.
+    private final long intervalMillis;
+    private final int queueCapacity;
+    private final ConcurrentMap<Board, Channel> channels = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "board-broadcaster");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicLong broadcasts = new AtomicLong();
+    private final AtomicLong resyncs = new AtomicLong();
+
+    /**
+     * Make a broadcaster, not yet started.
+     *
+     * @param intervalMillis how often to broadcast the changes of the boards, requires intervalMillis > 0
+     * @param queueCapacity most updates queued for a spectator, requires queueCapacity > 0
+     */
+    BoardBroadcaster(long intervalMillis, int queueCapacity) {
+        this.intervalMillis = intervalMillis;
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * Start broadcasting the changes of the watched boards every intervalMillis in the background.
+     */
+    void start() {
+        scheduler.scheduleWithFixedDelay(this::broadcast, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop broadcasting; the subscriptions receive no more updates.
+     */
+    void stop() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Broadcast the changes of the watched boards now, as done every
+     * intervalMillis once started. Only called by one thread at a time.
+     */
+    void broadcast() {
+        for (Channel channel : channels.values())
+            broadcast(channel);
+    }
+
+    // Send the changes of the board of channel since it last broadcast them
+    // to its subscriptions, or resynchronize them if the changes are no
+    // longer known.
+    private void broadcast(Channel channel) {
+        if (channel.board.getVersion() == channel.version)
+            return;
+        Optional<Board.Delta> delta = channel.board.diff(channel.version);
+        if ( ! delta.isPresent()) {
+            channel.version = channel.board.getVersion();
+            for (Subscription subscription : channel.subscriptions)
+                subscription.resync();
+            return;
+        }
+        // Rendered once for all the spectators
+        Update update = new Update(delta.get().getToVersion(), MinesweeperServer.deltaMessage(delta.get()));
+        channel.version = update.version;
+        for (Subscription subscription : channel.subscriptions)
+            subscription.offer(update);
+        broadcasts.incrementAndGet();
+    }
+
+    /**
+     * Subscribe a spectator to the changes of a board made from now on.
+     *
+     * @param board the board to watch
+     * @param wakeup called from any thread when updates are queued for the
+     *               spectator, or null if its connection polls for them
+     * @return the subscription, to be drained by the spectator's connection
+     */
+    Subscription subscribe(Board board, Runnable wakeup) {
+        Subscription subscription = new Subscription(board, wakeup);
+        channels.compute(board, (key, channel) -> {
+            if (channel == null)
+                channel = new Channel(board);
+            channel.subscriptions.add(subscription);
+            return channel;
+        });
+        return subscription;
+    }
+
+    /**
+     * Stop sending the changes of its board to a spectator.
+     *
+     * @param subscription the subscription of the spectator
+     */
+    void unsubscribe(Subscription subscription) {
+        channels.computeIfPresent(subscription.board, (key, channel) -> {
+            channel.subscriptions.remove(subscription);
+            return channel.subscriptions.isEmpty() ? null : channel;
+        });
+    }
+
+    /** @return the number of boards watched. */
+    int getChannelCount() {
+        return channels.size();
+    }
+
+    /** @return the number of updates broadcast so far, each rendered once for all the spectators of a board. */
+    long getBroadcasts() {
+        return broadcasts.get();
+    }
+
+    /** @return the number of times a spectator was sent the whole board instead of the changes it missed. */
+    long getResyncs() {
+        return resyncs.get();
+    }
+
+    /**
+     * The spectators of a board, and the version of the board up to which
+     * its changes have been broadcast to them.
+     */
+    private static class Channel {
+        private final Board board;
+        private final Set<Subscription> subscriptions = ConcurrentHashMap.newKeySet();
+        private long version;
+
+        Channel(Board board) {
+            this.board = board;
+            this.version = board.getVersion();
+        }
+    }
+
+    /**
+     * A message broadcast to the spectators of a board, and the version of
+     * the board it brings them to.
+     */
+    private static class Update {
+        private final long version;
+        private final String message;
+
+        Update(long version, String message) {
+            this.version = version;
+            this.message = message;
+        }
+    }
+
+    /**
+     * The updates of a board waiting to be sent to one of its spectators.
+     */
+    class Subscription {
+
+        // Abstraction function:
+        //      Represents the messages to send to a spectator of board: the
+        //      whole board if resyncPending, followed by the messages of
+        //      updates of versions above sentVersion, the version of the
+        //      board the spectator has been sent; wakeup, if not null, is
+        //      told when updates are queued.
+        // Representation invariant:
+        //      true
+        // Safety from rep exposure:
+        //      All fields are private; drain returns a new list.
+        // Thread safety:
+        //      updates is a blocking queue and resyncPending is atomic, so the
+        //      broadcaster thread fills them while the thread serving the
+        //      spectator drains them; sentVersion is confined to that thread.
+        private final Board board;
+        private final Runnable wakeup;
+        private final BlockingQueue<Update> updates = new ArrayBlockingQueue<>(queueCapacity);
+        private final AtomicBoolean resyncPending = new AtomicBoolean();
+        private long sentVersion = 0;
+
+        private Subscription(Board board, Runnable wakeup) {
+            this.board = board;
+            this.wakeup = wakeup;
+        }
+
+        /** @return the board watched. */
+        Board getBoard() { return board; }
+
+        // Queue an update, or resynchronize the spectator if its queue is full.
+        private void offer(Update update) {
+            if ( ! resyncPending.get() && ! updates.offer(update)) {
+                resync();
+                return;
+            }
+            if (wakeup != null)
+                wakeup.run();
+        }
+
+        // Drop the queued updates, and send the whole board instead.
+        private void resync() {
+            updates.clear();
+            if ( ! resyncPending.getAndSet(true))
+                resyncs.incrementAndGet();
+            if (wakeup != null)
+                wakeup.run();
+        }
+
+        /**
+         * Record that the spectator has been sent a version of the board;
+         * the updates to that version or below are not sent to it.
+         *
+         * @param version the version of the board sent
+         */
+        void synced(long version) {
+            sentVersion = Math.max(sentVersion, version);
+        }
+
+        /**
+         * Take the messages waiting to be sent to the spectator.
+         *
+         * @param boardMessage renders the whole board for the spectator, from
+         *                     a snapshot of it, if the spectator fell behind
+         * @return the messages to send, in order; empty if none
+         */
+        List<String> drain(Function<Board.Snapshot, String> boardMessage) {
+            List<String> messages = new ArrayList<>();
+            do {
+                if (resyncPending.getAndSet(false)) {
+                    // Covers every update dropped or queued so far
+                    Board.Snapshot snapshot = board.snapshot();
+                    messages.add(boardMessage.apply(snapshot));
+                    synced(snapshot.getVersion());
+                }
+                for (Update update = updates.poll(); update != null; update = updates.poll()) {
+                    if (update.version > sentVersion) {
+                        messages.add(update.message);
+                        sentVersion = update.version;
+                    }
+                }
+                // The queue may have overflowed while it was drained
+            } while (resyncPending.get());
+            return messages;
+        }
+    }
+}
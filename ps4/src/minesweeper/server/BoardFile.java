@@ -0,0 +1,277 @@
+/* Copyright (c) 2007-2016 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+package minesweeper.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+
+import minesweeper.BitSetBombGenerator;
+import minesweeper.Board;
+
+/**
+ * Immutable board file, loaded by mapping the file into memory and
+ * parsing the bytes directly into a bit set. The file follows the grammar:
+ * <pre>
+ *   FILE ::= BOARD LINE+
+ *   BOARD ::= ROWS SPACE COLS SPACE? NEWLINE
+ *   LINE ::= (VAL SPACE)* VAL SPACE? NEWLINE
+ *   VAL ::= 0 | 1
+ *   ROWS ::= INT
+ *   COLS ::= INT
+ *   SPACE ::= [ \t\x0B\f]+
+ *   NEWLINE ::= "\n" | "\r" "\n"?
+ *   INT ::= [0-9]+
+ * </pre>
+ * with ROWS lines of COLS values each; the NEWLINE of the last line may be omitted.
+ */
+public class BoardFile {
+
+    /** Most bytes of the file mapped at a time. */
+    private static final int DEFAULT_WINDOW_SIZE = 64 << 20;
+
+    // Abstraction function:
+    //      Represents a board file of rows x cols squares, where (r, c)
+    //      contains a bomb iff bombs generates it; loading the file took
+    //      loadNanos, while the heap used at most peakHeapBytes.
+    // Representation invariant:
+    //      rows >= 0, cols >= 0, rows * cols <= Integer.MAX_VALUE,
+    //      loadNanos >= 0, peakHeapBytes >= 0
+    // Safety from rep exposure:
+    //      All fields are private and final, and bombs is immutable.
+    // Thread safety:
+    //      Immutable.
+    private final int rows;
+    private final int cols;
+    private final BitSetBombGenerator bombs;
+    private final long loadNanos;
+    private final long peakHeapBytes;
+
+    private BoardFile(int rows, int cols, BitSetBombGenerator bombs, long loadNanos, long peakHeapBytes) {
+        this.rows = rows;
+        this.cols = cols;
+        this.bombs = bombs;
+        this.loadNanos = loadNanos;
+        this.peakHeapBytes = peakHeapBytes;
+    }
+
+    /**
+     * Load a board file.
+     *
+     * @param file the board file
+     * @return the board described by the file
+     * @throws IOException if the file cannot be read or does not follow the grammar
+     */
+    public static BoardFile load(File file) throws IOException {
+        return load(file, DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * Load a board file, mapping at most windowSize bytes at a time.
+     *
+     * @param file the board file
+     * @param windowSize most bytes mapped at a time, requires windowSize >= 64
+     * @return the board described by the file
+     * @throws IOException if the file cannot be read or does not follow the grammar
+     */
+    static BoardFile load(File file, int windowSize) throws IOException {
+        resetPeakHeapUsage();
+        long start = System.nanoTime();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            Parser parser = new Parser(file);
+            long size = channel.size();
+            for (long position = 0; position < size; position += windowSize) {
+                MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                        Math.min(windowSize, size - position));
+                while (window.hasRemaining())
+                    parser.accept(window.get());
+            }
+            BitSet bombs = parser.finish();
+            BitSetBombGenerator generator = new BitSetBombGenerator(bombs, parser.cols);
+            return new BoardFile(parser.rows, parser.cols, generator, System.nanoTime() - start, peakHeapUsage());
+        }
+    }
+
+    /** @return the number of rows of the board. */
+    public int getRows() { return rows; }
+
+    /** @return the number of columns of the board. */
+    public int getCols() { return cols; }
+
+    /** @return the bombs of the board. */
+    public BitSetBombGenerator getBombs() { return bombs; }
+
+    /** @return how long loading the file took, in nanoseconds. */
+    public long getLoadNanos() { return loadNanos; }
+
+    /**
+     * @return the peak heap usage of the JVM while the file was loaded, in
+     *         bytes, or 0 if unknown; the mapped file itself is not on the heap
+     */
+    public long getPeakHeapBytes() { return peakHeapBytes; }
+
+    /**
+     * @param tileSize side length of the tiles of the board, requires tileSize > 0
+     * @return a new board with the squares of the file
+     */
+    public Board newBoard(int tileSize) {
+        return new Board(rows, cols, bombs, tileSize);
+    }
+
+    // Start measuring the peak heap usage from now.
+    private static void resetPeakHeapUsage() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+            if (pool.getType() == MemoryType.HEAP && pool.isValid())
+                pool.resetPeakUsage();
+    }
+
+    // @return: the sum of the peak usages of the heap pools since the last reset.
+    private static long peakHeapUsage() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+            if (pool.getType() == MemoryType.HEAP && pool.isValid())
+                peak += pool.getPeakUsage().getUsed();
+        return peak;
+    }
+
+    /*
+     * @see Object.toString()
+     */
+    @Override public String toString() {
+        return String.format("%dx%d board with %d bombs, loaded in %.1f ms, peak heap %.1f MB",
+                rows, cols, bombs.bombCount(), loadNanos / 1e6, peakHeapBytes / (double) (1 << 20));
+    }
+
+    /**
+     * Parser of the bytes of a board file, fed one byte at a time, so that
+     * the file may be mapped in several windows.
+     */
+    private static class Parser {
+        private final File file;
+        // Position in the grammar: HEADER_ROWS, HEADER_COLS, HEADER_END
+        // after the spaces following COLS, then CELLS.
+        private int phase = HEADER_ROWS;
+        private long number = 0;
+        private boolean hasDigits = false;
+        private int rows = 0;
+        private int cols = 0;
+        private BitSet bombs = null;
+        // Position of the next value among the cells.
+        private int row = 0;
+        private int col = 0;
+        // True if the last byte was a VAL, so that the next one may not be.
+        private boolean afterValue = false;
+        private boolean afterCarriageReturn = false;
+
+        private static final int HEADER_ROWS = 0;
+        private static final int HEADER_COLS = 1;
+        private static final int HEADER_END = 2;
+        private static final int CELLS = 3;
+
+        Parser(File file) {
+            this.file = file;
+        }
+
+        // Parse the next byte of the file.
+        void accept(byte b) throws IOException {
+            if (b == '\r') {
+                afterCarriageReturn = true;
+                b = '\n';
+            } else if (afterCarriageReturn) {
+                afterCarriageReturn = false;
+                if (b == '\n')
+                    return; // "\r\n" is a single NEWLINE
+            }
+            if (phase == CELLS)
+                acceptCell(b);
+            else
+                acceptHeader(b);
+        }
+
+        private void acceptHeader(byte b) throws IOException {
+            if (b >= '0' && b <= '9' && phase != HEADER_END) {
+                number = number * 10 + (b - '0');
+                hasDigits = true;
+                if (number > Integer.MAX_VALUE)
+                    throw malformed("board too large");
+            } else if (isSpace(b) && phase == HEADER_ROWS && hasDigits) {
+                rows = (int) number;
+                number = 0;
+                hasDigits = false;
+                phase = HEADER_COLS;
+            } else if (isSpace(b) && phase != HEADER_ROWS) {
+                if (hasDigits)
+                    phase = HEADER_END;
+            } else if (b == '\n' && phase != HEADER_ROWS && hasDigits) {
+                cols = (int) number;
+                if ((long) rows * cols > Integer.MAX_VALUE)
+                    throw malformed("board too large");
+                bombs = new BitSet(rows * cols);
+                phase = CELLS;
+            } else {
+                throw malformed("expected ROWS SPACE COLS NEWLINE");
+            }
+        }
+
+        private void acceptCell(byte b) throws IOException {
+            switch (b) {
+                case '0':
+                case '1':
+                    if (afterValue || row >= rows || col >= cols)
+                        throw malformed("unexpected value");
+                    if (b == '1')
+                        bombs.set(row * cols + col);
+                    col++;
+                    afterValue = true;
+                    break;
+                case ' ':
+                case '\t':
+                case 0x0B:
+                case '\f':
+                    if (col == 0)
+                        throw malformed("unexpected space");
+                    afterValue = false;
+                    break;
+                case '\n':
+                    if (row >= rows && col == 0)
+                        break; // Trailing empty lines
+                    if (col != cols)
+                        throw malformed("expected " + cols + " values");
+                    row++;
+                    col = 0;
+                    afterValue = false;
+                    break;
+                default:
+                    throw malformed("unexpected character '" + (char) (b & 0xff) + "'");
+            }
+        }
+
+        // @return: true iff b is a byte of a SPACE.
+        private static boolean isSpace(byte b) {
+            return b == ' ' || b == '\t' || b == 0x0B || b == '\f';
+        }
+
+        // Check that the whole board has been parsed.
+        // @return: the squares containing a bomb.
+        BitSet finish() throws IOException {
+            if (phase != CELLS)
+                throw malformed("missing header");
+            boolean complete = row == rows || (row == rows - 1 && col == cols && cols > 0);
+            if ( ! complete)
+                throw malformed("expected " + rows + " lines");
+            return bombs;
+        }
+
+        private IOException malformed(String reason) {
+            int line = phase == CELLS ? row + 2 : 1;
+            return new IOException("malformed board file \"" + file + "\" at line " + line + ": " + reason);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/* Copyright (c) 2007-2016 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+package minesweeper.server;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import minesweeper.Board;
+
+/**
+ * Saves a board to a file in the background, whenever it has changed since
+ * it was last saved. The file is replaced atomically, once the new snapshot
+ * is on disk, so it always holds a complete snapshot, even after a crash.
+ * The journal of the board, if any, is then rotated to the snapshot.
+ */
+class BoardSnapshotter {
+
+    // Abstraction function:
+    //      Represents the background saving of board to file every
+    //      intervalMillis, run by scheduler once started; the file holds the
+    //      board at savedVersion, or nothing saved yet if savedVersion < 0;
+    //      snapshotsWritten and failures count the saves and the failed saves.
+    //      journal, if not null, is rotated to each snapshot saved.
+    // Representation invariant:
+    //      intervalMillis > 0
+    // Safety from rep exposure:
+    //      All fields are private; the board is shared on purpose, as it is
+    //      the game being saved.
+    // Thread safety:
+    //      save is synchronized, so the scheduler thread and stop never write
+    //      the file at the same time; the counters are atomic; journal is
+    //      volatile, as it is set once the journal has been opened.
+    private final Board board;
+    private final File file;
+    private final long intervalMillis;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "board-snapshotter");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private long savedVersion = -1;
+    private volatile MoveJournal journal = null;
+    private final AtomicLong snapshotsWritten = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    /**
+     * Make a snapshotter, not yet started.
+     *
+     * @param board the board to save
+     * @param file the file to save it to
+     * @param intervalMillis how often to save the board, requires intervalMillis > 0
+     */
+    BoardSnapshotter(Board board, File file, long intervalMillis) {
+        this.board = board;
+        this.file = file;
+        this.intervalMillis = intervalMillis;
+    }
+
+    /**
+     * Rotate the journal of the board to each snapshot saved from now on.
+     *
+     * @param journal the journal of the board
+     */
+    void setJournal(MoveJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Start saving the board every intervalMillis in the background.
+     */
+    void start() {
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                save();
+            } catch (IOException ioe) {
+                // Try again at the next interval
+                failures.incrementAndGet();
+                System.err.println("Failed to save the board to " + file + ": " + ioe.getMessage());
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop saving the board in the background, and save it one last time.
+     *
+     * @throws IOException if the last save fails
+     */
+    void stop() throws IOException {
+        scheduler.shutdownNow();
+        save();
+    }
+
+    /**
+     * Save the board now, if it has changed since it was last saved: write
+     * it to a temporary file next to file, force that to disk, and move it
+     * over file; then force the directory to disk, where the platform allows,
+     * and rotate the journal to the snapshot.
+     *
+     * @return true iff the board was saved
+     * @throws IOException if the board cannot be written or moved
+     */
+    synchronized boolean save() throws IOException {
+        long version = board.getVersion();
+        if (version == savedVersion)
+            return false;
+        Path target = file.toPath().toAbsolutePath();
+        Path temporary = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+        CRC32 fingerprint = new CRC32();
+        long saved;
+        try {
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+                OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel));
+                saved = board.save(out, true, fingerprint);
+                // Else the move may reach the disk before the snapshot does
+                channel.force(true);
+            }
+            try {
+                Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException amnse) {
+                Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+        forceDirectory(target.getParent());
+        savedVersion = saved;
+        snapshotsWritten.incrementAndGet();
+        MoveJournal journal = this.journal;
+        if (journal != null)
+            journal.rotate(saved, (int) fingerprint.getValue());
+        return true;
+    }
+
+    // Force the entries of directory to disk, so that the move of a snapshot
+    // or journal into it survives a crash; not all platforms can open a directory.
+    static void forceDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException ioe) {
+            // Not supported here; the move reaches the disk with the next sync
+        }
+    }
+
+    /** @return the number of snapshots written so far. */
+    long getSnapshotsWritten() {
+        return snapshotsWritten.get();
+    }
+
+    /** @return the number of background saves which failed so far. */
+    long getFailures() {
+        return failures.get();
+    }
+}
@@ -0,0 +1,121 @@
+/* Copyright (c) 2007-2016 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+package minesweeper.server;
+
+/**
+ * A request of a client, as parsed by CommandParser. Mutable, so that a
+ * parser can reuse one Command for all the requests of a connection.
+ */
+class Command {
+
+    /** The kinds of requests, see the grammar returned by the 'help' request. */
+    enum Type { LOOK, LOOK_SINCE, LOOK_WINDOW, DIG, FLAG, DEFLAG, DELTA, RLE, WATCH, JOIN, HELP, BYE, INVALID }
+
+    // Abstraction function:
+    //      Represents a request of the given type. x and y are its
+    //      coordinates if it is a DIG, FLAG or DEFLAG, or the top left corner
+    //      of its window of width by height squares if it is a LOOK_WINDOW.
+    //      version is its version if it is a LOOK_SINCE, and room is its room
+    //      if it is a JOIN.
+    // Representation invariant:
+    //      width >= 0, height >= 0
+    // Safety from rep exposure:
+    //      All fields are private and of primitive or immutable types.
+    // Thread safety:
+    //      Not thread-safe; a command is confined to the thread handling its connection.
+    private Type type = Type.INVALID;
+    private int x = 0;
+    private int y = 0;
+    private int width = 0;
+    private int height = 0;
+    private long version = 0;
+    private String room = "";
+
+    /** @return the kind of the request. */
+    Type getType() { return type; }
+
+    /** @return true iff the request is a DIG, FLAG or DEFLAG, which may change the board. */
+    boolean isMove() { return type == Type.DIG || type == Type.FLAG || type == Type.DEFLAG; }
+
+    /** @return the X coordinate (column) of a DIG, FLAG or DEFLAG request, or the left of a LOOK_WINDOW. */
+    int getX() { return x; }
+
+    /** @return the Y coordinate (row) of a DIG, FLAG or DEFLAG request, or the top of a LOOK_WINDOW. */
+    int getY() { return y; }
+
+    /** @return the width of the window of a LOOK_WINDOW request, in columns. */
+    int getWidth() { return width; }
+
+    /** @return the height of the window of a LOOK_WINDOW request, in rows. */
+    int getHeight() { return height; }
+
+    /** @return the version of a LOOK_SINCE request. */
+    long getVersion() { return version; }
+
+    /** @return the name of the room of a JOIN request. */
+    String getRoom() { return room; }
+
+    /**
+     * Make this command a request without arguments.
+     * @param type kind of the request
+     * @return this
+     */
+    Command set(Type type) {
+        this.type = type;
+        return this;
+    }
+
+    /**
+     * Make this command a DIG, FLAG or DEFLAG request.
+     * @param type kind of the request
+     * @param x X coordinate (column)
+     * @param y Y coordinate (row)
+     * @return this
+     */
+    Command set(Type type, int x, int y) {
+        this.type = type;
+        this.x = x;
+        this.y = y;
+        return this;
+    }
+
+    /**
+     * Make this command a LOOK_SINCE request.
+     * @param version the version of the board known to the client
+     * @return this
+     */
+    Command setLookSince(long version) {
+        this.type = Type.LOOK_SINCE;
+        this.version = version;
+        return this;
+    }
+
+    /**
+     * Make this command a LOOK_WINDOW request.
+     * @param x X coordinate (column) of the left of the window, requires x >= 0
+     * @param y Y coordinate (row) of the top of the window, requires y >= 0
+     * @param width width of the window, requires width >= 0
+     * @param height height of the window, requires height >= 0
+     * @return this
+     */
+    Command setLookWindow(int x, int y, int width, int height) {
+        this.type = Type.LOOK_WINDOW;
+        this.x = x;
+        this.y = y;
+        this.width = width;
+        this.height = height;
+        return this;
+    }
+
+    /**
+     * Make this command a JOIN request.
+     * @param room the name of the room to join
+     * @return this
+     */
+    Command setJoin(String room) {
+        this.type = Type.JOIN;
+        this.room = room;
+        return this;
+    }
+}
@@ -0,0 +1,228 @@
+/* Copyright (c) 2007-2016 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+package minesweeper.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Single-pass parser of the requests of the minesweeper protocol:
+ * <pre>
+ *   MESSAGE ::= ( LOOK | DIG | FLAG | DEFLAG | DELTA_REQ | RLE_REQ | WATCH_REQ | JOIN | HELP_REQ | BYE )
+ *   LOOK ::= "look" (SPACE VERSION | SPACE LEFT SPACE TOP SPACE WIDTH SPACE HEIGHT)?
+ *   DIG ::= "dig" SPACE X SPACE Y
+ *   FLAG ::= "flag" SPACE X SPACE Y
+ *   DEFLAG ::= "deflag" SPACE X SPACE Y
+ *   DELTA_REQ ::= "delta"
+ *   RLE_REQ ::= "rle"
+ *   WATCH_REQ ::= "watch"
+ *   JOIN ::= "join" SPACE ROOM
+ *   HELP_REQ ::= "help"
+ *   BYE ::= "bye"
+ *   X ::= INT
+ *   Y ::= INT
+ *   LEFT ::= [0-9]+
+ *   TOP ::= [0-9]+
+ *   WIDTH ::= [0-9]+
+ *   HEIGHT ::= [0-9]+
+ *   VERSION ::= [0-9]+
+ *   ROOM ::= [A-Za-z0-9_-]+
+ *   SPACE ::= " "
+ *   INT ::= "-"? [0-9]+
+ * </pre>
+ * where the line terminator has already been removed. Numbers too large
+ * for an int (or a long for VERSION) saturate to the nearest bound, which
+ * is never a valid coordinate or a known version. A ROOM is at most
+ * RoomRegistry.MAX_ROOM_NAME_LENGTH characters long.
+ *
+ * <p>Each parser owns the Commands it returns, and reuses them for the next
+ * lines, so that parsing does not allocate, except for the name of a room.
+ */
+class CommandParser {
+
+    // Abstraction function:
+    //      Represents a parser whose last parsed request is command, and
+    //      whose last parsed lines are the first ones of commands.
+    // Representation invariant:
+    //      0 <= pos <= input.length() while parsing.
+    // Safety from rep exposure:
+    //      command and commands are returned on purpose, and documented to be
+    //      overwritten by the next parse.
+    // Thread safety:
+    //      Not thread-safe; a parser is confined to the thread handling its connection.
+    private final Command command = new Command();
+    private final List<Command> commands = new ArrayList<>();
+    // The line being parsed, and the position of the next character to parse.
+    private CharSequence input;
+    private int pos;
+    // The value of the last number parsed by parseNumber.
+    private long number;
+
+    /**
+     * Parse a request line.
+     *
+     * @param line the request without its line terminator
+     * @return the request, of type INVALID if line does not follow the
+     *         grammar; it is overwritten by the next call
+     */
+    Command parse(CharSequence line) {
+        return parse(line, command);
+    }
+
+    /**
+     * Parse several request lines, e.g. the pipelined requests of a client.
+     *
+     * @param lines the requests without their line terminators
+     * @return the requests, parsed as by parse, in the order of lines; they
+     *         are overwritten by the next call
+     */
+    List<Command> parseAll(List<? extends CharSequence> lines) {
+        while (commands.size() < lines.size())
+            commands.add(new Command());
+        for (int i = 0; i < lines.size(); i++)
+            parse(lines.get(i), commands.get(i));
+        return Collections.unmodifiableList(commands.subList(0, lines.size()));
+    }
+
+    // Parse a request line into command.
+    // @return: command
+    private Command parse(CharSequence line, Command command) {
+        input = line;
+        pos = 0;
+        Command.Type type = parseKeyword();
+        switch (type) {
+            case LOOK:
+                if (atEnd())
+                    return command.set(Command.Type.LOOK);
+                if ( ! skipSpace())
+                    break;
+                int argument = pos;
+                if (parseNumber(false, Long.MAX_VALUE) && atEnd())
+                    return command.setLookSince(number);
+                // Not a VERSION: parse it again as the LEFT of a window
+                pos = argument;
+                if (parseNumber(false, Integer.MAX_VALUE)) {
+                    int x = (int) number;
+                    if (skipSpace() && parseNumber(false, Integer.MAX_VALUE)) {
+                        int y = (int) number;
+                        if (skipSpace() && parseNumber(false, Integer.MAX_VALUE)) {
+                            int width = (int) number;
+                            if (skipSpace() && parseNumber(false, Integer.MAX_VALUE) && atEnd())
+                                return command.setLookWindow(x, y, width, (int) number);
+                        }
+                    }
+                }
+                break;
+            case DIG:
+            case FLAG:
+            case DEFLAG:
+                if (skipSpace() && parseNumber(true, Integer.MAX_VALUE)) {
+                    int x = (int) number;
+                    if (skipSpace() && parseNumber(true, Integer.MAX_VALUE) && atEnd())
+                        return command.set(type, x, (int) number);
+                }
+                break;
+            case JOIN:
+                if (skipSpace()) {
+                    int start = pos;
+                    while (pos < input.length() && isRoomCharacter(input.charAt(pos)))
+                        pos++;
+                    int length = pos - start;
+                    if (atEnd() && length > 0 && length <= RoomRegistry.MAX_ROOM_NAME_LENGTH)
+                        return command.setJoin(input.subSequence(start, pos).toString());
+                }
+                break;
+            case DELTA:
+            case RLE:
+            case WATCH:
+            case HELP:
+            case BYE:
+                if (atEnd())
+                    return command.set(type);
+                break;
+            default:
+                break;
+        }
+        return command.set(Command.Type.INVALID);
+    }
+
+    // Parse the keyword starting the line, i.e. its leading lowercase letters.
+    // @return: the type of request it starts, or INVALID if it is no keyword.
+    private Command.Type parseKeyword() {
+        int start = pos;
+        while (pos < input.length() && input.charAt(pos) >= 'a' && input.charAt(pos) <= 'z')
+            pos++;
+        switch (pos - start) {
+            case 3:
+                if (keywordIs("dig", start)) return Command.Type.DIG;
+                if (keywordIs("bye", start)) return Command.Type.BYE;
+                if (keywordIs("rle", start)) return Command.Type.RLE;
+                break;
+            case 4:
+                if (keywordIs("look", start)) return Command.Type.LOOK;
+                if (keywordIs("flag", start)) return Command.Type.FLAG;
+                if (keywordIs("help", start)) return Command.Type.HELP;
+                if (keywordIs("join", start)) return Command.Type.JOIN;
+                break;
+            case 5:
+                if (keywordIs("delta", start)) return Command.Type.DELTA;
+                if (keywordIs("watch", start)) return Command.Type.WATCH;
+                break;
+            case 6:
+                if (keywordIs("deflag", start)) return Command.Type.DEFLAG;
+                break;
+            default:
+                break;
+        }
+        return Command.Type.INVALID;
+    }
+
+    // @return: true iff the input from start has the characters of keyword.
+    private boolean keywordIs(String keyword, int start) {
+        for (int i = 0; i < keyword.length(); i++)
+            if (input.charAt(start + i) != keyword.charAt(i))
+                return false;
+        return true;
+    }
+
+    // @return: true iff ch may appear in the name of a room.
+    private static boolean isRoomCharacter(char ch) {
+        return (ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z') || (ch >= '0' && ch <= '9')
+                || ch == '_' || ch == '-';
+    }
+
+    // @return: true iff all the input has been parsed.
+    private boolean atEnd() {
+        return pos == input.length();
+    }
+
+    // Skip a single SPACE.
+    // @return: true iff the next character was a SPACE.
+    private boolean skipSpace() {
+        if (pos < input.length() && input.charAt(pos) == ' ') {
+            pos++;
+            return true;
+        }
+        return false;
+    }
+
+    // Parse a number into the field number, saturating to +/-max.
+    // @param signed: true iff the number may start with a "-".
+    // @return: true iff a number was parsed, i.e. there was at least one digit.
+    private boolean parseNumber(boolean signed, long max) {
+        boolean negative = signed && pos < input.length() && input.charAt(pos) == '-';
+        if (negative)
+            pos++;
+        int start = pos;
+        long value = 0;
+        while (pos < input.length() && input.charAt(pos) >= '0' && input.charAt(pos) <= '9') {
+            int digit = input.charAt(pos) - '0';
+            value = value > (max - digit) / 10 ? max : value * 10 + digit;
+            pos++;
+        }
+        number = negative ? -value : value;
+        return pos > start;
+    }
+}
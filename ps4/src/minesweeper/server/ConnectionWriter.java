@@ -0,0 +1,242 @@
+/* Copyright (c) 2007-2016 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+package minesweeper.server;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends the replies of a blocking connection, and closes it once they are
+ * sent. With a thread of its own, the thread handling the requests of the
+ * client does not wait for the client to read them, unless the client lags
+ * behind by more than a bounded number of bytes; then only that thread
+ * waits. The replies are queued already encoded, and the writer sends all
+ * the replies queued while it was sending the previous ones with a single
+ * flush. Without, the replies are written by the thread sending them, and
+ * flushed together by flush, so that no connection needs a second thread
+ * where threads are not cheap.
+ * <p>
+ * Closing does not wait for the client: the connection is closed once the
+ * replies are sent, or by a shared timer after a linger, if the client has
+ * not read them by then.
+ */
+class ConnectionWriter implements Closeable {
+
+    // Abstraction function:
+    //      Represents the messages for the client sent through connection,
+    //      to be written to out in order: by writer, if present, which is
+    //      writing the messages taken from queue before; else by the sending
+    //      thread, up to the last flush. pendingBytes counts the bytes of the
+    //      messages queued or being written. No message is sent once closed;
+    //      the writer has stopped once stopped, after failure if not null,
+    //      and connection is closed by then, or by linger lingerMillis after
+    //      closed. flushes counts the batches of messages sent.
+    // Representation invariant:
+    //      pendingBytes >= the number of bytes in queue; queue is empty if
+    //      writer is empty; maxPendingBytes > 0, lingerMillis > 0
+    // Safety from rep exposure:
+    //      All fields are private; the messages are byte arrays which the
+    //      senders no longer use once sent.
+    // Thread safety:
+    //      queue, pendingBytes, closed, stopped, failure, linger and flushes
+    //      are guarded by lock; out is confined to the writer thread once it
+    //      has started, or to the sending thread without a writer, which
+    //      writes it outside of lock.
+
+    /** Size of the buffer gathering the messages of a batch. */
+    private static final int BUFFER_SIZE = 8192;
+    /** Closes the connections whose clients have not read their last replies in time. */
+    private static final ScheduledThreadPoolExecutor LINGERS = newLingerExecutor();
+
+    private final OutputStream out;
+    private final Closeable connection;
+    private final int maxPendingBytes;
+    private final long lingerMillis;
+    private final Optional<Thread> writer;
+    private final Object lock = new Object();
+    private final Queue<byte[]> queue = new ArrayDeque<>();
+    private long pendingBytes = 0;
+    private boolean closed = false;
+    private boolean stopped = false;
+    private IOException failure = null;
+    private Future<?> linger = null;
+    private long flushes = 0;
+
+    /**
+     * Make a writer.
+     *
+     * @param out the stream to the client
+     * @param connection closes the connection to the client
+     * @param maxPendingBytes how many bytes of messages may wait for the
+     *                        client before send blocks, requires maxPendingBytes > 0
+     * @param lingerMillis how long the messages may wait for the client once
+     *                     closed, requires lingerMillis > 0
+     * @param threads makes the thread sending the messages, or empty to
+     *                send them from the thread calling send and flush
+     */
+    ConnectionWriter(OutputStream out, Closeable connection, int maxPendingBytes, long lingerMillis,
+                     Optional<ThreadFactory> threads) {
+        this.out = new BufferedOutputStream(out, BUFFER_SIZE);
+        this.connection = connection;
+        this.maxPendingBytes = maxPendingBytes;
+        this.lingerMillis = lingerMillis;
+        this.writer = threads.map(factory -> factory.newThread(this::writeLoop));
+        writer.ifPresent(Thread::start);
+    }
+
+    // Make the executor of the lingers: a single daemon thread, as a linger
+    // only closes a connection, which forgets the lingers cancelled.
+    private static ScheduledThreadPoolExecutor newLingerExecutor() {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "connection-linger");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.setRemoveOnCancelPolicy(true);
+        return executor;
+    }
+
+    /**
+     * Send a message: queue it, waiting while maxPendingBytes bytes or more
+     * are queued or being written, or without a writer thread, write it,
+     * waiting while the client is slow to read.
+     *
+     * @param message the message, encoded; must not be modified afterwards
+     * @throws IOException if the writer has failed or was closed, or the
+     *                     thread is interrupted while waiting
+     */
+    void send(byte[] message) throws IOException {
+        synchronized (lock) {
+            try {
+                while (pendingBytes >= maxPendingBytes && !stopped)
+                    lock.wait();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while the client was slow to read");
+            }
+            if (failure != null)
+                throw new IOException("failed to write to the client", failure);
+            if (closed || stopped)
+                throw new IOException("connection writer closed");
+            if (writer.isPresent()) {
+                queue.add(message);
+                pendingBytes += message.length;
+                lock.notifyAll();
+                return;
+            }
+        }
+        out.write(message);
+    }
+
+    /**
+     * Send the messages written by send so far, if there is no writer
+     * thread; else the writer sends them anyway.
+     *
+     * @throws IOException if the messages cannot be written
+     */
+    void flush() throws IOException {
+        if (writer.isPresent())
+            return;
+        out.flush();
+        synchronized (lock) {
+            flushes++;
+        }
+    }
+
+    // Body of the writer thread: write and flush the messages queued, in
+    // batches, until closed and drained, or until writing fails; then close
+    // the connection.
+    private void writeLoop() {
+        List<byte[]> batch = new ArrayList<>();
+        try {
+            while (true) {
+                synchronized (lock) {
+                    while (queue.isEmpty() && !closed)
+                        lock.wait();
+                    if (queue.isEmpty())
+                        return; // Closed, and every message is sent
+                    batch.addAll(queue);
+                    queue.clear();
+                }
+                long bytes = 0;
+                for (byte[] message : batch) {
+                    out.write(message);
+                    bytes += message.length;
+                }
+                out.flush();
+                batch.clear();
+                synchronized (lock) {
+                    pendingBytes -= bytes;
+                    flushes++;
+                    lock.notifyAll();
+                }
+            }
+        } catch (IOException ioe) {
+            synchronized (lock) {
+                failure = ioe;
+            }
+        } catch (InterruptedException ie) {
+            // Only interrupted when the connection is abandoned
+        } finally {
+            synchronized (lock) {
+                stopped = true;
+                queue.clear();
+                lock.notifyAll(); // Release a sender waiting for room which will not come
+                if (linger != null)
+                    linger.cancel(false);
+            }
+            closeConnection();
+        }
+    }
+
+    // Close the connection, ignoring errors since it is over either way.
+    private void closeConnection() {
+        try {
+            connection.close();
+        } catch (IOException ioe) {
+            // The connection is gone either way.
+        }
+    }
+
+    /** @return the number of batches of messages sent, each with a single flush. */
+    long getFlushes() {
+        synchronized (lock) {
+            return flushes;
+        }
+    }
+
+    /**
+     * Stop sending messages, and close the connection without waiting: once
+     * the messages queued are sent, or lingerMillis later if the client has
+     * not read them by then. Without a writer thread, the messages not
+     * flushed are dropped, and the connection is closed at once; the system
+     * still sends the messages flushed.
+     */
+    @Override public void close() {
+        synchronized (lock) {
+            if (closed)
+                return;
+            closed = true;
+            lock.notifyAll();
+            if (writer.isPresent() && !stopped) {
+                // Closing the connection stops a writer blocked on a client which does not read
+                linger = LINGERS.schedule(this::closeConnection, lingerMillis, TimeUnit.MILLISECONDS);
+                return;
+            }
+        }
+        closeConnection();
+    }
+}
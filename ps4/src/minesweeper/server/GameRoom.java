@@ -0,0 +1,95 @@
+/* Copyright (c) 2007-2016 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+package minesweeper.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import minesweeper.Board;
+
+/**
+ * A named game hosted by a MinesweeperServer: its board and the players
+ * currently in it.
+ */
+public class GameRoom {
+
+    // Abstraction function:
+    //      Represents the game called name, played on board by the sessions
+    //      in players; the room has had no players since idleSince (in
+    //      System.nanoTime() units) if players is empty.
+    // Representation invariant:
+    //      name matches [A-Za-z0-9_-]+ and has at most
+    //      RoomRegistry.MAX_ROOM_NAME_LENGTH characters
+    // Safety from rep exposure:
+    //      All fields are private; the board is shared on purpose, as it is
+    //      the game; getPlayers returns a copy.
+    // Thread safety:
+    //      name and board are final and the board is thread-safe; players is
+    //      a concurrent set and idleSince is volatile; add and remove are
+    //      only called by RoomRegistry while it holds the room's entry, so
+    //      they never race with its eviction.
+    private final String name;
+    private final Board board;
+    private final Set<Session> players = ConcurrentHashMap.newKeySet();
+    private volatile long idleSince;
+
+    /**
+     * Make an empty room.
+     *
+     * @param name name of the room
+     * @param board board of the game
+     */
+    GameRoom(String name, Board board) {
+        this.name = name;
+        this.board = board;
+        this.idleSince = System.nanoTime();
+    }
+
+    /** @return the name of the room. */
+    public String getName() { return name; }
+
+    /** @return the board of the game played in the room. */
+    public Board getBoard() { return board; }
+
+    /** @return the number of players in the room. */
+    public int getPlayerCount() { return players.size(); }
+
+    /** @return a copy of the sessions of the players in the room. */
+    public List<Session> getPlayers() { return new ArrayList<>(players); }
+
+    /**
+     * Add a player to the room.
+     * @param session session of the player
+     */
+    void add(Session session) {
+        players.add(session);
+    }
+
+    /**
+     * Remove a player from the room; the room becomes idle if it was the last one.
+     * @param session session of the player
+     */
+    void remove(Session session) {
+        if (players.remove(session) && players.isEmpty())
+            idleSince = System.nanoTime();
+    }
+
+    /**
+     * @param now the current time, as given by System.nanoTime()
+     * @param idleNanos how long an empty room is kept
+     * @return true iff the room has had no players for at least idleNanos
+     */
+    boolean isIdle(long now, long idleNanos) {
+        return players.isEmpty() && now - idleSince >= idleNanos;
+    }
+
+    /*
+     * @see Object.toString()
+     */
+    @Override public String toString() {
+        return "Room " + name + ": " + getPlayerCount() + " players";
+    }
+}
@@ -0,0 +1,213 @@
+/* Copyright (c) 2007-2016 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+package minesweeper.server;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Disconnects the clients which have sent no request for longer than an idle
+ * timeout, so that dead or abandoned connections do not hold a thread and a
+ * socket forever. Clients watching a board are not idle, as they wait for
+ * its changes on purpose, as long as the changes are pushed to them: one
+ * which has had no change pushed for WATCHING_TIMEOUTS timeouts, e.g. as
+ * it does not read them or the board is over, is idle too.
+ * <p>
+ * The sessions are kept in a hashed timer wheel: a ring of slots, one per
+ * tick of a fraction of the timeout, each holding the sessions due at its
+ * ticks. A background thread visits one slot per tick, so a tick costs the
+ * sessions due at it, not all the sessions. A request does not touch the
+ * wheel, it only records its time in the session; a session found active
+ * when its slot is visited is moved to the slot where it will next be due.
+ * A session is disconnected between the timeout and the timeout plus one
+ * tick after its last request.
+ */
+class IdleReaper {
+
+    // Abstraction function:
+    //      Represents the disconnection of each session of timeouts.keySet()
+    //      once it has been idle for timeoutNanos, and, if it watches a
+    //      board, has had no change pushed for WATCHING_TIMEOUTS * timeoutNanos,
+    //      checked every tickNanos by scheduler once started. Tick t is due at startNanos + t * tickNanos,
+    //      as given by System.nanoTime(); the ticks up to tick have been
+    //      visited. The timeout of a session is due at its tick, and is held
+    //      in wheel[tick % wheel.length]; the timeouts of the wheel not in
+    //      timeouts.values() belong to sessions unregistered since, and are
+    //      dropped when their slot is visited. reaped counts the sessions
+    //      disconnected.
+    // Representation invariant:
+    //      timeoutNanos > 0, tickNanos > 0, wheel.length is a power of 2;
+    //      every timeout of timeouts.values() is in wheel[timeout.tick % wheel.length],
+    //      and timeout.tick > tick
+    // Safety from rep exposure:
+    //      All fields are private; the sessions are shared on purpose, as
+    //      they are the clients to disconnect.
+    // Thread safety:
+    //      wheel, timeouts and tick are guarded by this object's lock; the
+    //      sessions are closed outside of it, as closing may wait for the
+    //      connection; reaped is atomic.
+
+    /** Number of ticks per timeout, so a session is reaped at most 1/TICKS_PER_TIMEOUT late. */
+    private static final int TICKS_PER_TIMEOUT = 32;
+    /** Number of slots of the wheel; one turn of the wheel covers a few timeouts. */
+    private static final int WHEEL_SIZE = 4 * TICKS_PER_TIMEOUT;
+    /** Number of timeouts a client watching a board may go without a change pushed to it. */
+    static final int WATCHING_TIMEOUTS = 4;
+    /** Shortest tick, so that short timeouts do not keep the thread busy. */
+    private static final long MIN_TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final long timeoutNanos;
+    private final long tickNanos;
+    private final long startNanos = System.nanoTime();
+    private final List<Queue<Timeout>> wheel = new ArrayList<>(WHEEL_SIZE);
+    private final Map<Session, Timeout> timeouts = new HashMap<>();
+    private long tick = 0;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "idle-reaper");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicLong reaped = new AtomicLong();
+
+    /**
+     * Make a reaper, not yet started.
+     *
+     * @param timeoutMillis how long, in milliseconds, a client may send no
+     *                      request before it is disconnected, requires timeoutMillis > 0
+     */
+    IdleReaper(long timeoutMillis) {
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        this.tickNanos = Math.max(MIN_TICK_NANOS, timeoutNanos / TICKS_PER_TIMEOUT);
+        for (int i = 0; i < WHEEL_SIZE; i++)
+            wheel.add(new ArrayDeque<>());
+    }
+
+    /**
+     * Start disconnecting the idle clients in the background.
+     */
+    void start() {
+        scheduler.scheduleAtFixedRate(this::reap, tickNanos, tickNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Stop disconnecting the idle clients.
+     */
+    void stop() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Start watching a client for idleness, from its last request.
+     *
+     * @param session the session of the client, not registered yet
+     */
+    synchronized void register(Session session) {
+        schedule(new Timeout(session), session.getLastActiveNanos() + timeoutNanos);
+    }
+
+    /**
+     * Stop watching a client, as it has disconnected.
+     *
+     * @param session the session of the client
+     */
+    synchronized void unregister(Session session) {
+        // Its timeout is dropped from the wheel when its slot is visited
+        timeouts.remove(session);
+    }
+
+    /**
+     * Disconnect the clients idle for longer than the timeout, visiting the
+     * ticks due since the last call; done every tick once started. Only
+     * called by one thread at a time.
+     */
+    void reap() {
+        List<Session> idle = new ArrayList<>();
+        synchronized (this) {
+            long now = System.nanoTime();
+            long lastTick = (now - startNanos) / tickNanos;
+            while (tick < lastTick) {
+                tick++;
+                visit(wheel.get((int) (tick & (WHEEL_SIZE - 1))), now, idle);
+            }
+        }
+        for (Session session : idle) {
+            session.close();
+            reaped.incrementAndGet();
+        }
+    }
+
+    // Check the timeouts of slot due at the current tick: add the sessions
+    // idle for longer than the timeout, or watching a board without a push
+    // for WATCHING_TIMEOUTS timeouts, to idle, and reschedule the others.
+    private void visit(Queue<Timeout> slot, long now, List<Session> idle) {
+        List<Timeout> rescheduled = new ArrayList<>();
+        for (Iterator<Timeout> it = slot.iterator(); it.hasNext(); ) {
+            Timeout timeout = it.next();
+            if (timeouts.get(timeout.session) != timeout) {
+                it.remove(); // Unregistered
+                continue;
+            }
+            if (timeout.tick > tick)
+                continue; // Due in a later turn of the wheel
+            it.remove();
+            long dueNanos = timeout.session.getLastActiveNanos() + timeoutNanos;
+            if (timeout.session.getSubscription() != null) {
+                long watchedNanos = timeout.session.getLastPushedNanos() + WATCHING_TIMEOUTS * timeoutNanos;
+                if (watchedNanos - dueNanos > 0)
+                    dueNanos = watchedNanos;
+            }
+            if (dueNanos - now > 0) {
+                rescheduled.add(timeout);
+                timeout.dueNanos = dueNanos;
+            } else {
+                timeouts.remove(timeout.session);
+                idle.add(timeout.session);
+            }
+        }
+        // Only now, as a session may be due again in the same slot
+        for (Timeout timeout : rescheduled)
+            schedule(timeout, timeout.dueNanos);
+    }
+
+    // Put timeout in the slot of the first tick at or after dueNanos, and
+    // after the current tick.
+    private void schedule(Timeout timeout, long dueNanos) {
+        long dueTick = Math.max(tick + 1, (dueNanos - startNanos + tickNanos - 1) / tickNanos);
+        timeout.tick = dueTick;
+        timeouts.put(timeout.session, timeout);
+        wheel.get((int) (dueTick & (WHEEL_SIZE - 1))).add(timeout);
+    }
+
+    /** @return the number of clients watched for idleness. */
+    synchronized int size() {
+        return timeouts.size();
+    }
+
+    /** @return the number of clients disconnected so far for being idle. */
+    long getReaped() {
+        return reaped.get();
+    }
+
+    /**
+     * The tick at which a session is next checked for idleness.
+     */
+    private static class Timeout {
+        private final Session session;
+        private long tick;
+        private long dueNanos;
+
+        Timeout(Session session) {
+            this.session = session;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/* Copyright (c) 2007-2016 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+package minesweeper.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reads the request lines of a client from a blocking stream, as
+ * BufferedReader.readLine does, and tells whether a whole line has already
+ * been received, so that pipelined requests are read without blocking.
+ * Each byte is read as one character, as NioServer reads them.
+ */
+class LineReader implements Closeable {
+
+    // Abstraction function:
+    //      Represents the bytes of in not read as lines yet: buffer[start..end)
+    //      followed by the bytes still in in, of which there are none if
+    //      endOfStream. If afterCarriageReturn, the previous line ended with a
+    //      '\r', so a '\n' right after it is part of the same line terminator.
+    // Representation invariant:
+    //      0 <= start <= end <= buffer.length
+    // Safety from rep exposure:
+    //      All fields are private; readLine returns new Strings.
+    // Thread safety:
+    //      Not thread-safe; a reader is confined to the thread handling its connection.
+
+    /** Size of the buffer each read fills, at least. */
+    private static final int READ_BUFFER_SIZE = 4096;
+
+    private final InputStream in;
+    private final int maxLineLength;
+    private byte[] buffer = new byte[READ_BUFFER_SIZE];
+    private int start = 0;
+    private int end = 0;
+    private boolean afterCarriageReturn = false;
+    private boolean endOfStream = false;
+
+    /**
+     * Make a reader of the lines of a stream.
+     *
+     * @param in the stream
+     * @param maxLineLength the longest line accepted, requires maxLineLength > 0
+     */
+    LineReader(InputStream in, int maxLineLength) {
+        this.in = in;
+        this.maxLineLength = maxLineLength;
+    }
+
+    /**
+     * Read a line, terminated by "\n", "\r", "\r\n", or the end of the stream.
+     *
+     * @return the line without its terminator, or null at the end of the stream
+     * @throws IOException if the stream fails, or the line is longer than
+     *                     the maximum line length
+     */
+    String readLine() throws IOException {
+        while (true) {
+            skipLineFeed();
+            int terminator = findTerminator();
+            if ((terminator >= 0 ? terminator : end) - start > maxLineLength)
+                throw new IOException("line longer than " + maxLineLength + " characters");
+            if (terminator >= 0) {
+                String line = new String(buffer, start, terminator - start, StandardCharsets.ISO_8859_1);
+                afterCarriageReturn = buffer[terminator] == '\r';
+                start = terminator + 1;
+                return line;
+            }
+            if ( ! fill()) {
+                if (start == end)
+                    return null;
+                String line = new String(buffer, start, end - start, StandardCharsets.ISO_8859_1);
+                start = end;
+                return line;
+            }
+        }
+    }
+
+    /**
+     * @return true iff readLine would return a line without blocking, as the
+     *         whole line has already been received
+     */
+    boolean hasLine() {
+        skipLineFeed();
+        return findTerminator() >= 0;
+    }
+
+    // Skip the '\n' of a "\r\n" whose '\r' ended the previous line.
+    private void skipLineFeed() {
+        if (afterCarriageReturn && start < end) {
+            if (buffer[start] == '\n')
+                start++;
+            afterCarriageReturn = false;
+        }
+    }
+
+    // @return: the index of the first line terminator in buffer[start..end), or -1 if none.
+    private int findTerminator() {
+        for (int i = start; i < end; i++)
+            if (buffer[i] == '\n' || buffer[i] == '\r')
+                return i;
+        return -1;
+    }
+
+    // Read more bytes into the buffer, blocking until some are received.
+    // @return: false iff the end of the stream was reached instead.
+    private boolean fill() throws IOException {
+        if (endOfStream)
+            return false;
+        if (start > 0) {
+            System.arraycopy(buffer, start, buffer, 0, end - start);
+            end -= start;
+            start = 0;
+        }
+        if (end == buffer.length)
+            buffer = Arrays.copyOf(buffer, 2 * buffer.length);
+        int count = in.read(buffer, end, buffer.length - end);
+        if (count < 0) {
+            endOfStream = true;
+            return false;
+        }
+        end += count;
+        return true;
+    }
+
+    /**
+     * Close the stream.
+     *
+     * @throws IOException if closing fails
+     */
+    @Override public void close() throws IOException {
+        in.close();
+    }
+}
@@ -4,11 +4,24 @@
 package minesweeper.server;
 
 import java.io.*;
+import java.lang.reflect.Method;
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.Charset;
 import java.util.*;
-import java.util.stream.Stream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import minesweeper.Board;
+import minesweeper.RandomBombGenerator;
 
 /**
  * Multiplayer Minesweeper server.
@@ -16,7 +29,14 @@ import minesweeper.Board;
 public class MinesweeperServer {
 
     // System thread safety argument
-    //   TODO Problem 5
+    //   The boards are thread-safe, and each connection's Session is only
+    //   mutated by the thread handling it, except for its atomic statistics;
+    //   the sessions of the connected clients are kept in a SessionRegistry,
+    //   which is thread-safe, so the number of players never drifts; the
+    //   game rooms are kept in a RoomRegistry, which is thread-safe, so a
+    //   player never joins a room while it is evicted. The IdleReaper only
+    //   closes the connections of idle clients; their handlers then clean up
+    //   as when the clients leave.
 
     /** Default server port. */
     private static final int DEFAULT_PORT = 4444;
@@ -25,16 +45,134 @@ public class MinesweeperServer {
     /** Default square board size. */
     private static final int DEFAULT_SIZE = 10;
 
-    /** Socket for receiving incoming connections. */
+    /**
+     * How the server handles its client connections.
+     */
+    public enum Mode {
+        /** One blocking thread per connection. */
+        THREAD,
+        /** All the connections multiplexed by a single thread with non-blocking I/O. */
+        NIO,
+        /**
+         * One blocking virtual thread per connection, or a bounded pool of
+         * platform threads if the JVM has no virtual threads.
+         */
+        VIRTUAL,
+        /**
+         * A fixed pool of worker threads, each blocking on one connection at a
+         * time, with a bounded queue of connections waiting for a worker.
+         */
+        POOL
+    }
+
+    /** Line sent to a client the server cannot serve now, before disconnecting it. */
+    public static final String REJECTED_MESSAGE = "Server busy: too many players. Try again later.";
+
+    /** Reply to the 'help' request: the grammar of the requests. */
+    private static final String HELP_MESSAGE =
+            "MESSAGE ::= ( LOOK | DIG | FLAG | DEFLAG | DELTA_REQ | RLE_REQ | WATCH_REQ | JOIN | HELP_REQ | BYE )"
+            + " NEWLINE\n" +
+            "LOOK ::= \"look\" (SPACE VERSION | SPACE LEFT SPACE TOP SPACE WIDTH SPACE HEIGHT)?\n" +
+            "DIG ::= \"dig\" SPACE X SPACE Y\n" +
+            "FLAG ::= \"flag\" SPACE X SPACE Y\n" +
+            "DEFLAG ::= \"deflag\" SPACE X SPACE Y\n" +
+            "DELTA_REQ ::= \"delta\"\n" +
+            "RLE_REQ ::= \"rle\"\n" +
+            "WATCH_REQ ::= \"watch\"\n" +
+            "JOIN ::= \"join\" SPACE ROOM\n" +
+            "HELP_REQ ::= \"help\"\n" +
+            "BYE ::= \"bye\"\n" +
+            "NEWLINE ::= \"\\n\" | \"\\r\" \"\\n\"?\n" +
+            "X ::= INT\n" +
+            "Y ::= INT\n" +
+            "LEFT ::= [0-9]+\n" +
+            "TOP ::= [0-9]+\n" +
+            "WIDTH ::= [0-9]+\n" +
+            "HEIGHT ::= [0-9]+\n" +
+            "VERSION ::= [0-9]+\n" +
+            "ROOM ::= [A-Za-z0-9_-]+\n" +
+            "SPACE ::= \" \"\n" +
+            "INT ::= \"-\"? [0-9]+";
+
+    /** Most platform threads used by Mode.VIRTUAL if the JVM has no virtual threads. */
+    private static final int MAX_FALLBACK_THREADS = 1024;
+    /** Longest request line accepted from a client; a longer line disconnects the client. */
+    static final int MAX_LINE_LENGTH = 8192;
+    /** Largest buffer kept by a session to render the windows of the board it requests, in chars. */
+    private static final int MAX_WINDOW_BUFFER = 1 << 16;
+    /** How often the changes of the boards are pushed to the clients watching them. */
+    private static final long WATCH_INTERVAL_MILLIS = 50;
+    /** Most updates waiting for a client watching a board before it is sent the whole board instead. */
+    private static final int WATCH_QUEUE_CAPACITY = 64;
+    /** Most bytes of replies waiting for a client to read them before its requests wait too. */
+    static final int MAX_PENDING_OUTPUT = 1 << 20;
+    /** How long the replies to a client which has left still waiting to be sent are kept trying. */
+    private static final long CLOSE_LINGER_MILLIS = 10_000;
+    /** Line terminator of the replies, as PrintWriter.println writes it. */
+    private static final String NEWLINE = System.lineSeparator();
+    /** Most pipelined requests of a client performed together, see handleRequests. */
+    static final int MAX_BATCH = 64;
+    /** Largest side of the boards of the rooms besides the default room, so that rooms stay small. */
+    private static final int MAX_ROOM_SIZE = 64;
+    /** How often an accept loop waiting for a connection permit checks for shutdown. */
+    private static final long PERMIT_POLL_MILLIS = 100;
+
+    /** Channel for receiving incoming connections. */
+    private final ServerSocketChannel serverChannel;
+    /** Socket of serverChannel, for receiving incoming connections in blocking mode. */
     private final ServerSocket serverSocket;
     /** True if the server should *not* disconnect a client after a BOOM message. */
     private final boolean debug;
 
-    private final Board board;
-
-    private int currentPlayer = 0;
+    /** Seed of the random boards, given by config or picked at random. */
+    private final long seed;
+    /** Seeds of the random boards, one after the other; guarded by itself. */
+    private final SplittableRandom boardSeeds;
+    /** The board file the default room was loaded from, if any. */
+    private final Optional<BoardFile> boardFile;
+    /** The game rooms, starting with the default room. */
+    private final RoomRegistry rooms;
+    /** Saves the board of the default room, if config has a snapshot file. */
+    private final Optional<BoardSnapshotter> snapshotter;
+    /** Journals the moves on the board of the default room, if config has a journal file. */
+    private final Optional<MoveJournal> journal;
+    /** Disconnects the idle clients, if config has an idle timeout. */
+    private final Optional<IdleReaper> reaper;
+    /** Pushes the changes of the boards to the clients watching them. */
+    private final BoardBroadcaster broadcaster = new BoardBroadcaster(WATCH_INTERVAL_MILLIS, WATCH_QUEUE_CAPACITY);
+    /** How the server handles its client connections. */
+    private final ServerConfig config;
+    /**
+     * One permit per connection still allowed by config.getMaxConnections(),
+     * or by maxConnections(config) in Mode.VIRTUAL without virtual threads.
+     */
+    private final Semaphore connectionPermits;
+    /** Sessions of the connected clients. */
+    private final SessionRegistry sessions = new SessionRegistry();
+    private volatile boolean shuttingDown = false;
+    /** Makes the threads sending the replies of the connections in blocking modes. */
+    private final Optional<ThreadFactory> writerThreads;
+    /** Runs the connection handlers in blocking modes, once serve() has started. */
+    private volatile ExecutorService executor = null;
+    /** Front end in Mode.NIO, once serve() has started. */
+    private volatile NioServer nioServer = null;
+    private final AtomicLong acceptedConnections = new AtomicLong();
+    private final AtomicLong rejectedConnections = new AtomicLong();
 
-    // TODO: Abstraction function, rep invariant, rep exposure
+    // Abstraction function:
+    //      Represents a server accepting the clients on serverChannel, as
+    //      config tells, to play in the game rooms of rooms, the default
+    //      room first; the clients connected are the ones of sessions.
+    //      acceptedConnections and rejectedConnections count the clients
+    //      served and turned away since the server started.
+    // Representation invariant:
+    //      connectionPermits has no more permits than the connections allowed;
+    //      snapshotter and journal are present only if config has a snapshot
+    //      file and a journal file, respectively.
+    // Safety from rep exposure:
+    //      All fields are private; getRooms and getSessions return copies
+    //      of the lists, whose rooms and sessions are shared on purpose, as
+    //      they are thread-safe.
 
     /**
      * Make a MinesweeperServer that listens for connections on port.
@@ -46,217 +184,993 @@ public class MinesweeperServer {
      * @throws IOException if an error occurs opening the server socket
      */
     public MinesweeperServer(int port, boolean debug, int sizeX, int sizeY, Optional<File> file) throws IOException {
-        serverSocket = new ServerSocket(port);
+        this(port, debug, sizeX, sizeY, file, ServerConfig.DEFAULT);
+    }
+
+    /**
+     * Make a MinesweeperServer that listens for connections on port, and
+     * handles them as given by config.
+     * 
+     * @param port port number, requires 0 <= port <= 65535
+     * @param debug debug mode flag
+     * @param sizeX the number of columns of the board
+     * @param sizeY the number of rows of the board
+     * @param file if present, the board file to load instead of a random board
+     * @param config how the server handles client connections; if its snapshot
+     *               file exists, the board is restored from it instead; if its
+     *               journal file exists, the moves it holds are replayed on the board;
+     *               with a journal file, a snapshot file which does not exist yet is
+     *               saved before any move
+     * @throws IOException if an error occurs opening the server socket, or
+     *                     reading the board file, the snapshot file or the journal file
+     */
+    public MinesweeperServer(int port, boolean debug, int sizeX, int sizeY, Optional<File> file,
+                             ServerConfig config) throws IOException {
+        this.config = config;
+        this.connectionPermits = new Semaphore(maxConnections(config));
+        this.reaper = config.getIdleTimeoutMillis() > 0
+                ? Optional.of(new IdleReaper(config.getIdleTimeoutMillis())) : Optional.empty();
+        this.writerThreads = newWriterThreadFactory(config.getMode());
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverSocket = serverChannel.socket();
         this.debug = debug;
+        this.seed = config.getSeed().orElseGet(() -> ThreadLocalRandom.current().nextLong());
+        this.boardSeeds = new SplittableRandom(seed);
 
-        if(file.isPresent()) {
+        Board board;
+        Optional<File> snapshotFile = config.getSnapshotFile();
+        if(snapshotFile.isPresent() && snapshotFile.get().isFile()) {
+            // restore the board saved by a previous server
+            boardFile = Optional.empty();
+            try (InputStream in = new BufferedInputStream(new FileInputStream(snapshotFile.get()))) {
+                board = Board.load(in, config.getTileSize());
+            }
+        }else if(file.isPresent()) {
             // read from a board file
-            board = readBoardFromFile(file.get());
+            boardFile = Optional.of(BoardFile.load(file.get()));
+            board = boardFile.get().newBoard(config.getTileSize());
         }else{
+            boardFile = Optional.empty();
             assert sizeX > 0 && sizeY > 0: "sizeX and sizeY must be positive";
-            // A cell contains a bomb with prob 25%
-            board = new Board(sizeY, sizeX, (r, c) -> Math.random() < .25 ? Board.BOMB : Board.NOTBOMB);
+            board = randomBoard(sizeY, sizeX);
         }
+        // The other rooms play random boards of the same size, up to MAX_ROOM_SIZE a side
+        rooms = new RoomRegistry(board,
+                () -> randomBoard(Math.min(board.getRow(), MAX_ROOM_SIZE), Math.min(board.getCol(), MAX_ROOM_SIZE)),
+                config.getMaxRooms(), config.getRoomIdleMillis());
+        snapshotter = snapshotFile.map(f -> new BoardSnapshotter(board, f, config.getSnapshotIntervalMillis()));
+        // The journal only replays on the board it was created for: save a
+        // new board now, else a crash before the first save would restart
+        // on another random board, and lose the moves journaled
+        if (snapshotter.isPresent() && config.getJournalFile().isPresent() && ! snapshotFile.get().isFile())
+            snapshotter.get().save();
+        // Replay the moves made since the snapshot, or since the board was loaded
+        journal = config.getJournalFile().isPresent()
+                ? Optional.of(MoveJournal.open(config.getJournalFile().get(), board)) : Optional.empty();
+        if (snapshotter.isPresent() && journal.isPresent())
+            snapshotter.get().setJournal(journal.get());
     }
 
-    private class Point{
-        final int r, c;
-        Point(int r, int c){ this.r = r; this.c = c; }
-
-        @Override
-        public boolean equals(Object o){
-            if(!(o instanceof Point)){ return false; }
-            Point p = (Point)o;
-            return p.r == r && p.c == c;
+    // Make a random board where a square contains a bomb with prob 25%, from
+    // the next seed; a large board is filled in parallel.
+    private Board randomBoard(int row, int col) {
+        long boardSeed;
+        synchronized (boardSeeds) {
+            boardSeed = boardSeeds.nextLong();
         }
+        return new Board(row, col, new RandomBombGenerator(boardSeed, .25), config.getTileSize());
+    }
 
-        @Override
-        public int hashCode(){
-            return Objects.hash(r, c);
+    /**
+     * Run the server, listening for client connections and handling them
+     * in the mode of its config. Never returns unless shutdown() is called
+     * or an exception is thrown.
+     * 
+     * @throws IOException if the main server socket is broken
+     *                     (IOExceptions from individual clients do *not* terminate serve())
+     */
+    public void serve() throws IOException {
+        snapshotter.ifPresent(BoardSnapshotter::start);
+        broadcaster.start();
+        reaper.ifPresent(IdleReaper::start);
+        switch (config.getMode()) {
+            case NIO:
+                serveNonBlocking();
+                break;
+            case VIRTUAL:
+                serveBlocking(newVirtualThreadExecutor(maxConnections(config)));
+                break;
+            case POOL:
+                serveBlocking(new ThreadPoolExecutor(config.getWorkers(), config.getWorkers(),
+                        0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(config.getQueueCapacity())));
+                break;
+            default:
+                serveBlocking(Executors.newCachedThreadPool());
+                break;
         }
     }
 
     /**
-     * Generate a new board from a given board file (a text file)
-     * @param file the board file to be read, which should have format below:
-     *      rowNum colNum
-     *      ----------> (colNum)
-     *      | c c c c c
-     *      | c c c c c
-     *      | c c c c c c=0(NOTBOMB), 1(BOMB)
-     *      v
-     *      (rowNum)
-     * @return a board generated from file
-     */
-    private Board readBoardFromFile(File file) throws IOException {
-        Set<Point> bombPoint = new HashSet<>();
-        BufferedReader br = new BufferedReader(new FileReader(file));
-
-        int[] sizes = extractIntegersFromString(br.readLine());
-        int rowNum = sizes[0];
-        int colNum = sizes[1];
-        String line = null;
-        for(int i = 0; i < rowNum; i++){
-            line = br.readLine();
-            int[] cellIsBomb = extractIntegersFromString(line);
-            for(int j = 0; j < colNum; j++)
-                if(cellIsBomb[j] == 1) // Cell i,j contains a bomb
-                    bombPoint.add(new Point(i, j));
+     * @param config how the server handles client connections
+     * @return the maximum number of clients connected at the same time:
+     *         config.getMaxConnections(), but at most MAX_FALLBACK_THREADS in
+     *         Mode.VIRTUAL if the JVM has no virtual threads, so that each
+     *         client admitted has a thread of the fallback pool; the others
+     *         wait, or are rejected, as beyond config.getMaxConnections()
+     */
+    private static int maxConnections(ServerConfig config) {
+        if (config.getMode() == Mode.VIRTUAL && ! hasVirtualThreads())
+            return Math.min(config.getMaxConnections(), MAX_FALLBACK_THREADS);
+        return config.getMaxConnections();
+    }
+
+    /**
+     * @return true iff the JVM has virtual threads
+     */
+    private static boolean hasVirtualThreads() {
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        } catch (NoSuchMethodException nsme) {
+            return false;
         }
+    }
 
-        return new Board(rowNum, colNum, (r, c) -> bombPoint.contains(new Point(r, c)));
+    /**
+     * Make an executor running each task on a new virtual thread, or on a
+     * fixed pool of platform threads if the JVM has no virtual threads.
+     * 
+     * @param fallbackThreads number of platform threads used if the JVM has
+     *                        no virtual threads; no more connections may be
+     *                        handled at the same time, as the others would
+     *                        wait in the queue of the pool without a reply
+     * @return the executor
+     */
+    private static ExecutorService newVirtualThreadExecutor(int fallbackThreads) {
+        try {
+            // Looked up reflectively, so that the server still runs on JVMs without virtual threads.
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException roe) {
+            return Executors.newFixedThreadPool(fallbackThreads);
+        }
     }
 
     /**
-     * Extract integers from a string of a single line
-     * @param line the string representing a line
-     * @return the integer array extracted from line
+     * Make a factory of the threads sending the replies of the connections:
+     * virtual threads in Mode.VIRTUAL if the JVM has them. Else a connection
+     * has no such thread, and its handler sends the replies itself, as a
+     * second platform thread per client would halve the clients served.
+     * 
+     * @param mode how the server handles its client connections
+     * @return the factory, or empty if the handlers send the replies
      */
-    private int[] extractIntegersFromString(String line){
-        return Stream.of(line.split("\\s+"))
-                .mapToInt(Integer::parseInt)
-                .toArray();
+    private static Optional<ThreadFactory> newWriterThreadFactory(Mode mode) {
+        if (mode == Mode.VIRTUAL) {
+            try {
+                // Looked up reflectively, as in newVirtualThreadExecutor
+                Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+                return Optional.of((ThreadFactory) Class.forName("java.lang.Thread$Builder")
+                        .getMethod("factory").invoke(builder));
+            } catch (ReflectiveOperationException roe) {
+                // No virtual threads
+            }
+        }
+        return Optional.empty();
     }
 
     /**
-     * Run the server, listening for client connections and handling them.
-     * Never returns unless an exception is thrown.
+     * Accept client connections and handle each of them as a task of executor,
+     * until shutdown() is called.
      * 
+     * @param executor runs the handlers of the connections
      * @throws IOException if the main server socket is broken
-     *                     (IOExceptions from individual clients do *not* terminate serve())
      */
-    public void serve() throws IOException {
+    private void serveBlocking(ExecutorService executor) throws IOException {
+        this.executor = executor;
         while (true) {
+            // block until a connection is allowed, unless excess clients are rejected
+            if ( ! config.isRejectExcess() && ! awaitConnectionPermit())
+                return;
             // block until a client connects
-            Socket socket = serverSocket.accept();
-            currentPlayer++;
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException ioe) {
+                if ( ! config.isRejectExcess())
+                    connectionPermits.release();
+                if (shuttingDown)
+                    return;
+                throw ioe;
+            }
+            if (config.isRejectExcess() && ! connectionPermits.tryAcquire()) {
+                reject(socket);
+                continue;
+            }
+            Session session = connectionOpened(socket.getRemoteSocketAddress(), socket);
 
             // handle the client
-            new Thread(
-                    () -> {
-                        try {
-                            handleConnection(socket);
-                        } catch (IOException e) {
-                            throw new RuntimeException(e);
-                        } finally {
-                            // SOLVED: finally block does not execute
-                            // Adding handler in test to avoid the main thread
-                            // terminates.
-                            try{
-                                socket.close();
-                                currentPlayer--;
-                            }catch (IOException e){
-                                throw new RuntimeException(e);
+            try {
+                executor.execute(
+                        () -> {
+                            try {
+                                handleConnection(socket, session);
+                            } catch (IOException e) {
+                                // Sockets still open after shutdown(), or idle, are closed on purpose
+                                if ( ! shuttingDown && ! socket.isClosed())
+                                    throw new RuntimeException(e);
+                            } finally {
+                                // SOLVED: finally block does not execute
+                                // Adding handler in test to avoid the main thread
+                                // terminates.
+                                // The socket is closed by handleConnection, once the replies are sent
+                                connectionClosed(session);
                             }
                         }
-                    }
-            ).start();
+                );
+            } catch (RejectedExecutionException ree) {
+                // The server is shutting down, or no worker is free and the
+                // queue is full: the client was turned away, not served
+                acceptedConnections.decrementAndGet();
+                connectionClosed(session);
+                reject(socket);
+            }
+        }
+    }
+
+    /**
+     * Wait until a connection is allowed by config.getMaxConnections(), and
+     * take it.
+     * 
+     * @return true iff a connection was taken; false if the server is shutting down
+     */
+    private boolean awaitConnectionPermit() {
+        try {
+            while ( ! connectionPermits.tryAcquire(PERMIT_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (shuttingDown)
+                    return false;
+            }
+            return true;
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return false;
         }
     }
 
     /**
-     * Handle client connections. Returns when client disconnects.
+     * Turn away a client the server cannot serve now: send it REJECTED_MESSAGE
+     * and disconnect it.
      * 
      * @param socket socket where the client is connected
-     * @throws IOException if the connection encounters an error or terminates unexpectedly
      */
-    private void handleConnection(Socket socket) throws IOException {
-        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+    private void reject(Socket socket) {
+        connectionRejected();
+        try {
+            socket.getOutputStream().write(encode(REJECTED_MESSAGE));
+        } catch (IOException ioe) {
+            // The client is disconnected either way.
+        } finally {
+            closeQuietly(socket);
+        }
+    }
+
+    /**
+     * @return true iff clients beyond config.getMaxConnections() are turned
+     *         away instead of waiting
+     */
+    boolean rejectsExcess() {
+        return config.isRejectExcess();
+    }
+
+    /**
+     * Record that a client has been turned away with REJECTED_MESSAGE.
+     */
+    void connectionRejected() {
+        rejectedConnections.incrementAndGet();
+    }
+
+    /**
+     * @return the number of clients the server has started to serve
+     */
+    public long getAcceptedConnections() {
+        return acceptedConnections.get();
+    }
+
+    /**
+     * @return the number of clients the server has turned away with REJECTED_MESSAGE
+     */
+    public long getRejectedConnections() {
+        return rejectedConnections.get();
+    }
+
+    /**
+     * @return the number of clients the server has disconnected for sending
+     *         no request for longer than the idle timeout of its config
+     */
+    public long getReapedConnections() {
+        return reaper.isPresent() ? reaper.get().getReaped() : 0;
+    }
+
+    /**
+     * @return the number of clients currently served
+     */
+    public int getActiveConnections() {
+        return sessions.size();
+    }
+
+    /**
+     * @return how often the players' moves and their reads of the board have
+     *         got in each other's way so far
+     */
+    public Board.Contention getBoardContention() {
+        return rooms.getDefaultRoom().getBoard().contention();
+    }
+
+    /**
+     * @return the seed the random boards are generated from; a server with
+     *         the same seed and board size generates the same boards, in the
+     *         same order
+     */
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * @return the board file the default room was loaded from, with its
+     *         load time and memory usage, or empty if the board is random
+     */
+    public Optional<BoardFile> getBoardFile() {
+        return boardFile;
+    }
+
+    /**
+     * @return a copy of the game rooms, including the default room every
+     *         client starts in
+     */
+    public List<GameRoom> getRooms() {
+        return rooms.rooms();
+    }
+
+    /**
+     * Run the server, multiplexing all the client connections on the calling
+     * thread with non-blocking I/O. Never returns unless shutdown() is called
+     * or an exception is thrown.
+     *
+     * @throws IOException if the main server socket or the selector is broken
+     *                     (IOExceptions from individual clients do *not* terminate serveNonBlocking())
+     */
+    private void serveNonBlocking() throws IOException {
+        NioServer nioServer = new NioServer(this, serverChannel);
+        this.nioServer = nioServer;
+        if (shuttingDown)
+            return;
+        nioServer.serve();
+    }
+
+    /**
+     * Stop accepting connections, and wait for the connected clients to
+     * disconnect; the clients still connected after the timeout are
+     * disconnected. Makes serve() return, stops pushing the changes of
+     * the boards to the clients watching them, and stops disconnecting the
+     * idle clients. Then saves the board one last
+     * time, if the config has a snapshot file, and closes the journal, if
+     * it has a journal file.
+     * 
+     * @param timeout how long to wait for the clients to disconnect
+     * @param unit unit of timeout
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        shuttingDown = true;
+        try {
+            serverChannel.close();
+        } catch (IOException ioe) {
+            // Not accepting connections either way.
+        }
+        NioServer nio = nioServer;
+        if (nio != null)
+            nio.wakeup();
+        ExecutorService handlers = executor;
+        if (handlers != null) {
+            handlers.shutdown();
+            if ( ! handlers.awaitTermination(timeout, unit)) {
+                for (Session session : sessions.sessions())
+                    session.close();
+                handlers.shutdownNow();
+            }
+        }
+        broadcaster.stop();
+        reaper.ifPresent(IdleReaper::stop);
+        if (snapshotter.isPresent()) {
+            try {
+                snapshotter.get().stop();
+            } catch (IOException ioe) {
+                System.err.println("Failed to save the board: " + ioe.getMessage());
+            }
+        }
+        if (journal.isPresent()) {
+            try {
+                journal.get().close();
+            } catch (IOException ioe) {
+                System.err.println("Failed to journal the moves: " + ioe.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Reserve one of the config.getMaxConnections() connections, if any is left.
+     * 
+     * @return true iff a connection was reserved; it is released by
+     *         connectionClosed, or by releaseConnection if no client connects
+     */
+    boolean tryReserveConnection() {
+        return connectionPermits.tryAcquire();
+    }
+
+    /** Release a connection reserved by tryReserveConnection which no client has used. */
+    void releaseConnection() {
+        connectionPermits.release();
+    }
+
+    /**
+     * Record that a client has connected, on a connection reserved from
+     * config.getMaxConnections().
+     * 
+     * @param remoteAddress address of the client, or null if unknown
+     * @param connection closes the connection to the client, e.g. on shutdown
+     * @return the session of the client
+     */
+    Session connectionOpened(SocketAddress remoteAddress, Closeable connection) {
+        acceptedConnections.incrementAndGet();
+        Session session = sessions.register(remoteAddress, connection);
+        rooms.join(RoomRegistry.DEFAULT_ROOM, session);
+        reaper.ifPresent(r -> r.register(session));
+        return session;
+    }
+
+    /**
+     * Record that a client has disconnected, releasing its connection.
+     * 
+     * @param session session of the client, as returned by connectionOpened
+     */
+    void connectionClosed(Session session) {
+        reaper.ifPresent(r -> r.unregister(session));
+        unwatch(session);
+        rooms.leave(session);
+        sessions.unregister(session);
+        connectionPermits.release();
+    }
 
-        // Print hello message once the server accept a connection
-        out.println(String.format("Welcome to Minesweeper. Board: %d columns by %d rows. " +
-                "Players: %d including you. Type 'help' for help.", board.getCol(), board.getRow(), currentPlayer));
+    /**
+     * @return a copy of the sessions of the connected clients, with their
+     *         statistics at the time of the call
+     */
+    public List<Session> getSessions() {
+        return sessions.sessions();
+    }
 
+    // Close a socket, ignoring errors since the connection is over either way.
+    private static void closeQuietly(Socket socket) {
         try {
-            for (String line = in.readLine(); line != null; line = in.readLine()) {
-                String output = handleRequest(line);
-                if (output != null) {
-                    // TODO: Consider improving spec of handleRequest to avoid use of null
-                    out.println(output);
-                    if(output.equals("BOOM!") && !debug)
-                        break;
-                }else{
-                    // Currently, only BYE message returns null;
-                    // and upon receiving BYE, the server disconnects without any return.
-                    // Therefore, we close the socket upon receiving null.
+            socket.close();
+        } catch (IOException ioe) {
+            // The connection is gone either way.
+        }
+    }
+
+    /**
+     * @return the hello message sent to a client once the server has
+     *         registered its session
+     */
+    String welcomeMessage() {
+        return String.format("Welcome to Minesweeper. Board: %d columns by %d rows. " +
+                "Players: %d including you. Type 'help' for help.", rooms.getDefaultRoom().getBoard().getCol(),
+                rooms.getDefaultRoom().getBoard().getRow(), sessions.size());
+    }
+
+    /**
+     * @param output message returned by handleRequest
+     * @return true iff the server should disconnect the client once output,
+     *         if not null, has been sent
+     */
+    boolean isLastReply(String output) {
+        // Currently, only BYE message returns null;
+        // and upon receiving BYE, the server disconnects without any return.
+        return output == null || (output.equals("BOOM!") && !debug);
+    }
+
+    /**
+     * Handle client connections. Returns when client disconnects; the socket
+     * is closed once the last replies are sent, without waiting for them.
+     * 
+     * @param socket socket where the client is connected
+     * @param session session of the client
+     * @throws IOException if the connection encounters an error or terminates unexpectedly
+     */
+    private void handleConnection(Socket socket, Session session) throws IOException {
+        LineReader in;
+        ConnectionWriter out;
+        try {
+            in = new LineReader(socket.getInputStream(), MAX_LINE_LENGTH);
+            // A slow client only slows this handler down, or its writer thread if it has one
+            out = new ConnectionWriter(socket.getOutputStream(), socket, MAX_PENDING_OUTPUT,
+                    CLOSE_LINGER_MILLIS, writerThreads);
+        } catch (IOException ioe) {
+            closeQuietly(socket);
+            throw ioe;
+        }
+
+        try {
+            // Print hello message once the server accept a connection
+            send(out, welcomeMessage(), session);
+            out.flush();
+
+            List<String> inputs = new ArrayList<>();
+            while (true) {
+                String line;
+                try {
+                    line = in.readLine();
+                } catch (SocketTimeoutException ste) {
+                    // Only while the client watches a board: push the changes meanwhile
+                    sendUpdates(out, session);
+                    out.flush();
+                    continue;
+                }
+                if (line == null)
+                    break;
+                // Perform the pipelined requests already received together
+                inputs.clear();
+                inputs.add(line);
+                while (inputs.size() < MAX_BATCH && in.hasLine())
+                    inputs.add(in.readLine());
+                List<String> outputs = handleRequests(inputs, session);
+                // Never acknowledge a move which did not reach the disk
+                if ( ! awaitJournal(session))
                     break;
+                for (String output : outputs) {
+                    if (output != null) {
+                        // TODO: Consider improving spec of handleRequest to avoid use of null
+                        send(out, output, session);
+                    }
                 }
+                boolean last = isLastReply(outputs.get(outputs.size() - 1));
+                if ( ! last)
+                    sendUpdates(out, session);
+                // The replies of the whole batch with a single flush
+                out.flush();
+                if (last)
+                    break;
+                // Stop waiting for requests now and then to push the changes of the board watched, if any
+                socket.setSoTimeout(session.getSubscription() != null ? (int) WATCH_INTERVAL_MILLIS : 0);
             }
         } finally {
             // SOLVED: finally block does not execute
             // Adding handler in test to avoid the main thread
             // terminates.
             out.close();
-            in.close();
         }
     }
 
+    // Send the changes of the board watched by a client waiting for it, if any.
+    private void sendUpdates(ConnectionWriter out, Session session) throws IOException {
+        List<String> updates = watchUpdates(session);
+        for (String update : updates)
+            send(out, update, session);
+        if ( ! updates.isEmpty())
+            session.updatesPushed();
+    }
+
+    /**
+     * Send a message to a client, followed by a NEWLINE.
+     * 
+     * @param out writer to the client
+     * @param message the message, in ASCII as is the whole protocol
+     * @param session session of the client
+     * @throws IOException if the writer has failed, or the client is too slow
+     *                     to read and the thread is interrupted
+     */
+    private static void send(ConnectionWriter out, String message, Session session) throws IOException {
+        byte[] bytes = encode(message);
+        // Count the bytes first, so that a client which has read the message sees them counted
+        session.bytesSent(bytes.length);
+        out.send(bytes);
+    }
+
+    /**
+     * Encode a message to a client, followed by a NEWLINE, as sent on the wire.
+     * 
+     * @param message the message, in ASCII as is the whole protocol
+     * @return the bytes to send
+     */
+    static byte[] encode(String message) {
+        return (message + NEWLINE).getBytes(Charset.defaultCharset());
+    }
+
     /**
      * Handler for client input, performing requested operations and returning an output message.
      * 
      * @param input message from client
-     * @return message to client, or null if none
+     * @param session protocol state of the client's connection
+     * @return message to client, or null if none, or if its move could not
+     *         be journaled
+     */
+    String handleRequest(String input, Session session) {
+        String reply = handleRequests(Collections.singletonList(input), session).get(0);
+        return awaitJournal(session) ? reply : null;
+    }
+
+    /**
+     * Handler for consecutive requests of a client, pipelined without waiting
+     * for the replies: parses them once, and performs them in order, locking
+     * the tiles of the board of the client's room which the runs of several
+     * moves on it touch once for the run; a JOIN is performed on its own,
+     * without locking the board. Does not wait for their
+     * moves to be journaled: the replies are sent once awaitJournal returns,
+     * or whenJournaled tells.
+     * 
+     * @param inputs messages from client, in the order received
+     * @param session protocol state of the client's connection
+     * @return one message to client per input (null if none), up to the first
+     *         one after which the client is disconnected, see isLastReply;
+     *         the inputs after it are not performed
      */
-    private String handleRequest(String input) {
-        String regex = "(look)|(help)|(bye)|"
-                     + "(dig -?\\d+ -?\\d+)|(flag -?\\d+ -?\\d+)|(deflag -?\\d+ -?\\d+)";
-        if ( ! input.matches(regex)) {
-            // invalid input
-            // TODO Problem 5
-            return "Invalid command";
+    List<String> handleRequests(List<String> inputs, Session session) {
+        List<Command> commands = session.getParser().parseAll(inputs);
+        List<String> replies = new ArrayList<>(inputs.size());
+        while (replies.size() < inputs.size() && (replies.isEmpty() || !isLastReply(replies.get(replies.size() - 1)))) {
+            Board board = session.getRoom().getBoard();
+            // The run ends before the next JOIN, as it changes the board, or
+            // at a JOIN or BYE
+            int end = replies.size();
+            int moves = 0;
+            while (end < commands.size()) {
+                Command command = commands.get(end);
+                if (command.getType() == Command.Type.JOIN && end > replies.size())
+                    break;
+                end++;
+                if (command.isMove())
+                    moves++;
+                if (command.getType() == Command.Type.JOIN || command.getType() == Command.Type.BYE)
+                    break;
+            }
+            int runEnd = end;
+            Runnable perform = () -> {
+                while (replies.size() < runEnd) {
+                    session.commandHandled();
+                    Command command = commands.get(replies.size());
+                    String reply = execute(command, session);
+                    replies.add(reply);
+                    if (command.isMove())
+                        moved(board, session);
+                    // The moves on another board must not be made under the lock of this one
+                    if (isLastReply(reply) || session.getRoom().getBoard() != board)
+                        return;
+                }
+            };
+            // Read-only runs, and single moves, take no more tile locks than they need
+            if (moves > 1) {
+                int[] rows = new int[moves];
+                int[] cols = new int[moves];
+                int count = 0;
+                for (int i = replies.size(); i < runEnd; i++) {
+                    if (commands.get(i).isMove()) {
+                        rows[count] = commands.get(i).getY();
+                        cols[count] = commands.get(i).getX();
+                        count++;
+                    }
+                }
+                board.batch(rows, cols, count, perform);
+            } else {
+                perform.run();
+            }
         }
-        String[] tokens = input.split(" ");
-        if (tokens[0].equals("look")) {
-            // 'look' request
-            // TODO Problem 5
-            return board.toString();
-        } else if (tokens[0].equals("help")) {
-            // 'help' request
-            // TODO Problem 5
-            return  "MESSAGE ::= ( LOOK | DIG | FLAG | DEFLAG | HELP_REQ | BYE ) NEWLINE\n" +
-                    "LOOK ::= \"look\"\n" +
-                    "DIG ::= \"dig\" SPACE X SPACE Y\n" +
-                    "FLAG ::= \"flag\" SPACE X SPACE Y\n" +
-                    "DEFLAG ::= \"deflag\" SPACE X SPACE Y\n" +
-                    "HELP_REQ ::= \"help\"\n" +
-                    "BYE ::= \"bye\"\n" +
-                    "NEWLINE ::= \"\\n\" | \"\\r\" \"\\n\"?\n" +
-                    "X ::= INT\n" +
-                    "Y ::= INT\n" +
-                    "SPACE ::= \" \"\n" +
-                    "INT ::= \"-\"? [0-9]+";
-        } else if (tokens[0].equals("bye")) {
-            // 'bye' request
-            // TODO Problem 5
-            return null;
-        } else {
-            int x = Integer.parseInt(tokens[1]);
-            int y = Integer.parseInt(tokens[2]);
-            if (tokens[0].equals("dig")) {
-                // 'dig r y' request
-                // TODO Problem 5
-                // Note that in board data structure,
-                // we use (row, col) rep, where row=y, col=x here.
-                boolean isBomb = board.dig(y, x);
-                if (isBomb)
+        return replies;
+    }
+
+    /**
+     * Perform a request of a client.
+     * 
+     * @param command request of the client
+     * @param session protocol state of the client's connection
+     * @return message to client, or null if none
+     */
+    private String execute(Command command, Session session) {
+        Board board = session.getRoom().getBoard();
+        // Note that in board data structure,
+        // we use (row, col) rep, where row=y, col=x here.
+        switch (command.getType()) {
+            case LOOK:
+                // 'look' request
+                if (session.isDeltaMode())
+                    return boardReply(board, session);
+                return render(board.toString(), session);
+            case LOOK_SINCE:
+                // 'look VERSION' request
+                return deltaReply(board, command.getVersion(), session);
+            case LOOK_WINDOW:
+                // 'look left top width height' request
+                return windowReply(board, command, session);
+            case DELTA:
+                // 'delta' request: from now on, reply to moves with the changed squares only
+                session.enableDeltaMode();
+                return boardReply(board, session);
+            case RLE:
+                // 'rle' request: from now on, send the boards run-length encoded
+                session.enableRleMode();
+                if (session.isDeltaMode())
+                    return boardReply(board, session);
+                return render(board.toString(), session);
+            case JOIN:
+                // 'join ROOM' request: play on the board of that room from now on
+                Optional<GameRoom> room = rooms.join(command.getRoom(), session);
+                if ( ! room.isPresent())
+                    return "Too many rooms";
+                board = room.get().getBoard();
+                session.setKnownVersion(0);
+                if (session.getSubscription() != null)
+                    return watch(board, session);
+                if (session.isDeltaMode())
+                    return boardReply(board, session);
+                return render(board.toString(), session);
+            case WATCH:
+                // 'watch' request: from now on, push the changes of the board
+                return watch(board, session);
+            case HELP:
+                // 'help' request
+                return HELP_MESSAGE;
+            case BYE:
+                // 'bye' request
+                return null;
+            case DIG:
+                // 'dig x y' request
+                if (board.dig(command.getY(), command.getX()))
                     return "BOOM!";
-                else
-                    return board.toString();
-            } else if (tokens[0].equals("flag")) {
-                // 'flag r y' request
-                // TODO Problem 5
-                board.flag(y, x);
-                return board.toString();
-            } else if (tokens[0].equals("deflag")) {
-                // 'deflag r y' request
-                // TODO Problem 5
-                board.deflag(y, x);
-                return board.toString();
-            }
+                return moveReply(board, session);
+            case FLAG:
+                // 'flag x y' request
+                board.flag(command.getY(), command.getX());
+                return moveReply(board, session);
+            case DEFLAG:
+                // 'deflag x y' request
+                board.deflag(command.getY(), command.getX());
+                return moveReply(board, session);
+            case INVALID:
+                return "Invalid command";
+            default:
+                throw new AssertionError("Unknown command type " + command.getType());
+        }
+    }
+
+    // Record the version a move of a client just made on board took it to,
+    // if the moves on board are journaled and the move changed it.
+    private void moved(Board board, Session session) {
+        if ( ! journal.isPresent() || journal.get().getBoard() != board)
+            return;
+        long version = board.getLastMoveVersion();
+        if (version > 0)
+            session.setJournaledVersion(version);
+    }
+
+    /**
+     * Wait until the moves of a client are on disk, if they are journaled;
+     * the moves of the other players made since are not waited for. The
+     * journal forces the moves of all the players waiting at the same time
+     * to disk together.
+     *
+     * @param session protocol state of the client's connection
+     * @return true iff the moves of the client are on disk, or not journaled;
+     *         false if the journal has failed, or the thread was interrupted,
+     *         and the moves must not be acknowledged
+     */
+    private boolean awaitJournal(Session session) {
+        if ( ! journal.isPresent())
+            return true;
+        try {
+            return journal.get().awaitDurable(session.getJournaledVersion());
+        } catch (InterruptedException ie) {
+            // The server is shutting down; the move may never reach the disk
+            Thread.currentThread().interrupt();
+            return false;
         }
-        // TODO: Should never get here, make sure to return in each of the cases above
-        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Tell when the moves of a client are on disk, if they are journaled,
+     * without waiting for them, as awaitJournal does.
+     *
+     * @param session protocol state of the client's connection
+     * @param callback run once, from another thread, when the moves of the
+     *                 client are on disk, or the journal has failed
+     * @return true iff there is nothing to wait for: the moves of the client
+     *         are on disk, are not journaled, or never will be, as told by
+     *         isJournaled; then callback is not run
+     */
+    boolean whenJournaled(Session session, Runnable callback) {
+        return ! journal.isPresent() || journal.get().whenDurable(session.getJournaledVersion(), callback);
+    }
+
+    /**
+     * @param session protocol state of the client's connection
+     * @return true iff the moves of the client are on disk, or not journaled;
+     *         false if they are not on disk yet, or the journal has failed
+     *         and they must not be acknowledged
+     */
+    boolean isJournaled(Session session) {
+        return ! journal.isPresent() || journal.get().isDurable(session.getJournaledVersion());
+    }
+
+    /**
+     * Reply to a dig, flag or deflag request which did not BOOM.
+     *
+     * @param board board of the client's room
+     * @param session protocol state of the client's connection
+     * @return the whole board, or the changes since the client's last known
+     *         version if the client has switched to delta replies
+     */
+    private String moveReply(Board board, Session session) {
+        if (session.isDeltaMode())
+            return deltaReply(board, session.getKnownVersion(), session);
+        return render(board.toString(), session);
+    }
+
+    /**
+     * Encode a board, or a window of a board, for a client.
+     *
+     * @param board the board as displayed by 'look'
+     * @param session protocol state of the client's connection
+     * @return board run-length encoded as specified by RunLengthEncoder if
+     *         the client has switched to run-length encoded boards, else board
+     */
+    private static String render(CharSequence board, Session session) {
+        if (session.isRleMode())
+            return RunLengthEncoder.encode(board);
+        return board.toString();
+    }
+
+    /**
+     * Reply to a 'look LEFT TOP WIDTH HEIGHT' request with the rows of the
+     * window of the board whose top left square is (LEFT, TOP), as in a plain
+     * 'look' reply, clipped to the right and bottom of the board, which the
+     * client knows the size of; or with an empty line if the window is
+     * outside the board. Costs time proportional to the size of the window.
+     *
+     * @param board board of the client's room
+     * @param command the request
+     * @param session protocol state of the client's connection
+     * @return the reply
+     */
+    private String windowReply(Board board, Command command, Session session) {
+        // Clip the window to the board, in long to avoid overflows; the
+        // parser only accepts windows from (0, 0) on
+        long x0 = command.getX();
+        long y0 = command.getY();
+        long x1 = Math.min((long) command.getX() + command.getWidth(), board.getCol());
+        long y1 = Math.min((long) command.getY() + command.getHeight(), board.getRow());
+        if (x1 <= x0 || y1 <= y0)
+            return "";
+        StringBuilder window = session.getWindowBuffer();
+        window.setLength(0);
+        board.render((int) y0, (int) x0, (int) (y1 - y0), (int) (x1 - x0), window);
+        String reply = render(window, session);
+        // Keep a buffer for small windows only, not one for the largest window ever requested
+        if (window.capacity() > MAX_WINDOW_BUFFER) {
+            window.setLength(0);
+            window.trimToSize();
+        }
+        return reply;
+    }
+
+    /**
+     * Reply with the whole board, preceded by its version:
+     * <pre>
+     *   BOARD ::= "BOARD" SPACE VERSION NEWLINE (LINE NEWLINE)* LINE
+     * </pre>
+     * where each LINE is a row of the board as in a plain 'look' reply, run-length
+     * encoded if the client has sent 'rle'.
+     *
+     * @param board board of the client's room
+     * @param session protocol state of the client's connection
+     * @return the reply
+     */
+    private String boardReply(Board board, Session session) {
+        return boardMessage(board.snapshot(), session);
+    }
+
+    // Render a BOARD reply, see boardReply, and record that the client knows that version.
+    private String boardMessage(Board.Snapshot snapshot, Session session) {
+        session.setKnownVersion(snapshot.getVersion());
+        return "BOARD " + snapshot.getVersion() + "\n" + render(snapshot.toString(), session);
+    }
+
+    /**
+     * Reply to a 'watch' request: subscribe the client to the changes of a
+     * board, which are then pushed to it without being requested, in
+     * messages as a DELTA reply (see deltaReply). A client which reads the
+     * changes slower than they are made is sent the whole board instead, in
+     * a message as a BOARD reply (see boardReply). A client which watches a
+     * board and joins another room watches the board of that room instead.
+     *
+     * @param board board of the client's room
+     * @param session protocol state of the client's connection
+     * @return the whole board, as a BOARD reply, to which the changes pushed
+     *         afterwards apply
+     */
+    private String watch(Board board, Session session) {
+        BoardBroadcaster.Subscription subscription = session.getSubscription();
+        if (subscription == null || subscription.getBoard() != board) {
+            unwatch(session);
+            subscription = broadcaster.subscribe(board, session.getWakeup());
+            session.setSubscription(subscription);
+        }
+        // Taken once subscribed, so that no change is missed in between
+        Board.Snapshot snapshot = board.snapshot();
+        subscription.synced(snapshot.getVersion());
+        return boardMessage(snapshot, session);
+    }
+
+    // Stop pushing the changes of its board to a client, if it watches one.
+    private void unwatch(Session session) {
+        if (session.getSubscription() != null) {
+            broadcaster.unsubscribe(session.getSubscription());
+            session.setSubscription(null);
+        }
+    }
+
+    /**
+     * Take the changes of the board waiting to be pushed to a client which
+     * watches it, see watch. Called by the thread handling the connection.
+     *
+     * @param session protocol state of the client's connection
+     * @return the messages to send to the client, in order; empty if none,
+     *         or if the client watches no board
+     */
+    List<String> watchUpdates(Session session) {
+        BoardBroadcaster.Subscription subscription = session.getSubscription();
+        if (subscription == null)
+            return Collections.emptyList();
+        return subscription.drain(snapshot -> boardMessage(snapshot, session));
+    }
+
+    /**
+     * Reply with the squares which changed since a version of the board:
+     * <pre>
+     *   DELTA ::= "DELTA" SPACE VERSION SPACE VERSION SPACE INT (NEWLINE X SPACE Y SPACE STATE)*
+     * </pre>
+     * i.e. the version the changes are relative to, the current version and
+     * the number of changed squares, followed by one line per changed square
+     * with its current state as displayed by 'look'. If the changes since
+     * that version are no longer known, reply with the whole board as in
+     * boardReply instead.
+     *
+     * @param board board of the client's room
+     * @param since version of the board known to the client
+     * @param session protocol state of the client's connection
+     * @return the reply
+     */
+    private String deltaReply(Board board, long since, Session session) {
+        Optional<Board.Delta> diff = board.diff(since);
+        if ( ! diff.isPresent())
+            return boardReply(board, session);
+        session.setKnownVersion(diff.get().getToVersion());
+        return deltaMessage(diff.get());
+    }
+
+    /**
+     * Render a DELTA reply, see deltaReply.
+     *
+     * @param delta the changed squares
+     * @return the reply
+     */
+    static String deltaMessage(Board.Delta delta) {
+        StringBuilder reply = new StringBuilder("DELTA " + delta.getFromVersion() + " " + delta.getToVersion()
+                + " " + delta.size());
+        for (int k = 0; k < delta.size(); k++) {
+            // Note that X is the column and Y the row, see 'dig X Y'.
+            reply.append('\n').append(delta.getCol(k)).append(' ').append(delta.getRow(k))
+                    .append(' ').append(delta.getState(k));
+        }
+        return reply.toString();
     }
 
     /**
@@ -264,6 +1178,11 @@ public class MinesweeperServer {
      * 
      * <br> Usage:
      *      MinesweeperServer [--debug | --no-debug] [--port PORT] [--size SIZE_X,SIZE_Y | --file FILE]
+     *                        [--mode MODE] [--max-connections MAX] [--reject-excess]
+     *                        [--workers WORKERS] [--queue QUEUE] [--tile-size TILE]
+     *                        [--max-rooms ROOMS] [--room-idle-timeout SECONDS]
+     *                        [--snapshot SNAPSHOT] [--snapshot-interval SECONDS] [--journal JOURNAL]
+     *                        [--seed SEED] [--idle-timeout SECONDS]
      * 
      * <br> The --debug argument means the server should run in debug mode. The server should disconnect a
      *      client after a BOOM message if and only if the --debug flag was NOT given.
@@ -287,16 +1206,70 @@ public class MinesweeperServer {
      * <br> The board file format, for use with the "--file" option, is specified by the following grammar:
      * <pre>
      *   FILE ::= BOARD LINE+
-     *   BOARD ::= X SPACE Y NEWLINE
-     *   LINE ::= (VAL SPACE)* VAL NEWLINE
+     *   BOARD ::= ROWS SPACE COLS SPACE? NEWLINE
+     *   LINE ::= (VAL SPACE)* VAL SPACE? NEWLINE
      *   VAL ::= 0 | 1
-     *   X ::= INT
-     *   Y ::= INT
-     *   SPACE ::= " "
+     *   ROWS ::= INT
+     *   COLS ::= INT
+     *   SPACE ::= [ \t\x0B\f]+
      *   NEWLINE ::= "\n" | "\r" "\n"?
      *   INT ::= [0-9]+
      * </pre>
+     * with ROWS lines of COLS values each, see BoardFile.
+     * 
+     * <br> MODE is an optional argument specifying how the server handles client connections: "thread"
+     *      (the default) handles each connection on its own thread, "nio" multiplexes all the connections
+     *      on a single thread with non-blocking I/O, "virtual" handles each connection on its own virtual
+     *      thread (or on a pool of 1024 threads if the JVM has no virtual threads; MAX is then at most
+     *      1024), "pool" handles the connections on a fixed pool of WORKERS threads (default 64), with up
+     *      to QUEUE connections (default 256) waiting for a free worker; further connections are rejected.
+     *      All the modes speak the same protocol.
+     * <br> E.g. "MinesweeperServer --mode nio" starts the server in non-blocking mode.
+     * 
+     * <br> MAX is an optional positive integer, the maximum number of clients connected at the same time.
+     *      Further clients wait until a connected client leaves, or, if --reject-excess is given, are sent
+     *      a rejection line and disconnected. By default there is no limit.
+     * <br> E.g. "MinesweeperServer --max-connections 10000" serves at most 10000 clients at a time.
+     * 
+     * <br> TILE is an optional positive integer: the board is partitioned into TILE x TILE tiles, and moves
+     *      on different tiles are played in parallel. By default the whole board is a single tile.
+     * <br> E.g. "MinesweeperServer --size 1000,1000 --tile-size 64" lets players on distant squares of a
+     *      large board move in parallel.
+     * 
+     * <br> ROOMS is an optional non-negative integer, the maximum number of game rooms besides the default
+     *      room every client starts in (default 10000). A client moves to another room, created on demand
+     *      with a random board of the same size as the default board but at most 64x64, with "join ROOM".
+     *      A room without players is evicted after SECONDS seconds (default 60).
+     * <br> E.g. "MinesweeperServer --size 8,8 --max-rooms 5000 --room-idle-timeout 30" hosts thousands of
+     *      small games.
+     * 
+     * <br> SNAPSHOT is an optional file the board of the default room is saved to every SECONDS seconds
+     *      (default 10) if it has changed, and once more on shutdown. If SNAPSHOT exists when the server
+     *      starts, the board is restored from it instead of being loaded from FILE or generated.
+     * <br> E.g. "MinesweeperServer --size 2000,2000 --snapshot game.bin" keeps the game across restarts.
+     * 
+     * <br> JOURNAL is an optional file every move changing the board of the default room is appended to
+     *      before it is answered; the moves of concurrent players are forced to disk together. If JOURNAL
+     *      exists when the server starts, its moves after the version of the starting board are replayed,
+     *      so a crashed server resumes at its last answered move. It requires a board which does not change
+     *      across restarts: SNAPSHOT, which is then saved on startup if it does not exist yet, FILE, or a
+     *      random board with a given SEED; JOURNAL records the size and a fingerprint of the board it was
+     *      created for, and the server does not start on another board. Each time SNAPSHOT is saved, the
+     *      moves it holds are dropped from JOURNAL.
+     * <br> E.g. "MinesweeperServer --file board.txt --snapshot game.bin --journal game.log" loses no move
+     *      on a crash.
      * 
+     * <br> SEED is an optional integer the random boards are generated from, so that the same SEED and
+     *      SIZE_X,SIZE_Y give the same boards. By default a random seed is picked, and printed on startup.
+     * <br> E.g. "MinesweeperServer --size 10000,10000 --seed 42" replays a game on a large board.
+     *
+     * <br> --idle-timeout disconnects the clients which send no request for SECONDS seconds, so that dead or
+     *      abandoned connections do not hold a thread and a socket forever. The clients watching a board stay
+     *      connected as long as its changes are pushed to them, up to a few times SECONDS after the last push.
+     *      By default, or with 0 seconds, idle clients stay connected.
+     * <br> E.g. "MinesweeperServer --max-connections 10000 --idle-timeout 300" frees the connections of the
+     *      clients gone for five minutes.
+     *
      * <br> If neither --file nor --size is given, generate a random board of size 10x10.
      * 
      * <br> Note that --file and --size may not be specified simultaneously.
@@ -310,6 +1283,7 @@ public class MinesweeperServer {
         int sizeX = DEFAULT_SIZE;
         int sizeY = DEFAULT_SIZE;
         Optional<File> file = Optional.empty();
+        ServerConfig config = ServerConfig.DEFAULT;
 
         Queue<String> arguments = new LinkedList<String>(Arrays.asList(args));
         try {
@@ -337,6 +1311,69 @@ public class MinesweeperServer {
                         if ( ! file.get().isFile()) {
                             throw new IllegalArgumentException("file not found: \"" + file.get() + "\"");
                         }
+                    } else if (flag.equals("--mode")) {
+                        String name = arguments.remove();
+                        try {
+                            config = config.withMode(Mode.valueOf(name.toUpperCase(Locale.ROOT)));
+                        } catch (IllegalArgumentException iae) {
+                            throw new IllegalArgumentException("unknown mode: \"" + name + "\"");
+                        }
+                    } else if (flag.equals("--max-connections")) {
+                        int maxConnections = Integer.parseInt(arguments.remove());
+                        if (maxConnections <= 0) {
+                            throw new IllegalArgumentException("max connections " + maxConnections + " must be positive");
+                        }
+                        config = config.withMaxConnections(maxConnections);
+                    } else if (flag.equals("--reject-excess")) {
+                        config = config.withRejectExcess(true);
+                    } else if (flag.equals("--workers")) {
+                        int workers = Integer.parseInt(arguments.remove());
+                        if (workers <= 0) {
+                            throw new IllegalArgumentException("workers " + workers + " must be positive");
+                        }
+                        config = config.withWorkers(workers);
+                    } else if (flag.equals("--queue")) {
+                        int queueCapacity = Integer.parseInt(arguments.remove());
+                        if (queueCapacity <= 0) {
+                            throw new IllegalArgumentException("queue " + queueCapacity + " must be positive");
+                        }
+                        config = config.withQueueCapacity(queueCapacity);
+                    } else if (flag.equals("--tile-size")) {
+                        int tileSize = Integer.parseInt(arguments.remove());
+                        if (tileSize <= 0) {
+                            throw new IllegalArgumentException("tile size " + tileSize + " must be positive");
+                        }
+                        config = config.withTileSize(tileSize);
+                    } else if (flag.equals("--max-rooms")) {
+                        int maxRooms = Integer.parseInt(arguments.remove());
+                        if (maxRooms < 0) {
+                            throw new IllegalArgumentException("max rooms " + maxRooms + " must not be negative");
+                        }
+                        config = config.withMaxRooms(maxRooms);
+                    } else if (flag.equals("--room-idle-timeout")) {
+                        long seconds = Long.parseLong(arguments.remove());
+                        if (seconds < 0) {
+                            throw new IllegalArgumentException("room idle timeout " + seconds + " must not be negative");
+                        }
+                        config = config.withRoomIdleMillis(TimeUnit.SECONDS.toMillis(seconds));
+                    } else if (flag.equals("--idle-timeout")) {
+                        long seconds = Long.parseLong(arguments.remove());
+                        if (seconds < 0) {
+                            throw new IllegalArgumentException("idle timeout " + seconds + " must not be negative");
+                        }
+                        config = config.withIdleTimeoutMillis(TimeUnit.SECONDS.toMillis(seconds));
+                    } else if (flag.equals("--snapshot")) {
+                        config = config.withSnapshotFile(Optional.of(new File(arguments.remove())));
+                    } else if (flag.equals("--snapshot-interval")) {
+                        long seconds = Long.parseLong(arguments.remove());
+                        if (seconds <= 0) {
+                            throw new IllegalArgumentException("snapshot interval " + seconds + " must be positive");
+                        }
+                        config = config.withSnapshotIntervalMillis(TimeUnit.SECONDS.toMillis(seconds));
+                    } else if (flag.equals("--journal")) {
+                        config = config.withJournalFile(Optional.of(new File(arguments.remove())));
+                    } else if (flag.equals("--seed")) {
+                        config = config.withSeed(OptionalLong.of(Long.parseLong(arguments.remove())));
                     } else {
                         throw new IllegalArgumentException("unknown option: \"" + flag + "\"");
                     }
@@ -346,14 +1383,24 @@ public class MinesweeperServer {
                     throw new IllegalArgumentException("unable to parse number for " + flag);
                 }
             }
+            if (config.getJournalFile().isPresent() && ! file.isPresent()
+                    && ! config.getSeed().isPresent() && ! config.getSnapshotFile().isPresent()) {
+                throw new IllegalArgumentException("--journal requires --file, --seed or --snapshot,"
+                        + " so that the moves are replayed on the same board");
+            }
         } catch (IllegalArgumentException iae) {
             System.err.println(iae.getMessage());
-            System.err.println("usage: MinesweeperServer [--debug | --no-debug] [--port PORT] [--size SIZE_X,SIZE_Y | --file FILE]");
+            System.err.println("usage: MinesweeperServer [--debug | --no-debug] [--port PORT] [--size SIZE_X,SIZE_Y | --file FILE]"
+                    + " [--mode thread|nio|virtual|pool] [--max-connections MAX] [--reject-excess]"
+                    + " [--workers WORKERS] [--queue QUEUE] [--tile-size TILE]"
+                    + " [--max-rooms ROOMS] [--room-idle-timeout SECONDS]"
+                    + " [--snapshot SNAPSHOT] [--snapshot-interval SECONDS] [--journal JOURNAL]"
+                    + " [--seed SEED] [--idle-timeout SECONDS]");
             return;
         }
 
         try {
-            runMinesweeperServer(debug, file, sizeX, sizeY, port);
+            runMinesweeperServer(debug, file, sizeX, sizeY, port, config);
         } catch (IOException ioe) {
             throw new RuntimeException(ioe);
         }
@@ -374,10 +1421,28 @@ public class MinesweeperServer {
      * @throws IOException if a network error occurs
      */
     public static void runMinesweeperServer(boolean debug, Optional<File> file, int sizeX, int sizeY, int port) throws IOException {
+        runMinesweeperServer(debug, file, sizeX, sizeY, port, ServerConfig.DEFAULT);
+    }
+
+    /**
+     * Start a MinesweeperServer as in runMinesweeperServer(debug, file, sizeX, sizeY, port), handling
+     * client connections as given by config.
+     * 
+     * @param config how the server handles client connections.
+     * @throws IOException if a network error occurs
+     */
+    public static void runMinesweeperServer(boolean debug, Optional<File> file, int sizeX, int sizeY, int port,
+                                            ServerConfig config) throws IOException {
         
         // TODO: Continue implementation here in problem 4
         
-        MinesweeperServer server = new MinesweeperServer(port, debug, sizeX, sizeY, file);
+        MinesweeperServer server = new MinesweeperServer(port, debug, sizeX, sizeY, file, config);
+        if (server.getBoardFile().isPresent())
+            System.err.println("Loaded " + file.get() + ": " + server.getBoardFile().get());
+        System.err.println("Random boards seeded with " + server.getSeed());
+        if (server.journal.isPresent())
+            System.err.println("Replayed " + server.journal.get().getReplayed() + " moves from "
+                    + config.getJournalFile().get());
         server.serve();
     }
 }
@@ -0,0 +1,579 @@
+/* Copyright (c) 2007-2016 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+package minesweeper.server;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import minesweeper.Board;
+
+/**
+ * Append-only journal of the moves which changed a board, from which the
+ * board is replayed after a crash. The moves are written and forced to disk
+ * by a background thread in batches, so that the players moving while a
+ * batch is forced share the next force. Once a snapshot of the board is on
+ * disk, the journal can be rotated to it: the moves the snapshot holds are
+ * dropped, so that the file and the replay do not grow without bound.
+ * <p>
+ * The journal file is:
+ * <pre>
+ *   JOURNAL ::= MAGIC FORMAT ROWS COLS START FINGERPRINT RECORD*
+ *   RECORD ::= VERSION MOVE ROW COL CRC
+ * </pre>
+ * where MAGIC is the int 0x4D53574A ("MSWJ"), FORMAT the short 2, ROWS and
+ * COLS ints, the size of the board, START a long, the version of the board
+ * when the journal was created or last rotated, and FINGERPRINT the int CRC-32 of the
+ * uncompressed Board.save snapshot of the board at START, which tells it
+ * apart from other boards of the same size. In a RECORD, VERSION is a long,
+ * the version of the board after the move, MOVE a byte, the ordinal of a
+ * Board.Move, ROW and COL ints, and CRC the int CRC-32 of the record before
+ * it, all big-endian. The versions of the records increase, by one except
+ * after a restart on a snapshot ahead of the journal. A crash may leave a
+ * torn record at the end, which is discarded.
+ */
+class MoveJournal implements Board.MoveListener, Closeable {
+
+    // Abstraction function:
+    //      Represents the journal in file of the moves of board: the moves up
+    //      to durableVersion are on disk, the moves up to appendedVersion are
+    //      on disk, being written from writing, or waiting in filling;
+    //      replayed moves were replayed into board when the journal was opened.
+    //      Each callback of callbacks is run once the moves up to its key
+    //      are on disk, or once the committer has stopped. channel holds
+    //      the records after startVersion; the file is to be rotated to
+    //      rotationVersion, with rotationFingerprint, if rotationVersion >= 0.
+    //      records, commits and rotations count the moves appended, the
+    //      batches forced and the rotations of the file.
+    // Representation invariant:
+    //      durableVersion <= appendedVersion;
+    //      filling holds whole records, from position 0 to its position.
+    // Safety from rep exposure:
+    //      All fields are private; the board is shared on purpose, as it is
+    //      the game being journaled.
+    // Thread safety:
+    //      filling, appendedVersion, durableVersion, callbacks, closed, stopped,
+    //      failure, rotationVersion, rotationFingerprint, crc and the counters
+    //      are guarded by lock; the callbacks are run outside of it; writing,
+    //      channel and startVersion are confined to the committer thread once
+    //      it has started, which swaps the buffers under lock. moved is called by the board in version order.
+
+    private static final int MAGIC = 0x4D53574A; // "MSWJ"
+    private static final int FORMAT = 2;
+    /** Size of the header of a journal file. */
+    static final int HEADER_SIZE = 26;
+    /** Size of a record of a journal file. */
+    static final int RECORD_SIZE = 21;
+    // Bytes of a record covered by its CRC.
+    private static final int RECORD_BODY_SIZE = RECORD_SIZE - 4;
+    private static final int INITIAL_BUFFER_SIZE = 256 * RECORD_SIZE;
+    private static final Board.Move[] MOVES = Board.Move.values();
+
+    private final Board board;
+    private final File file;
+    private FileChannel channel;
+    private long startVersion;
+    private final long replayed;
+    private final Thread committer;
+    private final Object lock = new Object();
+    private final CRC32 crc = new CRC32();
+    private ByteBuffer filling = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    private ByteBuffer writing = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    private long appendedVersion;
+    private long durableVersion;
+    private final NavigableMap<Long, List<Runnable>> callbacks = new TreeMap<>();
+    private boolean closed = false;
+    // Set once the committer has stopped, and no more moves reach the disk.
+    private boolean stopped = false;
+    private IOException failure = null;
+    private long rotationVersion = -1;
+    private int rotationFingerprint = 0;
+    private long records = 0;
+    private long commits = 0;
+    private long rotations = 0;
+
+    private MoveJournal(Board board, File file, FileChannel channel, long startVersion, long replayed) {
+        this.board = board;
+        this.file = file;
+        this.channel = channel;
+        this.startVersion = startVersion;
+        this.replayed = replayed;
+        this.appendedVersion = board.getVersion();
+        this.durableVersion = appendedVersion;
+        this.committer = new Thread(this::commitLoop, "move-journal");
+        committer.setDaemon(true);
+    }
+
+    /**
+     * Open the journal of a board: replay the moves of file the board has not
+     * made yet, discard a torn record at its end, and journal the moves of the
+     * board from now on. The board must be at a version the file contains or
+     * continues: the board the file was created for, which is checked, or a
+     * snapshot of it at a later version, which is trusted to be one.
+     *
+     * @param file the journal file, created if it does not exist
+     * @param board the board, which must not be moved until open returns
+     * @return the journal, listening to the moves of board
+     * @throws IOException if file cannot be read or written, is not a journal,
+     *                     or is the journal of another board
+     */
+    static MoveJournal open(File file, Board board) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+        try {
+            long replayed = 0;
+            long start;
+            if (channel.size() < HEADER_SIZE) {
+                // New, or torn while it was being created
+                start = board.getVersion();
+                ByteBuffer header = header(board, start, fingerprint(board));
+                channel.truncate(0);
+                channel.position(0);
+                while (header.hasRemaining())
+                    channel.write(header);
+                channel.force(true);
+            } else {
+                long[] end = new long[2];
+                replayed = replay(channel, board, end);
+                start = end[1];
+                if (end[0] < channel.size()) {
+                    channel.truncate(end[0]);
+                    channel.force(true);
+                }
+            }
+            channel.position(channel.size());
+            MoveJournal journal = new MoveJournal(board, file, channel, start, replayed);
+            journal.committer.start();
+            board.setMoveListener(journal);
+            return journal;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    // Replay the records of channel, from its start, into board, skipping the
+    // moves the board has already made.
+    // @return: the number of moves replayed; end[0] is set to the length of
+    //          the whole records, after which a torn record may follow, and
+    //          end[1] to the START of the journal.
+    private static long replay(FileChannel channel, Board board, long[] end) throws IOException {
+        channel.position(0);
+        // Not closed: closing it would close channel
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 1 << 16));
+        if (in.readInt() != MAGIC)
+            throw new IOException("not a move journal");
+        int format = in.readUnsignedShort();
+        if (format != FORMAT)
+            throw new IOException("unsupported move journal format " + format);
+        int rows = in.readInt();
+        int cols = in.readInt();
+        long start = in.readLong();
+        int fingerprint = in.readInt();
+        if (rows != board.getRow() || cols != board.getCol())
+            throw new IOException("move journal of a " + rows + "x" + cols + " board, not of a "
+                    + board.getRow() + "x" + board.getCol() + " board");
+        if (board.getVersion() < start)
+            throw new IOException("move journal starts at version " + start + ", after the board at version "
+                    + board.getVersion());
+        if (board.getVersion() == start && fingerprint(board) != fingerprint)
+            throw new IOException("move journal of another board");
+        long length = HEADER_SIZE;
+        long replayed = 0;
+        byte[] record = new byte[RECORD_SIZE];
+        ByteBuffer fields = ByteBuffer.wrap(record);
+        CRC32 crc = new CRC32();
+        while (true) {
+            try {
+                in.readFully(record);
+            } catch (EOFException eofe) {
+                break; // End of the journal, possibly with a torn record
+            }
+            crc.reset();
+            crc.update(record, 0, RECORD_BODY_SIZE);
+            fields.clear();
+            long version = fields.getLong();
+            int move = fields.get();
+            int r = fields.getInt();
+            int c = fields.getInt();
+            if (fields.getInt() != (int) crc.getValue() || move < 0 || move >= MOVES.length)
+                break; // Torn record
+            if (version > board.getVersion()) {
+                if (version != board.getVersion() + 1)
+                    throw new IOException("move journal skips from version " + board.getVersion() + " to " + version);
+                play(board, MOVES[move], r, c);
+                if (board.getVersion() != version)
+                    throw new IOException("move journal does not match the board at version " + version);
+                replayed++;
+            }
+            length += RECORD_SIZE;
+        }
+        end[0] = length;
+        end[1] = start;
+        return replayed;
+    }
+
+    // @return: the header of a journal of board from version start, when the
+    //          board had the given fingerprint, ready to be written.
+    private static ByteBuffer header(Board board, long start, int fingerprint) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putShort((short) FORMAT)
+                .putInt(board.getRow()).putInt(board.getCol()).putLong(start).putInt(fingerprint);
+        header.flip();
+        return header;
+    }
+
+    // @return: the CRC-32 of the uncompressed snapshot of board, see Board.save.
+    private static int fingerprint(Board board) throws IOException {
+        CRC32 checksum = new CRC32();
+        board.save(new CheckedOutputStream(OutputStream.nullOutputStream(), checksum), false);
+        return (int) checksum.getValue();
+    }
+
+    // Make a move on board.
+    private static void play(Board board, Board.Move move, int r, int c) {
+        switch (move) {
+            case DIG:
+                board.dig(r, c);
+                break;
+            case FLAG:
+                board.flag(r, c);
+                break;
+            case DEFLAG:
+                board.deflag(r, c);
+                break;
+            default:
+                throw new AssertionError("Unknown move " + move);
+        }
+    }
+
+    /*
+     * Append the move to the next batch; called by the board.
+     * @see Board.MoveListener#moved(long, Board.Move, int, int)
+     */
+    @Override public void moved(long version, Board.Move move, int r, int c) {
+        synchronized (lock) {
+            if (closed || failure != null)
+                return;
+            if (filling.remaining() < RECORD_SIZE) {
+                ByteBuffer larger = ByteBuffer.allocate(2 * filling.capacity());
+                filling.flip();
+                filling = larger.put(filling);
+            }
+            int start = filling.position();
+            filling.putLong(version).put((byte) move.ordinal()).putInt(r).putInt(c);
+            crc.reset();
+            crc.update(filling.array(), start, RECORD_BODY_SIZE);
+            filling.putInt((int) crc.getValue());
+            appendedVersion = version;
+            records++;
+            lock.notifyAll();
+        }
+    }
+
+    // Body of the committer thread: write and force each batch of records
+    // appended while the previous batch was forced.
+    private void commitLoop() {
+        try {
+            commitBatches();
+        } finally {
+            List<Runnable> released;
+            synchronized (lock) {
+                stopped = true;
+                lock.notifyAll(); // Release the players waiting for a commit which will not come
+                released = takeCallbacks(Long.MAX_VALUE);
+            }
+            released.forEach(Runnable::run);
+        }
+    }
+
+    // Commit the batches until the journal is closed and drained, or fails;
+    // rotate the file between two batches, once it holds the moves up to the
+    // version it is rotated to.
+    private void commitBatches() {
+        while (true) {
+            long target;
+            long rotateTo = -1;
+            int fingerprint = 0;
+            synchronized (lock) {
+                while (filling.position() == 0 && !closed && !rotationDue()) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException ie) {
+                        return; // Only close interrupts the committer, after draining
+                    }
+                }
+                if (rotationDue()) {
+                    rotateTo = rotationVersion;
+                    fingerprint = rotationFingerprint;
+                    rotationVersion = -1;
+                } else if (filling.position() == 0) {
+                    return; // Closed, and every record is on disk
+                }
+                ByteBuffer batch = filling;
+                filling = writing;
+                writing = batch;
+                target = appendedVersion;
+            }
+            if (rotateTo >= 0)
+                rotateFile(rotateTo, fingerprint);
+            if (writing.position() == 0)
+                continue; // Only rotated
+            try {
+                writing.flip();
+                while (writing.hasRemaining())
+                    channel.write(writing);
+                channel.force(false);
+                writing.clear();
+            } catch (IOException ioe) {
+                System.err.println("Failed to journal the moves to " + file + ": " + ioe.getMessage());
+                synchronized (lock) {
+                    failure = ioe;
+                    lock.notifyAll();
+                }
+                return;
+            }
+            List<Runnable> released;
+            synchronized (lock) {
+                durableVersion = target;
+                commits++;
+                lock.notifyAll();
+                released = takeCallbacks(target);
+            }
+            released.forEach(Runnable::run);
+        }
+    }
+
+    // @return: true iff the file is to be rotated, and holds the moves up
+    //          to the version it is rotated to; requires lock.
+    private boolean rotationDue() {
+        return rotationVersion >= 0 && rotationVersion <= durableVersion;
+    }
+
+    // Replace the file with one from version, keeping the records after it;
+    // on failure, keep the file as it is.
+    private void rotateFile(long version, int fingerprint) {
+        if (version <= startVersion)
+            return;
+        Path target = file.toPath().toAbsolutePath();
+        Path temporary = null;
+        FileChannel rotated = null;
+        try {
+            temporary = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+            rotated = FileChannel.open(temporary, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            ByteBuffer header = header(board, version, fingerprint);
+            while (header.hasRemaining())
+                rotated.write(header);
+            long size = channel.size();
+            for (long position = firstRecordAfter(version); position < size; )
+                position += channel.transferTo(position, size - position, rotated);
+            rotated.force(true);
+            try {
+                Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException amnse) {
+                Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+            BoardSnapshotter.forceDirectory(target.getParent());
+            FileChannel old = channel;
+            channel = rotated;
+            rotated = null;
+            startVersion = version;
+            synchronized (lock) {
+                rotations++;
+            }
+            old.close();
+        } catch (IOException ioe) {
+            // The records stay in the file; the next snapshot rotates it again
+            System.err.println("Failed to rotate the move journal " + file + ": " + ioe.getMessage());
+        } finally {
+            try {
+                if (rotated != null)
+                    rotated.close();
+                if (temporary != null)
+                    Files.deleteIfExists(temporary);
+            } catch (IOException ioe) {
+                // Only a stray temporary file is left
+            }
+        }
+    }
+
+    // @return: the position in the file of the first record after version,
+    //          or its size if none; the versions of the records increase.
+    private long firstRecordAfter(long version) throws IOException {
+        ByteBuffer field = ByteBuffer.allocate(Long.BYTES);
+        long low = 0;
+        long high = (channel.size() - HEADER_SIZE) / RECORD_SIZE;
+        while (low < high) {
+            long middle = (low + high) >>> 1;
+            field.clear();
+            long position = HEADER_SIZE + middle * RECORD_SIZE;
+            while (field.hasRemaining())
+                if (channel.read(field, position + field.position()) < 0)
+                    throw new EOFException("move journal truncated");
+            if (field.getLong(0) > version)
+                high = middle;
+            else
+                low = middle + 1;
+        }
+        return HEADER_SIZE + low * RECORD_SIZE;
+    }
+
+    // Remove the callbacks waiting for versions up to version; requires lock.
+    // @return: the callbacks removed
+    private List<Runnable> takeCallbacks(long version) {
+        NavigableMap<Long, List<Runnable>> due = callbacks.headMap(version, true);
+        List<Runnable> taken = new ArrayList<>();
+        due.values().forEach(taken::addAll);
+        due.clear();
+        return taken;
+    }
+
+    /**
+     * Wait until the moves up to a version of the board are on disk.
+     *
+     * @param version a version of the board, at most its current version
+     * @return true iff those moves are on disk; false if the journal has
+     *         failed or was closed before
+     * @throws InterruptedException if interrupted while waiting
+     */
+    boolean awaitDurable(long version) throws InterruptedException {
+        synchronized (lock) {
+            while (durableVersion < version && !stopped)
+                lock.wait();
+            return durableVersion >= version;
+        }
+    }
+
+    /**
+     * @param version a version of the board
+     * @return true iff the moves up to version are on disk
+     */
+    boolean isDurable(long version) {
+        synchronized (lock) {
+            return durableVersion >= version;
+        }
+    }
+
+    /**
+     * Tell when the moves up to a version of the board are on disk, without
+     * waiting for them.
+     *
+     * @param version a version of the board, at most its current version
+     * @param callback run once, from the committer thread, when those moves
+     *                 are on disk, or the journal has failed or was closed
+     * @return true iff those moves are already on disk, or the journal has
+     *         failed or was closed; then callback is not run
+     */
+    boolean whenDurable(long version, Runnable callback) {
+        synchronized (lock) {
+            if (durableVersion >= version || stopped)
+                return true;
+            callbacks.computeIfAbsent(version, key -> new ArrayList<>()).add(callback);
+            return false;
+        }
+    }
+
+    /**
+     * Drop the moves of the board up to a version from the file, once it
+     * holds them, as a snapshot of the board at that version is on disk.
+     * Done in the background; a failure leaves the moves in the file.
+     *
+     * @param version the version of the snapshot
+     * @param fingerprint the CRC-32 of the uncompressed snapshot, see Board.save
+     */
+    void rotate(long version, int fingerprint) {
+        synchronized (lock) {
+            if (version <= rotationVersion)
+                return;
+            rotationVersion = version;
+            rotationFingerprint = fingerprint;
+            lock.notifyAll();
+        }
+    }
+
+    /** @return the board journaled. */
+    Board getBoard() {
+        return board;
+    }
+
+    /** @return the number of moves replayed into the board when the journal was opened. */
+    long getReplayed() {
+        return replayed;
+    }
+
+    /** @return the number of moves appended since the journal was opened. */
+    long getRecords() {
+        synchronized (lock) {
+            return records;
+        }
+    }
+
+    /** @return the number of batches of moves forced to disk since the journal was opened. */
+    long getCommits() {
+        synchronized (lock) {
+            return commits;
+        }
+    }
+
+    /** @return the number of times the file was rotated since the journal was opened. */
+    long getRotations() {
+        synchronized (lock) {
+            return rotations;
+        }
+    }
+
+    /**
+     * Stop journaling the moves of the board, once the moves appended so far
+     * are on disk, and close the file.
+     *
+     * @throws IOException if the moves could not be written, or the file closed
+     */
+    @Override public void close() throws IOException {
+        board.setMoveListener(null);
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+        boolean interrupted = false;
+        while (committer.isAlive()) {
+            try {
+                committer.join();
+            } catch (InterruptedException ie) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        channel.close();
+        synchronized (lock) {
+            if (failure != null)
+                throw failure;
+        }
+    }
+
+    /*
+     * @see Object.toString()
+     */
+    @Override public String toString() {
+        return "journal " + file + ": " + replayed + " moves replayed, " + getRecords() + " moves in "
+                + getCommits() + " commits";
+    }
+}
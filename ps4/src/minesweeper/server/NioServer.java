@@ -0,0 +1,368 @@
+/* Copyright (c) 2007-2016 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+package minesweeper.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Non-blocking front end of a MinesweeperServer: a single thread accepts
+ * the connections and serves the text protocol to all of them through a
+ * Selector.
+ */
+class NioServer {
+
+    // Abstraction function:
+    //      Represents the front end accepting the connections of serverChannel
+    //      and answering their requests with server; watchers are the
+    //      connections which may have changes of a watched board to push,
+    //      journaled the connections whose moves may have reached the disk,
+    //      and closeRequests the connections to close, e.g. as idle.
+    // Representation invariant:
+    //      serverChannel is non-blocking and registered with selector as acceptKey,
+    //      which is interested in OP_ACCEPT unless the server allows no more connections.
+    // Safety from rep exposure:
+    //      All fields are private and final; the connections are attached to
+    //      selection keys which never leave this class.
+    // Thread safety:
+    //      All the connections are confined to the thread running serve();
+    //      watchers, journaled and closeRequests are concurrent queues, filled
+    //      by the threads broadcasting the changes of the boards, committing
+    //      the moves to the journal and reaping the idle connections, which
+    //      wake the selector up.
+
+    /** Size of the buffer each read fills. */
+    private static final int READ_BUFFER_SIZE = 4096;
+
+    private final MinesweeperServer server;
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private final SelectionKey acceptKey;
+    // Shared by all the reads, since they happen on one thread.
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private final Queue<Connection> watchers = new ConcurrentLinkedQueue<>();
+    private final Queue<Connection> journaled = new ConcurrentLinkedQueue<>();
+    private final Queue<Connection> closeRequests = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Make a front end for server.
+     *
+     * @param server the server answering the requests
+     * @param serverChannel bound channel for receiving incoming connections
+     * @throws IOException if the selector cannot be opened
+     */
+    NioServer(MinesweeperServer server, ServerSocketChannel serverChannel) throws IOException {
+        this.server = server;
+        this.serverChannel = serverChannel;
+        this.selector = Selector.open();
+        serverChannel.configureBlocking(false);
+        acceptKey = serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * Make serve() check whether the server channel is still open.
+     */
+    void wakeup() {
+        selector.wakeup();
+    }
+
+    /**
+     * Accept and serve connections until the server channel is closed.
+     *
+     * @throws IOException if the server channel or the selector is broken
+     */
+    void serve() throws IOException {
+        try {
+            while (serverChannel.isOpen()) {
+                selector.select();
+                for (Connection watcher = watchers.poll(); watcher != null; watcher = watchers.poll())
+                    watcher.pushUpdates();
+                for (Connection connection = journaled.poll(); connection != null; connection = journaled.poll())
+                    connection.releaseHeld();
+                for (Connection closed = closeRequests.poll(); closed != null; closed = closeRequests.poll())
+                    closed.close();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.channel() == serverChannel) {
+                        if (key.isValid() && key.isAcceptable())
+                            accept();
+                        continue;
+                    }
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable())
+                            connection.read();
+                        if (key.isValid() && key.isWritable()) {
+                            connection.write();
+                            // The updates held back while the client was slow
+                            connection.pushUpdates();
+                        }
+                    } catch (IOException ioe) {
+                        // IOExceptions from individual clients do not terminate the server
+                        connection.close();
+                    }
+                }
+            }
+        } finally {
+            for (SelectionKey key : selector.keys())
+                if (key.attachment() instanceof Connection)
+                    ((Connection) key.attachment()).close();
+            selector.close();
+        }
+    }
+
+    // Accept the pending connections and greet them, as long as the server
+    // allows more connections; otherwise, stop accepting until a client leaves.
+    private void accept() throws IOException {
+        while (true) {
+            if ( ! server.tryReserveConnection()) {
+                if (server.rejectsExcess())
+                    rejectPending();
+                else
+                    acceptKey.interestOps(0);
+                return;
+            }
+            SocketChannel channel = serverChannel.accept();
+            if (channel == null) {
+                server.releaseConnection();
+                return;
+            }
+            Connection connection;
+            try {
+                channel.configureBlocking(false);
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                connection = new Connection(key, channel);
+                key.attach(connection);
+            } catch (IOException ioe) {
+                // IOExceptions from individual clients do not terminate the server
+                server.releaseConnection();
+                channel.close();
+                continue;
+            }
+            try {
+                connection.send(server.welcomeMessage());
+            } catch (IOException ioe) {
+                connection.close();
+            }
+        }
+    }
+
+    // Turn away the pending connections with MinesweeperServer.REJECTED_MESSAGE.
+    private void rejectPending() throws IOException {
+        byte[] message = MinesweeperServer.encode(MinesweeperServer.REJECTED_MESSAGE);
+        for (SocketChannel channel = serverChannel.accept(); channel != null; channel = serverChannel.accept()) {
+            server.connectionRejected();
+            try {
+                // A fresh socket has room for one short line, so this does not block
+                channel.write(ByteBuffer.wrap(message));
+            } catch (IOException ioe) {
+                // The client is disconnected either way.
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * A client connection with its input line buffer and its queue of
+     * replies waiting to be sent.
+     */
+    private class Connection {
+        private final SelectionKey key;
+        private final SocketChannel channel;
+        private final Session session;
+        private final StringBuilder line = new StringBuilder();
+        // Complete request lines not answered yet.
+        private final List<String> inputs = new ArrayList<>();
+        private final Queue<ByteBuffer> output = new ArrayDeque<>();
+        // Replies waiting for the moves of the client to reach the disk, and
+        // the replies queued after them; empty unless holding.
+        private final Queue<ByteBuffer> held = new ArrayDeque<>();
+        private boolean holding = false;
+        // Bytes of output and held.
+        private int pendingOutput = 0;
+        // True if the previous byte read was a '\r', which may be followed by a '\n'.
+        private boolean afterCarriageReturn = false;
+        // True once the last reply has been queued; the connection closes once it is sent.
+        private boolean closing = false;
+        private boolean closed = false;
+
+        Connection(SelectionKey key, SocketChannel channel) throws IOException {
+            this.key = key;
+            this.channel = channel;
+            // Closed on the selector thread, which then releases the connection
+            this.session = server.connectionOpened(channel.getRemoteAddress(), () -> {
+                closeRequests.add(this);
+                selector.wakeup();
+            });
+            session.setWakeup(() -> {
+                watchers.add(this);
+                selector.wakeup();
+            });
+        }
+
+        // Read the available bytes and answer each complete line.
+        void read() throws IOException {
+            readBuffer.clear();
+            int count = channel.read(readBuffer);
+            if (count < 0) {
+                close();
+                return;
+            }
+            readBuffer.flip();
+            while (readBuffer.hasRemaining() && !closing) {
+                char ch = (char) (readBuffer.get() & 0xff);
+                boolean skip = afterCarriageReturn && ch == '\n';
+                afterCarriageReturn = ch == '\r';
+                if (skip)
+                    continue;
+                if (ch == '\n' || ch == '\r') {
+                    inputs.add(line.toString());
+                    line.setLength(0);
+                    if (inputs.size() == MinesweeperServer.MAX_BATCH)
+                        handleLines();
+                } else if (line.length() < MinesweeperServer.MAX_LINE_LENGTH) {
+                    line.append(ch);
+                } else {
+                    close();
+                    return;
+                }
+            }
+            if (!inputs.isEmpty())
+                handleLines();
+        }
+
+        // Answer the complete request lines received, pipelined requests
+        // together, and send the replies at once, or hold them until the
+        // moves of the client are journaled, without waiting for the disk.
+        private void handleLines() throws IOException {
+            List<String> replies = server.handleRequests(inputs, session);
+            inputs.clear();
+            if ( ! server.whenJournaled(session, this::journaled)) {
+                holding = true;
+            } else if ( ! server.isJournaled(session)) {
+                // Never acknowledge a move which did not reach the disk
+                close();
+                return;
+            }
+            for (String reply : replies)
+                if (reply != null)
+                    queue(reply);
+            if (server.isLastReply(replies.get(replies.size() - 1)))
+                closing = true;
+            write();
+        }
+
+        // Tell the selector thread, from the thread committing the journal,
+        // that the moves of the client may have reached the disk.
+        private void journaled() {
+            journaled.add(this);
+            selector.wakeup();
+        }
+
+        // Send the replies held until the moves of the client reach the
+        // disk, if they have; disconnect the client if they never will.
+        void releaseHeld() {
+            if (closed || ! holding || ! server.whenJournaled(session, this::journaled))
+                return;
+            if ( ! server.isJournaled(session)) {
+                close();
+                return;
+            }
+            holding = false;
+            output.addAll(held);
+            held.clear();
+            try {
+                write();
+            } catch (IOException ioe) {
+                // IOExceptions from individual clients do not terminate the server
+                close();
+            }
+        }
+
+        // Send the changes of the board watched by the client waiting for it,
+        // unless the client is slow to read what it has been sent already:
+        // then they wait, until they are dropped for the whole board.
+        void pushUpdates() {
+            if (closed || closing || pendingOutput >= MinesweeperServer.MAX_PENDING_OUTPUT)
+                return;
+            List<String> updates = server.watchUpdates(session);
+            if (updates.isEmpty())
+                return;
+            for (String update : updates)
+                queue(update);
+            try {
+                write();
+                session.updatesPushed();
+            } catch (IOException ioe) {
+                // IOExceptions from individual clients do not terminate the server
+                close();
+            }
+        }
+
+        // Queue a reply line and try to send it right away.
+        void send(String reply) throws IOException {
+            queue(reply);
+            write();
+        }
+
+        // Queue a reply line, to be sent by write, after the held replies.
+        private void queue(String reply) {
+            byte[] bytes = MinesweeperServer.encode(reply);
+            (holding ? held : output).add(ByteBuffer.wrap(bytes));
+            pendingOutput += bytes.length;
+            session.bytesSent(bytes.length);
+        }
+
+        // Send as much of the queued replies as the socket accepts.
+        void write() throws IOException {
+            while (!output.isEmpty()) {
+                ByteBuffer buffer = output.peek();
+                pendingOutput -= channel.write(buffer);
+                if (buffer.hasRemaining())
+                    break;
+                output.remove();
+            }
+            if (closed)
+                return;
+            if (output.isEmpty() && ! holding && closing) {
+                close();
+                return;
+            }
+            // Wait for the socket to drain before reading more requests from a slow reader.
+            int interest = pendingOutput < MinesweeperServer.MAX_PENDING_OUTPUT && !closing ? SelectionKey.OP_READ : 0;
+            if (!output.isEmpty())
+                interest |= SelectionKey.OP_WRITE;
+            key.interestOps(interest);
+        }
+
+        // Disconnect the client.
+        void close() {
+            if (closed)
+                return;
+            closed = true;
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ioe) {
+                // The connection is gone either way.
+            }
+            server.connectionClosed(session);
+            if (acceptKey.isValid())
+                acceptKey.interestOps(SelectionKey.OP_ACCEPT);
+        }
+    }
+}
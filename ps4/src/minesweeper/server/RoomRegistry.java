@@ -0,0 +1,182 @@
+/* Copyright (c) 2007-2016 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+package minesweeper.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import minesweeper.Board;
+
+/**
+ * The game rooms of a MinesweeperServer. A room is created when the first
+ * player joins it, and evicted once it has had no players for a while;
+ * the default room, where every player starts, is never evicted.
+ */
+class RoomRegistry {
+
+    /** Name of the room every player starts in. */
+    static final String DEFAULT_ROOM = "default";
+    /** Longest name of a room. */
+    static final int MAX_ROOM_NAME_LENGTH = 32;
+
+    // Abstraction function:
+    //      Represents the rooms rooms.values(), where each room is mapped from
+    //      its name; rooms whose boards come from newBoard are evicted once
+    //      idle for idleNanos, by a sweep run at most once per idleNanos.
+    // Representation invariant:
+    //      rooms contains DEFAULT_ROOM;
+    //      size equals the number of rooms other than DEFAULT_ROOM, and
+    //      size <= maxRooms, except while a join or a sweep is in progress.
+    // Safety from rep exposure:
+    //      All fields are private and final; rooms() returns a copy.
+    // Thread safety:
+    //      rooms is a ConcurrentMap, and the players of a room are only
+    //      added, removed and checked for eviction inside the atomic
+    //      compute methods of its entry, so a player never joins an evicted
+    //      room; the board of a new room is made before its entry is locked,
+    //      as it may take long, once a room is reserved in size; size and
+    //      lastSweep are atomic.
+    private final ConcurrentMap<String, GameRoom> rooms = new ConcurrentHashMap<>();
+    private final Supplier<Board> newBoard;
+    private final int maxRooms;
+    private final long idleNanos;
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicLong lastSweep = new AtomicLong(System.nanoTime());
+
+    /**
+     * Make a registry with only the default room.
+     *
+     * @param defaultBoard board of the default room
+     * @param newBoard makes the board of each new room
+     * @param maxRooms most rooms besides the default room, requires maxRooms >= 0
+     * @param idleMillis how long a room without players is kept, requires idleMillis >= 0
+     */
+    RoomRegistry(Board defaultBoard, Supplier<Board> newBoard, int maxRooms, long idleMillis) {
+        this.newBoard = newBoard;
+        this.maxRooms = maxRooms;
+        this.idleNanos = TimeUnit.MILLISECONDS.toNanos(idleMillis);
+        rooms.put(DEFAULT_ROOM, new GameRoom(DEFAULT_ROOM, defaultBoard));
+    }
+
+    /** @return the room every player starts in. */
+    GameRoom getDefaultRoom() {
+        return rooms.get(DEFAULT_ROOM);
+    }
+
+    /**
+     * @param name name of a room
+     * @return the room, if it exists
+     */
+    Optional<GameRoom> get(String name) {
+        return Optional.ofNullable(rooms.get(name));
+    }
+
+    /**
+     * Move a player into a room, creating the room if it does not exist.
+     *
+     * @param name name of the room, a nonempty string of at most
+     *             MAX_ROOM_NAME_LENGTH letters, digits, '_' or '-'
+     * @param session session of the player, which leaves its current room
+     * @return the room joined, or empty if it did not exist and there are
+     *         already maxRooms rooms; then the player stays in its room
+     */
+    Optional<GameRoom> join(String name, Session session) {
+        sweepIfDue();
+        GameRoom current = session.getRoom();
+        if (current != null && current.getName().equals(name))
+            return Optional.of(current);
+        GameRoom joined = rooms.computeIfPresent(name, (key, room) -> {
+            room.add(session);
+            return room;
+        });
+        if (joined == null) {
+            // Reserve the new room, then make its board without holding the entry
+            if (size.incrementAndGet() > maxRooms) {
+                size.decrementAndGet();
+                return Optional.empty();
+            }
+            GameRoom created = new GameRoom(name, newBoard.get());
+            joined = rooms.compute(name, (key, room) -> {
+                if (room == null)
+                    room = created;
+                room.add(session);
+                return room;
+            });
+            if (joined != created)
+                size.decrementAndGet(); // Created by another player meanwhile
+        }
+        leave(session);
+        session.setRoom(joined);
+        return Optional.of(joined);
+    }
+
+    /**
+     * Remove a player from its room, if any.
+     *
+     * @param session session of the player
+     */
+    void leave(Session session) {
+        GameRoom room = session.getRoom();
+        if (room == null)
+            return;
+        rooms.computeIfPresent(room.getName(), (key, existing) -> {
+            existing.remove(session);
+            return existing;
+        });
+        session.setRoom(null);
+    }
+
+    /**
+     * Evict the rooms which have had no players for the idle timeout.
+     *
+     * @return the number of rooms evicted
+     */
+    int evictIdle() {
+        long now = System.nanoTime();
+        int evicted = 0;
+        for (String name : rooms.keySet()) {
+            if (name.equals(DEFAULT_ROOM))
+                continue;
+            boolean[] removed = { false };
+            rooms.computeIfPresent(name, (key, room) -> {
+                removed[0] = room.isIdle(now, idleNanos);
+                return removed[0] ? null : room;
+            });
+            if (removed[0]) {
+                size.decrementAndGet();
+                evicted++;
+            }
+        }
+        return evicted;
+    }
+
+    // Evict the idle rooms, unless a sweep has started within the idle timeout.
+    private void sweepIfDue() {
+        long now = System.nanoTime();
+        long last = lastSweep.get();
+        if (now - last >= idleNanos && lastSweep.compareAndSet(last, now))
+            evictIdle();
+    }
+
+    /**
+     * @return the number of rooms, including the default room
+     */
+    int size() {
+        return size.get() + 1;
+    }
+
+    /**
+     * @return a copy of the rooms
+     */
+    List<GameRoom> rooms() {
+        return new ArrayList<>(rooms.values());
+    }
+}
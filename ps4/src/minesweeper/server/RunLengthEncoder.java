@@ -0,0 +1,65 @@
+/* Copyright (c) 2007-2016 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+package minesweeper.server;
+
+/**
+ * Run-length encoding of boards as displayed by 'look', sent to the clients
+ * which requested compressed replies with 'rle'. Each row of the board is
+ * encoded on its own line, as the runs of equal squares of the row:
+ * <pre>
+ *   RLE_ROW ::= RUN ("," RUN)*
+ *   RUN ::= STATE LENGTH?
+ *   LENGTH ::= [2-9] [0-9]* | "1" [0-9]+
+ * </pre>
+ * where STATE is the state of the squares of the run as displayed by 'look'
+ * and LENGTH the number of squares of the run, omitted if 1. The first
+ * character of a RUN is always its STATE, so a STATE which is a digit is not
+ * mistaken for a LENGTH. E.g. the row "- - - 1 1      " is encoded as
+ * "-3,12, 3".
+ */
+class RunLengthEncoder {
+
+    private RunLengthEncoder() {
+        throw new AssertionError("Not instantiable");
+    }
+
+    /**
+     * Encode a board, or a window of a board.
+     *
+     * @param board the board as displayed by 'look': rows separated by "\n",
+     *              and the squares of a row separated by " "
+     * @return the rows of board, each run-length encoded, separated by "\n"
+     */
+    static String encode(CharSequence board) {
+        StringBuilder encoded = new StringBuilder();
+        int length = board.length();
+        if (length == 0)
+            return "";
+        int lineStart = 0;
+        while (true) {
+            int lineEnd = lineStart;
+            while (lineEnd < length && board.charAt(lineEnd) != '\n')
+                lineEnd++;
+            // The squares of the row are at the even offsets of the line
+            for (int i = lineStart; i < lineEnd; ) {
+                char state = board.charAt(i);
+                int run = 0;
+                while (i < lineEnd && board.charAt(i) == state) {
+                    run++;
+                    i += 2;
+                }
+                if (i - 2 * run > lineStart)
+                    encoded.append(',');
+                encoded.append(state);
+                if (run > 1)
+                    encoded.append(run);
+            }
+            if (lineEnd == length)
+                break;
+            encoded.append('\n');
+            lineStart = lineEnd + 1;
+        }
+        return encoded.toString();
+    }
+}
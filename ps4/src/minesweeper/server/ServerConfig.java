@@ -0,0 +1,321 @@
+/* Copyright (c) 2007-2016 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+package minesweeper.server;
+
+import java.io.File;
+import java.util.Optional;
+import java.util.OptionalLong;
+
+/**
+ * Immutable datatype representing how a MinesweeperServer handles its client
+ * connections. Each with* method returns a copy with one setting changed.
+ */
+public class ServerConfig {
+
+    /**
+     * Handle each connection on its own thread, without a limit on connections;
+     * Mode.POOL would use 64 workers and queue up to 256 connections. The moves
+     * of all the players are serialized, as the board is a single tile. Up to
+     * 10000 rooms besides the default room, each kept for a minute once empty.
+     * The board is not saved; with a snapshot file, it would be saved every
+     * 10 seconds. The moves are not journaled. Random boards are generated
+     * from random seeds. Idle clients stay connected.
+     */
+    public static final ServerConfig DEFAULT = new ServerConfig(MinesweeperServer.Mode.THREAD, Integer.MAX_VALUE,
+            false, 64, 256, Integer.MAX_VALUE, 10000, 60_000, null, 10_000, null, null, 0);
+
+    private final MinesweeperServer.Mode mode;
+    private final int maxConnections;
+    private final boolean rejectExcess;
+    private final int workers;
+    private final int queueCapacity;
+    private final int tileSize;
+    private final int maxRooms;
+    private final long roomIdleMillis;
+    // null if the board is not saved
+    private final File snapshotFile;
+    private final long snapshotIntervalMillis;
+    // null if the moves are not journaled
+    private final File journalFile;
+    // null if the random boards are generated from random seeds
+    private final Long seed;
+    // 0 if idle clients stay connected
+    private final long idleTimeoutMillis;
+    /* Rep invariant: maxConnections > 0, workers > 0, queueCapacity > 0, tileSize > 0,
+     * maxRooms >= 0, roomIdleMillis >= 0, snapshotIntervalMillis > 0, idleTimeoutMillis >= 0. */
+
+    private ServerConfig(MinesweeperServer.Mode mode, int maxConnections, boolean rejectExcess,
+                         int workers, int queueCapacity, int tileSize, int maxRooms, long roomIdleMillis,
+                         File snapshotFile, long snapshotIntervalMillis, File journalFile, Long seed,
+                         long idleTimeoutMillis) {
+        if (maxConnections <= 0 || workers <= 0 || queueCapacity <= 0 || tileSize <= 0) {
+            throw new IllegalArgumentException(
+                    "requires maxConnections > 0, workers > 0, queueCapacity > 0 and tileSize > 0");
+        }
+        if (maxRooms < 0 || roomIdleMillis < 0 || snapshotIntervalMillis <= 0 || idleTimeoutMillis < 0) {
+            throw new IllegalArgumentException("requires maxRooms >= 0, roomIdleMillis >= 0,"
+                    + " snapshotIntervalMillis > 0 and idleTimeoutMillis >= 0");
+        }
+        this.mode = mode;
+        this.maxConnections = maxConnections;
+        this.rejectExcess = rejectExcess;
+        this.workers = workers;
+        this.queueCapacity = queueCapacity;
+        this.tileSize = tileSize;
+        this.maxRooms = maxRooms;
+        this.roomIdleMillis = roomIdleMillis;
+        this.snapshotFile = snapshotFile;
+        this.snapshotIntervalMillis = snapshotIntervalMillis;
+        this.journalFile = journalFile;
+        this.seed = seed;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    /**
+     * @return how the server handles client connections
+     */
+    public MinesweeperServer.Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * @return the maximum number of clients connected at the same time
+     */
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * @return true if clients beyond getMaxConnections() are sent a rejection
+     *         line and disconnected; false if they wait until a connected
+     *         client leaves
+     */
+    public boolean isRejectExcess() {
+        return rejectExcess;
+    }
+
+    /**
+     * @return the number of threads handling connections in Mode.POOL
+     */
+    public int getWorkers() {
+        return workers;
+    }
+
+    /**
+     * @return the number of connections waiting for a free worker in Mode.POOL;
+     *         further connections are rejected
+     */
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * @return the side length of the tiles of the board, which are locked
+     *         independently so that moves on different tiles proceed in parallel
+     */
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    /**
+     * @return the maximum number of game rooms besides the default room
+     */
+    public int getMaxRooms() {
+        return maxRooms;
+    }
+
+    /**
+     * @return how long, in milliseconds, a game room without players is kept
+     *         before it is evicted together with its board
+     */
+    public long getRoomIdleMillis() {
+        return roomIdleMillis;
+    }
+
+    /**
+     * @return the file the board of the default room is saved to, and
+     *         restored from when the server starts, or empty if it is not saved
+     */
+    public Optional<File> getSnapshotFile() {
+        return Optional.ofNullable(snapshotFile);
+    }
+
+    /**
+     * @return how often, in milliseconds, the board is saved if it has changed
+     */
+    public long getSnapshotIntervalMillis() {
+        return snapshotIntervalMillis;
+    }
+
+    /**
+     * @return the file the moves on the board of the default room are
+     *         journaled to, and replayed from when the server starts, or empty
+     *         if they are not journaled
+     */
+    public Optional<File> getJournalFile() {
+        return Optional.ofNullable(journalFile);
+    }
+
+    /**
+     * @return the seed the random boards are generated from, or empty if
+     *         each server picks its own; the same seed gives the same boards
+     */
+    public OptionalLong getSeed() {
+        return seed == null ? OptionalLong.empty() : OptionalLong.of(seed);
+    }
+
+    /**
+     * @return how long, in milliseconds, a client may send no request before
+     *         it is disconnected, or 0 if idle clients stay connected;
+     *         clients watching a board are not idle while its changes are
+     *         pushed to them, see IdleReaper
+     */
+    public long getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    /**
+     * @param mode how the server handles client connections
+     * @return a copy of this config with the given mode
+     */
+    public ServerConfig withMode(MinesweeperServer.Mode mode) {
+        return new ServerConfig(mode, maxConnections, rejectExcess, workers, queueCapacity, tileSize,
+                maxRooms, roomIdleMillis, snapshotFile, snapshotIntervalMillis, journalFile, seed, idleTimeoutMillis);
+    }
+
+    /**
+     * @param maxConnections the maximum number of clients connected at the
+     *                       same time, requires maxConnections > 0
+     * @return a copy of this config with the given maximum number of connections
+     */
+    public ServerConfig withMaxConnections(int maxConnections) {
+        return new ServerConfig(mode, maxConnections, rejectExcess, workers, queueCapacity, tileSize,
+                maxRooms, roomIdleMillis, snapshotFile, snapshotIntervalMillis, journalFile, seed, idleTimeoutMillis);
+    }
+
+    /**
+     * @param rejectExcess true if clients beyond the maximum number of
+     *                     connections should be rejected instead of waiting
+     * @return a copy of this config with the given admission policy
+     */
+    public ServerConfig withRejectExcess(boolean rejectExcess) {
+        return new ServerConfig(mode, maxConnections, rejectExcess, workers, queueCapacity, tileSize,
+                maxRooms, roomIdleMillis, snapshotFile, snapshotIntervalMillis, journalFile, seed, idleTimeoutMillis);
+    }
+
+    /**
+     * @param workers the number of threads handling connections in Mode.POOL,
+     *                requires workers > 0
+     * @return a copy of this config with the given number of workers
+     */
+    public ServerConfig withWorkers(int workers) {
+        return new ServerConfig(mode, maxConnections, rejectExcess, workers, queueCapacity, tileSize,
+                maxRooms, roomIdleMillis, snapshotFile, snapshotIntervalMillis, journalFile, seed, idleTimeoutMillis);
+    }
+
+    /**
+     * @param queueCapacity the number of connections waiting for a free worker
+     *                      in Mode.POOL, requires queueCapacity > 0
+     * @return a copy of this config with the given queue capacity
+     */
+    public ServerConfig withQueueCapacity(int queueCapacity) {
+        return new ServerConfig(mode, maxConnections, rejectExcess, workers, queueCapacity, tileSize,
+                maxRooms, roomIdleMillis, snapshotFile, snapshotIntervalMillis, journalFile, seed, idleTimeoutMillis);
+    }
+
+    /**
+     * @param tileSize the side length of the tiles of the board, requires tileSize > 0
+     * @return a copy of this config with the given tile size
+     */
+    public ServerConfig withTileSize(int tileSize) {
+        return new ServerConfig(mode, maxConnections, rejectExcess, workers, queueCapacity, tileSize,
+                maxRooms, roomIdleMillis, snapshotFile, snapshotIntervalMillis, journalFile, seed, idleTimeoutMillis);
+    }
+
+    /**
+     * @param maxRooms the maximum number of game rooms besides the default
+     *                 room, requires maxRooms >= 0
+     * @return a copy of this config with the given maximum number of rooms
+     */
+    public ServerConfig withMaxRooms(int maxRooms) {
+        return new ServerConfig(mode, maxConnections, rejectExcess, workers, queueCapacity, tileSize,
+                maxRooms, roomIdleMillis, snapshotFile, snapshotIntervalMillis, journalFile, seed, idleTimeoutMillis);
+    }
+
+    /**
+     * @param roomIdleMillis how long, in milliseconds, a game room without
+     *                       players is kept, requires roomIdleMillis >= 0
+     * @return a copy of this config with the given idle timeout of rooms
+     */
+    public ServerConfig withRoomIdleMillis(long roomIdleMillis) {
+        return new ServerConfig(mode, maxConnections, rejectExcess, workers, queueCapacity, tileSize,
+                maxRooms, roomIdleMillis, snapshotFile, snapshotIntervalMillis, journalFile, seed, idleTimeoutMillis);
+    }
+
+    /**
+     * @param snapshotFile the file the board of the default room is saved to
+     *                     and restored from, or empty if it is not saved
+     * @return a copy of this config with the given snapshot file
+     */
+    public ServerConfig withSnapshotFile(Optional<File> snapshotFile) {
+        return new ServerConfig(mode, maxConnections, rejectExcess, workers, queueCapacity, tileSize,
+                maxRooms, roomIdleMillis, snapshotFile.orElse(null), snapshotIntervalMillis, journalFile, seed,
+                idleTimeoutMillis);
+    }
+
+    /**
+     * @param snapshotIntervalMillis how often, in milliseconds, the board is
+     *                               saved if it has changed, requires snapshotIntervalMillis > 0
+     * @return a copy of this config with the given snapshot interval
+     */
+    public ServerConfig withSnapshotIntervalMillis(long snapshotIntervalMillis) {
+        return new ServerConfig(mode, maxConnections, rejectExcess, workers, queueCapacity, tileSize,
+                maxRooms, roomIdleMillis, snapshotFile, snapshotIntervalMillis, journalFile, seed, idleTimeoutMillis);
+    }
+
+    /**
+     * @param journalFile the file the moves on the board of the default room
+     *                    are journaled to and replayed from, or empty if they
+     *                    are not journaled
+     * @return a copy of this config with the given journal file
+     */
+    public ServerConfig withJournalFile(Optional<File> journalFile) {
+        return new ServerConfig(mode, maxConnections, rejectExcess, workers, queueCapacity, tileSize,
+                maxRooms, roomIdleMillis, snapshotFile, snapshotIntervalMillis, journalFile.orElse(null), seed,
+                idleTimeoutMillis);
+    }
+
+    /**
+     * @param seed the seed the random boards are generated from, or empty
+     *             if each server picks its own
+     * @return a copy of this config with the given seed
+     */
+    public ServerConfig withSeed(OptionalLong seed) {
+        return new ServerConfig(mode, maxConnections, rejectExcess, workers, queueCapacity, tileSize, maxRooms,
+                roomIdleMillis, snapshotFile, snapshotIntervalMillis, journalFile,
+                seed.isPresent() ? Long.valueOf(seed.getAsLong()) : null, idleTimeoutMillis);
+    }
+
+    /**
+     * @param idleTimeoutMillis how long, in milliseconds, a client may send
+     *                          no request before it is disconnected, or 0 if
+     *                          idle clients stay connected, requires idleTimeoutMillis >= 0
+     * @return a copy of this config with the given idle timeout of clients
+     */
+    public ServerConfig withIdleTimeoutMillis(long idleTimeoutMillis) {
+        return new ServerConfig(mode, maxConnections, rejectExcess, workers, queueCapacity, tileSize,
+                maxRooms, roomIdleMillis, snapshotFile, snapshotIntervalMillis, journalFile, seed, idleTimeoutMillis);
+    }
+
+    /*
+     * @see Object.toString()
+     */
+    @Override public String toString() {
+        return "mode=" + mode + ", maxConnections=" + maxConnections + ", rejectExcess=" + rejectExcess
+                + ", workers=" + workers + ", queueCapacity=" + queueCapacity + ", tileSize=" + tileSize
+                + ", maxRooms=" + maxRooms + ", roomIdleMillis=" + roomIdleMillis
+                + ", snapshotFile=" + snapshotFile + ", snapshotIntervalMillis=" + snapshotIntervalMillis
+                + ", journalFile=" + journalFile + ", seed=" + seed + ", idleTimeoutMillis=" + idleTimeoutMillis;
+    }
+}
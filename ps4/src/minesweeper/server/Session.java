@@ -0,0 +1,231 @@
+/* Copyright (c) 2007-2016 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+package minesweeper.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A single client connection of a MinesweeperServer: its metadata and
+ * statistics, readable from any thread, and its protocol state.
+ */
+public class Session {
+
+    // Abstraction function:
+    //      Represents the client connected through connection from
+    //      remoteAddress since connectedAt, identified by id among the
+    //      sessions of its server; the server has handled commandsHandled
+    //      of its requests, the last one at lastActiveNanos as given by
+    //      System.nanoTime(), and sent it bytesSent bytes; the changes of the
+    //      board it watches were last pushed to it at lastPushedNanos.
+    //      The client has switched to delta replies iff deltaMode, and to
+    //      run-length encoded boards iff rleMode. It knows the board at
+    //      knownVersion. Its last move changing the journaled board took it
+    //      to journaledVersion, or 0 if none. The client watches the board of
+    //      subscription, if not null, and wakeup is told when updates of that
+    //      board are waiting for it. parser parses its requests, and
+    //      windowBuffer is reused to render the windows of the board it
+    //      requests. The client plays in room, or in no room once it has
+    //      left the server.
+    // Representation invariant:
+    //      commandsHandled >= 0, bytesSent >= 0, knownVersion >= 0, journaledVersion >= 0
+    // Safety from rep exposure:
+    //      All fields are private; id, remoteAddress and connectedAt are
+    //      immutable; connection is never returned to clients.
+    // Thread safety:
+    //      The metadata is final and the statistics are atomic, so they may
+    //      be read from any thread, as are lastActiveNanos and
+    //      lastPushedNanos, which are volatile;
+    //      deltaMode, rleMode, knownVersion, journaledVersion, parser and
+    //      windowBuffer are confined to the thread handling the connection;
+    //      subscription is only set by that thread, but volatile so that the
+    //      IdleReaper reads it; room and wakeup are volatile, as they are set
+    //      by the accepting thread before that thread starts.
+    private final long id;
+    private final SocketAddress remoteAddress;
+    private final Instant connectedAt;
+    private final Closeable connection;
+    private final AtomicLong commandsHandled = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private volatile long lastActiveNanos;
+    private volatile long lastPushedNanos;
+    private boolean deltaMode = false;
+    private boolean rleMode = false;
+    private long knownVersion = 0;
+    private long journaledVersion = 0;
+    private volatile BoardBroadcaster.Subscription subscription = null;
+    private volatile Runnable wakeup = null;
+    private final CommandParser parser = new CommandParser();
+    private final StringBuilder windowBuffer = new StringBuilder();
+    private volatile GameRoom room = null;
+
+    /**
+     * Make a session for a client which has just connected.
+     *
+     * @param id identifier of the session, unique among the sessions of a server
+     * @param remoteAddress address of the client, or null if unknown
+     * @param connection closes the connection to the client
+     */
+    Session(long id, SocketAddress remoteAddress, Closeable connection) {
+        this.id = id;
+        this.remoteAddress = remoteAddress;
+        this.connectedAt = Instant.now();
+        this.lastActiveNanos = System.nanoTime();
+        this.lastPushedNanos = lastActiveNanos;
+        this.connection = connection;
+    }
+
+    /** @return the identifier of this session, unique among the sessions of its server. */
+    public long getId() { return id; }
+
+    /** @return the address of the client, or null if unknown. */
+    public SocketAddress getRemoteAddress() { return remoteAddress; }
+
+    /** @return when the client connected. */
+    public Instant getConnectedAt() { return connectedAt; }
+
+    /** @return the number of requests of the client handled so far. */
+    public long getCommandsHandled() { return commandsHandled.get(); }
+
+    /** @return the number of bytes sent to the client so far. */
+    public long getBytesSent() { return bytesSent.get(); }
+
+    /** Record that a request of the client has been handled. */
+    void commandHandled() {
+        commandsHandled.incrementAndGet();
+        lastActiveNanos = System.nanoTime();
+    }
+
+    /**
+     * @return when the last request of the client was handled, or when it
+     *         connected if none was, as given by System.nanoTime()
+     */
+    long getLastActiveNanos() { return lastActiveNanos; }
+
+    /** Record that changes of the board watched have been handed to the connection to the client. */
+    void updatesPushed() {
+        lastPushedNanos = System.nanoTime();
+    }
+
+    /**
+     * @return when changes of the board watched were last handed to the
+     *         connection to the client, or when it connected if never, as
+     *         given by System.nanoTime()
+     */
+    long getLastPushedNanos() { return lastPushedNanos; }
+
+    /**
+     * Record that bytes have been sent to the client.
+     * @param count number of bytes sent, requires count >= 0
+     */
+    void bytesSent(long count) {
+        bytesSent.addAndGet(count);
+    }
+
+    /**
+     * Disconnect the client; the thread handling the connection notices
+     * and unregisters the session.
+     */
+    void close() {
+        try {
+            connection.close();
+        } catch (IOException ioe) {
+            // The connection is gone either way.
+        }
+    }
+
+    /** @return the room the client plays in, or null if it has left the server. */
+    public GameRoom getRoom() { return room; }
+
+    /**
+     * Record the room the client plays in; only called by RoomRegistry.
+     * @param room the room, or null if the client has left the server
+     */
+    void setRoom(GameRoom room) { this.room = room; }
+
+    /** @return the parser of the requests of the client. */
+    CommandParser getParser() { return parser; }
+
+    /** @return the buffer the windows of the board requested by the client are rendered into. */
+    StringBuilder getWindowBuffer() { return windowBuffer; }
+
+    /** @return true iff the client has switched to delta replies. */
+    boolean isDeltaMode() { return deltaMode; }
+
+    /** Switch the client to delta replies. */
+    void enableDeltaMode() { deltaMode = true; }
+
+    /** @return true iff the client has switched to run-length encoded boards. */
+    boolean isRleMode() { return rleMode; }
+
+    /** Switch the client to run-length encoded boards, see RunLengthEncoder. */
+    void enableRleMode() { rleMode = true; }
+
+    /** @return the subscription of the client to the changes of its board, or null if it watches none. */
+    BoardBroadcaster.Subscription getSubscription() { return subscription; }
+
+    /**
+     * Record the subscription of the client to the changes of its board.
+     * @param subscription the subscription, or null if the client watches no board
+     */
+    void setSubscription(BoardBroadcaster.Subscription subscription) { this.subscription = subscription; }
+
+    /**
+     * @return what to tell, from any thread, when updates of the board
+     *         watched are waiting for the client, or null if the thread
+     *         handling the connection polls for them
+     */
+    Runnable getWakeup() { return wakeup; }
+
+    /**
+     * Set what to tell when updates of the board watched are waiting for the client.
+     * @param wakeup called from any thread, or null if the thread handling
+     *               the connection polls for the updates
+     */
+    void setWakeup(Runnable wakeup) { this.wakeup = wakeup; }
+
+    /** @return the last version of the board sent to the client. */
+    long getKnownVersion() { return knownVersion; }
+
+    /**
+     * Record that the client has been sent the board at a given version.
+     * @param version a version of the board, requires version >= 0
+     */
+    void setKnownVersion(long version) {
+        knownVersion = version;
+        checkRep();
+    }
+
+    /**
+     * @return the version of the journaled board produced by the last move
+     *         of the client which changed it, or 0 if none; the replies to
+     *         that move are sent once the journal has it on disk.
+     */
+    long getJournaledVersion() { return journaledVersion; }
+
+    /**
+     * Record that a move of the client took the journaled board to a version.
+     * @param version the version, requires version >= getJournaledVersion()
+     */
+    void setJournaledVersion(long version) {
+        journaledVersion = version;
+        checkRep();
+    }
+
+    private void checkRep() {
+        assert knownVersion >= 0 : "Negative board version " + knownVersion;
+        assert journaledVersion >= 0 : "Negative journaled version " + journaledVersion;
+    }
+
+    /*
+     * @see Object.toString()
+     */
+    @Override public String toString() {
+        return "Session " + id + " from " + remoteAddress + " since " + connectedAt
+                + ": " + getCommandsHandled() + " commands, " + getBytesSent() + " bytes sent";
+    }
+}
@@ -0,0 +1,74 @@
+/* Copyright (c) 2007-2016 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+package minesweeper.server;
+
+import java.io.Closeable;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The sessions of the clients currently connected to a MinesweeperServer.
+ */
+class SessionRegistry {
+
+    // Abstraction function:
+    //      Represents the set of connected sessions, sessions.values(); the
+    //      next session registered gets the identifier nextId.
+    // Representation invariant:
+    //      each session is mapped from its id;
+    //      size equals the number of sessions, except while a register or
+    //      unregister is in progress.
+    // Safety from rep exposure:
+    //      All fields are private and final; sessions() returns a copy.
+    // Thread safety:
+    //      sessions is a ConcurrentMap and the counters are atomic;
+    //      size is updated after the map, so it never counts a session
+    //      twice, and once register returns, size() includes the new session.
+    private final ConcurrentMap<Long, Session> sessions = new ConcurrentHashMap<>();
+    private final AtomicLong nextId = new AtomicLong();
+    private final AtomicInteger size = new AtomicInteger();
+
+    /**
+     * Register the session of a client which has just connected.
+     *
+     * @param remoteAddress address of the client, or null if unknown
+     * @param connection closes the connection to the client
+     * @return the new session
+     */
+    Session register(SocketAddress remoteAddress, Closeable connection) {
+        Session session = new Session(nextId.getAndIncrement(), remoteAddress, connection);
+        sessions.put(session.getId(), session);
+        size.incrementAndGet();
+        return session;
+    }
+
+    /**
+     * Unregister the session of a client which has disconnected.
+     *
+     * @param session a session returned by register; unregistering it twice has no effects
+     */
+    void unregister(Session session) {
+        if (sessions.remove(session.getId(), session))
+            size.decrementAndGet();
+    }
+
+    /**
+     * @return the number of connected sessions
+     */
+    int size() {
+        return size.get();
+    }
+
+    /**
+     * @return a copy of the connected sessions
+     */
+    List<Session> sessions() {
+        return new ArrayList<>(sessions.values());
+    }
+}
@@ -0,0 +1,48 @@
+/* Copyright (c) 2007-2016 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+package minesweeper;
+
+/**
+ * Benchmark of Board.dig on large empty boards, where a single dig reveals
+ * the whole board.
+ *
+ * <br> Usage:
+ *      BoardBenchmark [SIZE [ROUNDS]]
+ *
+ * <br> Not a JUnit test; run it with a plain "java" command, preferably
+ *      without -ea so that checkRep does not dominate the measurement.
+ */
+public class BoardBenchmark {
+
+    private static final int DEFAULT_SIZE = 2000;
+    private static final int DEFAULT_ROUNDS = 10;
+    private static final int WARMUP_ROUNDS = 3;
+
+    public static void main(String[] args) {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_SIZE;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_ROUNDS;
+
+        for (int i = 0; i < WARMUP_ROUNDS; i++)
+            digEmptyBoard(size);
+
+        long total = 0;
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < rounds; i++) {
+            long elapsed = digEmptyBoard(size);
+            total += elapsed;
+            best = Math.min(best, elapsed);
+        }
+        System.out.println(String.format("dig on empty %dx%d board: mean %.2f ms, best %.2f ms over %d rounds",
+                size, size, total / 1e6 / rounds, best / 1e6, rounds));
+    }
+
+    // Dig the corner of an empty size x size board.
+    // @return: the latency of the dig in nanoseconds.
+    private static long digEmptyBoard(int size) {
+        Board board = new Board(size, size, (r, c) -> Board.NOTBOMB);
+        long start = System.nanoTime();
+        board.dig(0, 0);
+        return System.nanoTime() - start;
+    }
+}
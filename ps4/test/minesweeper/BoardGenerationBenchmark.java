@@ -0,0 +1,50 @@
+/* Copyright (c) 2007-2016 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+package minesweeper;
+
+/**
+ * Benchmark of making a large random board: serially, from a generator
+ * which is not thread-safe, and in parallel, from a RandomBombGenerator.
+ * Both boards have the same bombs.
+ *
+ * <br> Usage:
+ *      BoardGenerationBenchmark [SIZE [ROUNDS]]
+ *
+ * <br> Not a JUnit test; run it with a plain "java" command, without -ea,
+ *      and with a heap of at least 3 * SIZE * SIZE bytes (e.g. -Xmx1g for
+ *      the default SIZE of 10000, a board of 10^8 squares).
+ */
+public class BoardGenerationBenchmark {
+
+    private static final int DEFAULT_SIZE = 10000;
+    private static final int DEFAULT_ROUNDS = 3;
+    private static final long SEED = 42;
+    private static final double DENSITY = .25;
+
+    public static void main(String[] args) {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_SIZE;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_ROUNDS;
+        BombGenerator parallel = new RandomBombGenerator(SEED, DENSITY);
+        // Same bombs, but the board cannot tell that generate is thread-safe
+        BombGenerator serial = (r, c) -> parallel.generate(r, c);
+
+        for (int i = 0; i < rounds; i++) {
+            System.out.println(String.format("%dx%d board: serial %.0f ms, parallel %.0f ms on %d cores",
+                    size, size, make(size, serial) / 1e6, make(size, parallel) / 1e6,
+                    Runtime.getRuntime().availableProcessors()));
+        }
+    }
+
+    // Make a size x size board with the bombs of generator.
+    // @return: how long it took in nanoseconds.
+    private static long make(int size, BombGenerator generator) {
+        System.gc();
+        long start = System.nanoTime();
+        Board board = new Board(size, size, generator, 256);
+        long elapsed = System.nanoTime() - start;
+        if (board.getRow() != size)
+            throw new AssertionError("unexpected board size");
+        return elapsed;
+    }
+}
@@ -7,8 +7,23 @@ import static org.junit.Assert.*;
 import org.junit.Test;
 import junit.runner.Version;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
 import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * TODO: Description
@@ -33,6 +48,13 @@ public class BoardTest {
         assertEquals(targetBoardString, board.toString());
     }
 
+    // This test covers a board too large for one array of squares, which
+    // is rejected before anything is allocated.
+    @Test(expected=IllegalArgumentException.class)
+    public void testTooLarge() {
+        new Board(1 << 16, 1 << 15, (r, c) -> false);
+    }
+
     //
     // Testing strategies for dig(r, c) -> result
     //
@@ -237,4 +259,647 @@ public class BoardTest {
                         "- - 1    ";
         assertEquals(targetBoardString, board.toString());
     }
+
+    // This test covers that a flagged bomb is still counted by its dug neighbours.
+    @Test
+    public void testFlagBombNeighbourCount(){
+        // The "bomb map" of the board should be
+        // B - -
+        // - - -
+        // - - -
+        Board board = new Board(3, 3, (int r, int c) -> r == 0 && c == 0);
+        board.flag(0, 0);
+        assertFalse(board.dig(2, 2));
+        String targetBoardString =
+                        "F 1  \n" +
+                        "1 1  \n" +
+                        "     ";
+        assertEquals(targetBoardString, board.toString());
+    }
+
+    // This test covers a board too large for one object per square.
+    @Test
+    public void testDigLargeBoard(){
+        Board board = new Board(1000, 1000, (int r, int c) -> Board.BOMB);
+        assertTrue(board.dig(0, 0));
+        String boardString = board.toString();
+        assertEquals(2 * 1000 * 1000 - 1, boardString.length());
+        assertTrue(boardString.startsWith("3 - -"));
+    }
+
+    // This test covers digging a large empty area, which must not overflow the call stack.
+    @Test
+    public void testDigLargeEmptyBoard(){
+        Board board = new Board(2000, 2000, (int r, int c) -> r == 1999 && c == 1999);
+        assertFalse(board.dig(0, 0));
+        String boardString = board.toString();
+        assertTrue(boardString.startsWith("    "));
+        assertTrue(boardString.endsWith("1 -"));
+    }
+
+    //
+    // Testing strategies for setCheckMode(mode)
+    //
+    // mode: OFF, SAMPLED, INCREMENTAL, FULL; default mode with assertions enabled.
+    //
+    @Test
+    public void testDefaultCheckMode(){
+        Board board = new Board(3, 3, (int r, int c) -> Board.NOTBOMB);
+        assertEquals(Board.CheckMode.FULL, board.getCheckMode());
+    }
+
+    // This test covers that the check mode does not change the behaviour of the board.
+    @Test
+    public void testCheckModes(){
+        for(Board.CheckMode mode : Board.CheckMode.values()){
+            // The "bomb map" of the board is the same as in testDigBoard1
+            Board board = new Board(5, 5, (int r, int c) ->
+                    (r==1 && c==1) || (r==1 && c==2) || (r==3 && c==1));
+            board.setCheckMode(mode);
+            assertEquals(mode, board.getCheckMode());
+            board.flag(0, 0);
+            assertFalse(board.dig(3, 3));
+            assertTrue(board.dig(3, 1));
+            board.deflag(0, 0);
+            String targetBoardString =
+                    "- - - 1  \n" +
+                    "- - - 1  \n" +
+                    "1 2 2 1  \n" +
+                    "         \n" +
+                    "         ";
+            assertEquals("check mode " + mode, targetBoardString, board.toString());
+        }
+    }
+
+    //
+    // Testing strategies for getVersion() and the rendered board
+    //
+    // mutation: changes the board, has no effects.
+    //
+    @Test
+    public void testVersion(){
+        Board board = new Board(3, 3, (int r, int c) -> r == 0 && c == 0);
+        long version = board.getVersion();
+        String boardString = board.toString();
+        assertSame(boardString, board.toString());
+
+        board.dig(5, 5); // Invalid coords
+        board.deflag(1, 1); // Not flagged
+        assertEquals(version, board.getVersion());
+        assertSame(boardString, board.toString());
+
+        board.flag(1, 1);
+        assertEquals(version + 1, board.getVersion());
+        assertEquals("- - -\n- F -\n- - -", board.toString());
+
+        board.flag(1, 1); // Already flagged
+        assertEquals(version + 1, board.getVersion());
+
+        board.deflag(1, 1);
+        assertTrue(board.dig(0, 0));
+        assertEquals(version + 3, board.getVersion());
+        assertEquals("     \n     \n     ", board.toString());
+    }
+
+    //
+    // Testing strategies for diff(since)
+    //
+    // since: older than the log, in the log, current version, newer than the board.
+    // changes: none, a square changed once, a square changed several times.
+    //
+    @Test
+    public void testDiff(){
+        Board board = new Board(3, 3, (int r, int c) -> r == 0 && c == 0);
+        assertEquals(0, board.diff(0).get().size());
+        assertFalse(board.diff(1).isPresent());
+
+        board.flag(2, 2);
+        board.flag(1, 1);
+        board.deflag(2, 2);
+        Board.Delta delta = board.diff(0).get();
+        assertEquals(0, delta.getFromVersion());
+        assertEquals(3, delta.getToVersion());
+        assertEquals(2, delta.size());
+        assertEquals(1, delta.getRow(0));
+        assertEquals(1, delta.getCol(0));
+        assertEquals(Board.FLAGGED, delta.getState(0));
+        assertEquals(2, delta.getRow(1));
+        assertEquals(2, delta.getCol(1));
+        assertEquals(Board.UNTOUCHED, delta.getState(1));
+
+        delta = board.diff(2).get();
+        assertEquals(1, delta.size());
+        assertEquals(Board.UNTOUCHED, delta.getState(0));
+
+        assertEquals(0, board.diff(3).get().size());
+    }
+
+    // This test covers a dig changing more squares than the log keeps.
+    @Test
+    public void testDiffLogOverflow(){
+        Board board = new Board(300, 300, (int r, int c) -> Board.NOTBOMB);
+        board.dig(0, 0);
+        assertFalse(board.diff(0).isPresent());
+        assertEquals(0, board.diff(1).get().size());
+
+        board.flag(0, 0); // Dug, no effects
+        assertEquals(1, board.getVersion());
+        Board.Snapshot snapshot = board.snapshot();
+        assertEquals(1, snapshot.getVersion());
+        assertEquals(board.toString(), snapshot.toString());
+    }
+
+    //
+    // Testing strategies for tiled boards
+    //
+    // tile size: 1, smaller than the board, larger than the board.
+    // moves: within a tile, flooding across tiles, digging bombs on tile borders.
+    // threads: 1, several playing the same squares in different orders.
+    //
+    @Test(expected=IllegalArgumentException.class)
+    public void testTileSizeInvalid(){
+        new Board(3, 3, (int r, int c) -> Board.NOTBOMB, 0);
+    }
+
+    // This test covers that a tiled board plays the same game as a single-tile board.
+    @Test
+    public void testTiledBoardMatchesSerial(){
+        boolean[][] bombs = randomBombs(40, 30, 0.15, 12);
+        for(int tileSize : new int[] { 1, 3, 8, 64 }){
+            Board serial = new Board(40, 30, (r, c) -> bombs[r][c]);
+            Board tiled = new Board(40, 30, (r, c) -> bombs[r][c], tileSize);
+            assertEquals(tileSize, tiled.getTileSize());
+            Random random = new Random(tileSize);
+            for(int k = 0; k < 500; k++){
+                int r = random.nextInt(42) - 1;
+                int c = random.nextInt(32) - 1;
+                switch (random.nextInt(4)) {
+                    case 0:
+                        serial.flag(r, c);
+                        tiled.flag(r, c);
+                        break;
+                    case 1:
+                        serial.deflag(r, c);
+                        tiled.deflag(r, c);
+                        break;
+                    default:
+                        assertEquals(serial.dig(r, c), tiled.dig(r, c));
+                        break;
+                }
+                assertEquals("tile size " + tileSize, serial.getVersion(), tiled.getVersion());
+                assertEquals("tile size " + tileSize, serial.toString(), tiled.toString());
+            }
+        }
+    }
+
+    // This test covers concurrent digs flooding across tiles, and flags
+    // which never block a flood: a bomb square is never the neighbour of a
+    // square without neighbouring bombs. The result does not depend on the
+    // order of the moves, so it must equal the serial board.
+    @Test
+    public void testConcurrentDigsMatchSerial() throws Exception {
+        int size = 96;
+        boolean[][] bombs = randomBombs(size, size, 0.1, 5);
+        List<int[]> safe = new ArrayList<>();
+        List<int[]> bombSquares = new ArrayList<>();
+        for(int r = 0; r < size; r++)
+            for(int c = 0; c < size; c++)
+                (bombs[r][c] ? bombSquares : safe).add(new int[] { r, c });
+
+        Board serial = new Board(size, size, (r, c) -> bombs[r][c]);
+        for(int[] square : safe)
+            serial.dig(square[0], square[1]);
+        for(int[] square : bombSquares)
+            serial.flag(square[0], square[1]);
+
+        for(int round = 0; round < 5; round++){
+            Board tiled = new Board(size, size, (r, c) -> bombs[r][c], 8);
+            tiled.setCheckMode(Board.CheckMode.INCREMENTAL);
+            int threads = 8;
+            List<List<int[]>> moves = new ArrayList<>();
+            for(int t = 0; t < threads; t++){
+                List<int[]> digs = new ArrayList<>(safe);
+                Collections.shuffle(digs, new Random(31 * round + t));
+                moves.add(digs);
+            }
+            runConcurrently(threads, t -> {
+                for(int[] square : moves.get(t))
+                    assertFalse(tiled.dig(square[0], square[1]));
+                for(int k = t; k < bombSquares.size(); k += threads)
+                    tiled.flag(bombSquares.get(k)[0], bombSquares.get(k)[1]);
+            });
+            assertEquals("round " + round, serial.toString(), tiled.toString());
+        }
+    }
+
+    // This test covers concurrent digs of bombs next to tile borders: each
+    // bomb must be found by exactly one dig, and the invariant must hold
+    // after every move.
+    @Test
+    public void testConcurrentBombDigs() throws Exception {
+        int size = 48;
+        boolean[][] bombs = randomBombs(size, size, 0.3, 7);
+        int bombCount = 0;
+        for(int r = 0; r < size; r++)
+            for(int c = 0; c < size; c++)
+                if(bombs[r][c])
+                    bombCount++;
+        for(int round = 0; round < 5; round++){
+            Board tiled = new Board(size, size, (r, c) -> bombs[r][c], 4);
+            int threads = 6;
+            AtomicInteger found = new AtomicInteger();
+            int seed = round;
+            runConcurrently(threads, t -> {
+                List<Integer> squares = new ArrayList<>();
+                for(int i = 0; i < size * size; i++)
+                    squares.add(i);
+                Collections.shuffle(squares, new Random(97 * seed + t));
+                for(int i : squares)
+                    if(tiled.dig(i / size, i % size))
+                        found.incrementAndGet();
+            });
+            assertEquals("round " + round, bombCount, found.get());
+            assertFalse(tiled.toString().contains(String.valueOf(Board.UNTOUCHED)));
+        }
+    }
+
+    //
+    // Testing strategies for batch(rows, cols, count, moves)
+    //
+    // moves: flags, digs, on invalid squares; floods within the tiles of the
+    // batch, escaping them.
+    // other players: moving on the tiles of the batch, outside them.
+    //
+
+    // This test covers a batch of flags: another player moving outside its
+    // tiles is not blocked, while one moving on its tiles waits for it.
+    @Test
+    public void testBatchLocksItsTiles() throws Exception {
+        Board board = new Board(40, 40, (r, c) -> false, 8);
+        CountDownLatch inBatch = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread batch = new Thread(() -> board.batch(new int[] { 0, 1, -5 }, new int[] { 0, 2, 3 }, 3, () -> {
+            board.flag(0, 0);
+            board.flag(1, 2);
+            board.flag(-5, 3);
+            inBatch.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException ie) {
+                throw new AssertionError(ie);
+            }
+        }));
+        batch.start();
+        inBatch.await();
+        // Another tile: not blocked
+        ExecutorService other = Executors.newSingleThreadExecutor();
+        try {
+            other.submit(() -> board.flag(39, 39)).get(10, TimeUnit.SECONDS);
+            Future<?> blocked = other.submit(() -> board.flag(2, 2));
+            Thread.sleep(100);
+            assertFalse("expected the move to wait for the batch", blocked.isDone());
+            release.countDown();
+            blocked.get(10, TimeUnit.SECONDS);
+        } finally {
+            release.countDown();
+            other.shutdownNow();
+        }
+        batch.join();
+        assertEquals(4, board.getVersion());
+    }
+
+    // This test covers a batch whose flood escapes its tiles to a lower tile
+    // held by another player: the batch falls back to the whole board, in
+    // order, rather than deadlock.
+    @Test(timeout = 10000)
+    public void testBatchFallsBackToWholeBoard() throws Exception {
+        Board board = new Board(16, 16, (r, c) -> false, 4);
+        CountDownLatch inFlag = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        // The listener hears of a move under the locks of its tiles
+        board.setMoveListener((version, move, r, c) -> {
+            if(move == Board.Move.FLAG){
+                inFlag.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ie) {
+                    throw new AssertionError(ie);
+                }
+            }
+        });
+        Thread flag = new Thread(() -> board.flag(0, 0));
+        flag.start();
+        inFlag.await();
+        Thread batch = new Thread(() -> board.batch(new int[] { 15, 14 }, new int[] { 15, 14 }, 2, () -> {
+            assertFalse(board.dig(15, 15));
+            assertFalse(board.dig(14, 14));
+        }));
+        batch.start();
+        Thread.sleep(100);
+        assertTrue("expected the batch to wait for the tile of the flag", batch.isAlive());
+        release.countDown();
+        flag.join();
+        batch.join();
+        assertEquals(1, board.contention().getRetriedDigs());
+        assertEquals(2, board.getVersion());
+        assertTrue(board.toString().startsWith("F  "));
+        assertFalse(board.toString().contains(String.valueOf(Board.UNTOUCHED)));
+    }
+
+    // This test covers batches of digs whose floods escape their tiles,
+    // racing other players: they must not deadlock, and the board must end
+    // as if the moves were played serially.
+    @Test
+    public void testBatchFloodEscapes() throws Exception {
+        int size = 48;
+        boolean[][] bombs = randomBombs(size, size, 0.05, 9);
+        List<int[]> safe = new ArrayList<>();
+        for(int r = 0; r < size; r++)
+            for(int c = 0; c < size; c++)
+                if(!bombs[r][c])
+                    safe.add(new int[] { r, c });
+        Board serial = new Board(size, size, (r, c) -> bombs[r][c]);
+        for(int[] square : safe)
+            serial.dig(square[0], square[1]);
+
+        Board tiled = new Board(size, size, (r, c) -> bombs[r][c], 4);
+        tiled.setCheckMode(Board.CheckMode.FULL);
+        int threads = 4;
+        runConcurrently(threads, t -> {
+            List<int[]> digs = new ArrayList<>(safe);
+            Collections.shuffle(digs, new Random(t));
+            // Batches of 3 digs, and single digs on every other thread
+            for(int k = 0; k + 3 <= digs.size(); k += 3){
+                int[] rows = { digs.get(k)[0], digs.get(k + 1)[0], digs.get(k + 2)[0] };
+                int[] cols = { digs.get(k)[1], digs.get(k + 1)[1], digs.get(k + 2)[1] };
+                if(t % 2 == 0)
+                    tiled.batch(rows, cols, 3, () -> {
+                        for(int i = 0; i < 3; i++)
+                            assertFalse(tiled.dig(rows[i], cols[i]));
+                    });
+                else
+                    for(int i = 0; i < 3; i++)
+                        assertFalse(tiled.dig(rows[i], cols[i]));
+            }
+            for(int[] square : digs)
+                tiled.dig(square[0], square[1]);
+        });
+        assertEquals(serial.toString(), tiled.toString());
+    }
+
+    //
+    // Testing strategies for snapshot(), diff(since) and contention()
+    //
+    // readers: none, concurrent with a writer.
+    // snapshot: cached, rendered again.
+    // contention: no contention, reads racing writes.
+    //
+    @Test
+    public void testContention(){
+        Board board = new Board(3, 3, (int r, int c) -> Board.NOTBOMB);
+        Board.Contention before = board.contention();
+        assertEquals(0, before.getWrites());
+        board.snapshot();
+        board.snapshot();
+        board.flag(0, 0);
+        board.flag(0, 0); // No effects
+        board.toString();
+        board.diff(0);
+        Board.Contention after = board.contention();
+        assertEquals(1, after.getWrites());
+        assertEquals(1, after.getCachedReads());
+        assertEquals(3, after.getOptimisticReads());
+        assertEquals(0, after.getFailedOptimisticReads());
+        assertEquals(0, after.getLockedReads());
+        assertEquals(0, after.getContendedWrites());
+        assertEquals(0, after.getContendedTileLocks());
+        assertEquals(0, after.getRetriedDigs());
+    }
+
+    // This test covers readers racing a writer: every snapshot and every
+    // delta must show the board exactly as it was at their version.
+    @Test
+    public void testConcurrentReadsConsistent() throws Exception {
+        int size = 30;
+        boolean[][] bombs = randomBombs(size, size, 0.2, 3);
+        List<int[]> moves = new ArrayList<>();
+        Random random = new Random(11);
+        for(int k = 0; k < 400; k++)
+            moves.add(new int[] { random.nextInt(3), random.nextInt(size), random.nextInt(size) });
+        // The board at each version, played serially
+        List<String> expected = new ArrayList<>();
+        Board serial = new Board(size, size, (r, c) -> bombs[r][c]);
+        expected.add(serial.toString());
+        for(int[] move : moves){
+            play(serial, move);
+            if(serial.getVersion() == expected.size())
+                expected.add(serial.toString());
+        }
+
+        Board board = new Board(size, size, (r, c) -> bombs[r][c], 8);
+        board.setCheckMode(Board.CheckMode.INCREMENTAL);
+        AtomicInteger done = new AtomicInteger();
+        runConcurrently(4, t -> {
+            if(t == 0){
+                for(int[] move : moves)
+                    play(board, move);
+                done.set(1);
+                return;
+            }
+            while(done.get() == 0){
+                Board.Snapshot snapshot = board.snapshot();
+                assertEquals(expected.get((int) snapshot.getVersion()), snapshot.toString());
+                long since = snapshot.getVersion();
+                Optional<Board.Delta> diff = board.diff(since);
+                if(!diff.isPresent())
+                    continue;
+                Board.Delta delta = diff.get();
+                char[] squares = expected.get((int) since).toCharArray();
+                for(int k = 0; k < delta.size(); k++)
+                    squares[2 * (delta.getRow(k) * size + delta.getCol(k))] = delta.getState(k);
+                assertEquals(expected.get((int) delta.getToVersion()), new String(squares));
+            }
+        });
+        assertEquals(expected.get(expected.size() - 1), board.toString());
+    }
+
+    // Play a move { kind, r, c } where kind 0 is a flag, 1 a deflag and 2 a dig.
+    private static void play(Board board, int[] move){
+        if(move[0] == 0)
+            board.flag(move[1], move[2]);
+        else if(move[0] == 1)
+            board.deflag(move[1], move[2]);
+        else
+            board.dig(move[1], move[2]);
+    }
+
+    // This test covers filling a large board in parallel: the same board as
+    // filled serially, from a generator which is not thread-safe
+    @Test
+    public void testParallelFill() {
+        BombGenerator generator = new RandomBombGenerator(3, .2);
+        Board parallel = new Board(700, 600, generator, 64);
+        Board serial = new Board(700, 600, (r, c) -> generator.generate(r, c), 64);
+        assertEquals(serial.toString(), parallel.toString());
+        Random random = new Random(3);
+        for(int k = 0; k < 200; k++){
+            int r = random.nextInt(700);
+            int c = random.nextInt(600);
+            assertEquals(serial.dig(r, c), parallel.dig(r, c));
+        }
+        assertEquals(serial.toString(), parallel.toString());
+    }
+
+    //
+    // Testing strategies for render(r0, c0, rows, cols, out)
+    //
+    // window: single square, whole board, inside, overlapping the edges,
+    //         outside the board, empty, huge.
+    // out: empty, with text before the window, reused.
+    //
+    @Test
+    public void testRender() {
+        Board board = new Board(50, 40, new RandomBombGenerator(5, .15), 8);
+        Random random = new Random(5);
+        for(int k = 0; k < 100; k++)
+            board.dig(random.nextInt(50), random.nextInt(40));
+        board.flag(0, 39);
+        String[] lines = board.toString().split("\n");
+        StringBuilder out = new StringBuilder();
+        assertEquals(board.getVersion(), board.render(0, 0, 50, 40, out));
+        assertEquals(board.toString(), out.toString());
+
+        out.setLength(0);
+        board.render(0, 39, 1, 1, out);
+        assertEquals("F", out.toString());
+
+        for(int k = 0; k < 50; k++){
+            int r0 = random.nextInt(60);
+            int c0 = random.nextInt(50);
+            int rows = random.nextInt(20);
+            int cols = random.nextInt(20);
+            StringBuilder expected = new StringBuilder();
+            for(int r = r0; r < Math.min(r0 + rows, 50); r++){
+                if(c0 >= 40 || cols == 0)
+                    break;
+                if(r > r0)
+                    expected.append('\n');
+                expected.append(lines[r], 2 * c0, Math.min(2 * (c0 + cols), 2 * 40) - 1);
+            }
+            out.setLength(0);
+            out.append("window:");
+            board.render(r0, c0, rows, cols, out);
+            assertEquals(r0 + "," + c0 + " " + rows + "x" + cols, "window:" + expected, out.toString());
+        }
+
+        out.setLength(0);
+        board.render(45, 35, Integer.MAX_VALUE, Integer.MAX_VALUE, out);
+        assertEquals(String.join("\n", Arrays.stream(lines, 45, 50)
+                .map(line -> line.substring(70)).toArray(String[]::new)), out.toString());
+        try{
+            board.render(-1, 0, 1, 1, out);
+            fail("expected IllegalArgumentException");
+        }catch(IllegalArgumentException iae){
+            // expected
+        }
+    }
+
+    //
+    // Testing strategies for save(out, compress) and load(in)
+    //
+    // compress: true, false.
+    // board: empty 0x0, with untouched, flagged and dug squares, odd number of squares.
+    // snapshot: valid, bad magic, unknown format, truncated, dug bomb.
+    //
+    @Test
+    public void testSaveLoad() throws IOException {
+        boolean[][] bombs = randomBombs(9, 7, 0.2, 16);
+        for(boolean compress : new boolean[] { false, true }){
+            Board board = new Board(9, 7, (r, c) -> bombs[r][c]);
+            Random random = new Random(16);
+            for(int k = 0; k < 30; k++)
+                play(board, new int[] { random.nextInt(3), random.nextInt(9), random.nextInt(7) });
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            board.save(out, compress);
+            Board loaded = Board.load(new ByteArrayInputStream(out.toByteArray()), 4);
+            assertEquals(board.getRow(), loaded.getRow());
+            assertEquals(board.getCol(), loaded.getCol());
+            assertEquals(board.getVersion(), loaded.getVersion());
+            assertEquals(board.toString(), loaded.toString());
+            assertFalse(loaded.diff(0).isPresent());
+            assertEquals(0, loaded.diff(loaded.getVersion()).get().size());
+            // Both boards play the rest of the game the same way
+            for(int k = 0; k < 30; k++){
+                int[] move = { random.nextInt(3), random.nextInt(9), random.nextInt(7) };
+                play(board, move);
+                play(loaded, move);
+            }
+            assertEquals(board.toString(), loaded.toString());
+            assertEquals(board.getVersion(), loaded.getVersion());
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new Board(0, 0, (r, c) -> Board.NOTBOMB).save(out, true);
+        assertEquals("", Board.load(new ByteArrayInputStream(out.toByteArray())).toString());
+    }
+
+    @Test
+    public void testLoadMalformed() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Board board = new Board(3, 3, (r, c) -> r == 1 && c == 1);
+        board.flag(0, 0);
+        board.save(out, false);
+        byte[] snapshot = out.toByteArray();
+        // Header: magic (4), format (2), flags (1), rows (4), cols (4), version (8)
+        assertEquals(23 + 5, snapshot.length);
+
+        byte[][] malformed = {
+            Arrays.copyOf(snapshot, 0),
+            Arrays.copyOf(snapshot, snapshot.length - 1),
+            snapshot.clone(), snapshot.clone(), snapshot.clone(), snapshot.clone()
+        };
+        malformed[2][0] = 'X';      // magic
+        malformed[3][5] = 2;        // format
+        malformed[4][6] = 0b10;     // flags
+        malformed[5][23 + 2] = 0b0110; // dug bomb at square 4
+        for(byte[] bytes : malformed){
+            try{
+                Board.load(new ByteArrayInputStream(bytes));
+                fail("expected IOException");
+            }catch(IOException ioe){
+                // expected
+            }
+        }
+    }
+
+    // A move played by the thread numbered t.
+    private interface Player {
+        void play(int t) throws Exception;
+    }
+
+    // Run player on threads threads numbered 0..threads-1 at once, and
+    // rethrow the first failure; fail if they deadlock.
+    private static void runConcurrently(int threads, Player player) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Void>> results = new ArrayList<>();
+            for(int t = 0; t < threads; t++){
+                int number = t;
+                results.add(executor.submit(() -> { player.play(number); return null; }));
+            }
+            for(Future<Void> result : results)
+                result.get(60, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    // Place bombs at random with the given density.
+    private static boolean[][] randomBombs(int row, int col, double density, long seed){
+        Random random = new Random(seed);
+        boolean[][] bombs = new boolean[row][col];
+        for(int r = 0; r < row; r++)
+            for(int c = 0; c < col; c++)
+                bombs[r][c] = random.nextDouble() < density;
+        return bombs;
+    }
 }
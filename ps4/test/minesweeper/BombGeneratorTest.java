@@ -0,0 +1,112 @@
+/* Copyright (c) 2007-2016 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+package minesweeper;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the BombGenerator implementations.
+ */
+public class BombGeneratorTest {
+
+    /*
+     * Testing strategies
+     *
+     * Partition the inputs as follows:
+     * generator: RandomBombGenerator, BitSetBombGenerator.exactCount, DensityMapBombGenerator
+     * seed: same seed twice, different seeds
+     * density: 0, 1, in between
+     * count: 0, all the squares, at most half, more than half
+     * map: 1x1, coarser than the board, invalid
+     */
+
+    // Count the bombs a generator places on a row x col board.
+    private static int countBombs(BombGenerator generator, int row, int col) {
+        int count = 0;
+        for (int r = 0; r < row; r++)
+            for (int c = 0; c < col; c++)
+                if (generator.generate(r, c))
+                    count++;
+        return count;
+    }
+
+    // Check that two generators place the same bombs on a row x col board.
+    private static boolean sameBombs(BombGenerator a, BombGenerator b, int row, int col) {
+        for (int r = 0; r < row; r++)
+            for (int c = 0; c < col; c++)
+                if (a.generate(r, c) != b.generate(r, c))
+                    return false;
+        return true;
+    }
+
+    @Test
+    public void testRandom() {
+        BombGenerator generator = new RandomBombGenerator(42, .25);
+        assertTrue(generator.isThreadSafe());
+        assertTrue(sameBombs(generator, new RandomBombGenerator(42, .25), 100, 100));
+        assertFalse(sameBombs(generator, new RandomBombGenerator(43, .25), 100, 100));
+        // The squares do not depend on the order they are generated in
+        assertEquals(generator.generate(7, 3), generator.generate(7, 3));
+        int count = countBombs(generator, 200, 200);
+        assertTrue("got " + count + " bombs", count > 9000 && count < 11000);
+        assertEquals(0, countBombs(new RandomBombGenerator(42, 0), 50, 50));
+        assertEquals(2500, countBombs(new RandomBombGenerator(42, 1), 50, 50));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRandomInvalidDensity() {
+        new RandomBombGenerator(0, 1.5);
+    }
+
+    @Test
+    public void testExactCount() {
+        for (int count : new int[] { 0, 1, 37, 50, 51, 99, 100 }) {
+            BitSetBombGenerator generator = BitSetBombGenerator.exactCount(10, 10, count, 7);
+            assertEquals(count, generator.bombCount());
+            assertEquals(count, countBombs(generator, 10, 10));
+            assertTrue(sameBombs(generator, BitSetBombGenerator.exactCount(10, 10, count, 7), 10, 10));
+        }
+        assertFalse(sameBombs(BitSetBombGenerator.exactCount(10, 10, 30, 7),
+                BitSetBombGenerator.exactCount(10, 10, 30, 8), 10, 10));
+        assertEquals(0, BitSetBombGenerator.exactCount(0, 5, 0, 7).bombCount());
+        // Every square is as likely to get a bomb
+        int[] hits = new int[4];
+        for (int seed = 0; seed < 4000; seed++) {
+            BitSetBombGenerator generator = BitSetBombGenerator.exactCount(2, 2, 1, seed);
+            for (int i = 0; i < 4; i++)
+                if (generator.generate(i / 2, i % 2))
+                    hits[i]++;
+        }
+        for (int hit : hits)
+            assertTrue("got " + hit + " hits", hit > 800 && hit < 1200);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testExactCountTooMany() {
+        BitSetBombGenerator.exactCount(3, 3, 10, 0);
+    }
+
+    @Test
+    public void testDensityMap() {
+        double[][] map = { { 0, 1 }, { 1, 0 } };
+        BombGenerator generator = new DensityMapBombGenerator(map, 6, 4, 5);
+        assertTrue(generator.isThreadSafe());
+        for (int r = 0; r < 6; r++)
+            for (int c = 0; c < 4; c++)
+                assertEquals("square (" + r + ", " + c + ")", (r < 3) == (c >= 2), generator.generate(r, c));
+        // The map is copied
+        map[0][0] = 1;
+        assertFalse(generator.generate(0, 0));
+        // A 1x1 map places bombs as a RandomBombGenerator with the same density and seed
+        assertTrue(sameBombs(new DensityMapBombGenerator(new double[][] { { .3 } }, 50, 50, 9),
+                new RandomBombGenerator(9, .3), 50, 50));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDensityMapNotRectangular() {
+        new DensityMapBombGenerator(new double[][] { { .1, .2 }, { .3 } }, 4, 4, 0);
+    }
+}
@@ -0,0 +1,145 @@
+/* Copyright (c) 2007-2016 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+package minesweeper;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for ChunkedBoard.
+ */
+public class ChunkedBoardTest {
+
+    /*
+     * Testing strategies
+     *
+     * Partition the inputs as follows:
+     * board: smaller than a chunk, several chunks with partial chunks at the
+     *        edges, Integer.MAX_VALUE x Integer.MAX_VALUE
+     * moves: dig, flag, deflag, on squares inside a chunk, on the edge of a
+     *        chunk whose neighbour is or is not stored yet, invalid squares
+     * flood: within a chunk, across chunks
+     * chunks: allocated, left as generated and evicted
+     * render: whole board, rectangle inside, rectangle beyond the board, empty
+     */
+
+    @Test(expected=AssertionError.class)
+    public void testAssertionsEnabled() {
+        assert false; // make sure assertions are enabled with VM argument: -ea
+    }
+
+    // This test covers playing the same moves as on a Board, across chunks
+    @Test
+    public void testSameAsBoard() {
+        for (double density : new double[] { .05, .2 }) {
+            BombGenerator generator = new RandomBombGenerator(11, density);
+            ChunkedBoard chunked = new ChunkedBoard(150, 130, generator);
+            Board board = new Board(150, 130, generator);
+            assertEquals(board.toString(), chunked.toString());
+            assertEquals(0, chunked.getChunkCount());
+            Random random = new Random(5);
+            for (int k = 0; k < 400; k++) {
+                int r = random.nextInt(152) - 1;
+                int c = random.nextInt(132) - 1;
+                switch (random.nextInt(4)) {
+                    case 0:
+                    case 1:
+                        assertEquals(board.dig(r, c), chunked.dig(r, c));
+                        break;
+                    case 2:
+                        board.flag(r, c);
+                        chunked.flag(r, c);
+                        break;
+                    default:
+                        board.deflag(r, c);
+                        chunked.deflag(r, c);
+                        break;
+                }
+                assertEquals(board.getVersion(), chunked.getVersion());
+            }
+            assertEquals(board.toString(), chunked.toString());
+        }
+    }
+
+    // This test covers removing a bomb next to a chunk which is not stored yet
+    @Test
+    public void testBombOnChunkEdge() {
+        int edge = ChunkedBoard.CHUNK_SIZE - 1;
+        // The bomb at (edge - 1, edge - 1) stops the first dig from flooding
+        BombGenerator generator = (r, c) -> (r == edge || r == edge - 1) && r == c;
+        ChunkedBoard chunked = new ChunkedBoard(200, 200, generator);
+        Board board = new Board(200, 200, generator);
+        assertTrue(chunked.dig(edge, edge));
+        assertTrue(board.dig(edge, edge));
+        assertEquals(1, chunked.getChunkCount());
+        assertEquals(board.toString(), chunked.toString());
+        // The neighbouring chunk no longer counts the bomb when it is stored
+        assertFalse(chunked.dig(edge + 1, edge + 1));
+        assertFalse(board.dig(edge + 1, edge + 1));
+        assertEquals(16, chunked.getChunkCount());
+        assertEquals(board.toString(), chunked.toString());
+    }
+
+    // This test covers evicting the chunks left as generated
+    @Test
+    public void testEviction() {
+        ChunkedBoard chunked = new ChunkedBoard(1000, 1000, new RandomBombGenerator(3, .3));
+        chunked.deflag(500, 500);
+        assertEquals(0, chunked.getChunkCount());
+        assertEquals(1, chunked.getChunksEvicted());
+        assertEquals(0, chunked.getVersion());
+
+        chunked.flag(500, 500);
+        chunked.flag(10, 10);
+        assertEquals(2, chunked.getChunkCount());
+        chunked.deflag(500, 500);
+        assertEquals(1, chunked.getChunkCount());
+        assertEquals(2, chunked.getChunksEvicted());
+        assertEquals(3, chunked.getVersion());
+        assertEquals("F -\n- -", chunked.render(10, 10, 2, 2));
+        chunked.dig(11, 11);
+        chunked.deflag(10, 10);
+        // The chunk holds a dug square, and is kept
+        assertEquals(1, chunked.getChunkCount());
+    }
+
+    // This test covers a board too large to store
+    @Test
+    public void testHugeBoard() {
+        int size = Integer.MAX_VALUE;
+        ChunkedBoard chunked = new ChunkedBoard(size, size, new RandomBombGenerator(7, .25));
+        int r = 1_000_000_000;
+        Random random = new Random(7);
+        for (int k = 0; k < 200; k++)
+            chunked.dig(r + random.nextInt(100), r + random.nextInt(100));
+        chunked.flag(size - 1, size - 1);
+        assertTrue(chunked.getChunkCount() <= 10);
+        String view = chunked.render(r, r, 100, 100);
+        assertEquals(100, view.split("\n").length);
+        assertTrue(view.matches("[ 1-8F\\-\n]+"));
+        assertEquals("- -\n- F", chunked.render(size - 2, size - 2, 5, 5));
+        assertFalse(chunked.dig(-1, 0));
+        assertFalse(chunked.dig(0, size));
+    }
+
+    // This test covers rendering rectangles of the board
+    @Test
+    public void testRender() {
+        ChunkedBoard chunked = new ChunkedBoard(3, 4, (r, c) -> r == 0 && c == 3);
+        assertFalse(chunked.dig(2, 0));
+        assertEquals("    1 -\n    1 1\n       ", chunked.toString());
+        assertEquals("1 -\n1 1", chunked.render(0, 2, 2, 10));
+        assertEquals("", chunked.render(3, 0, 2, 2));
+        assertEquals("", chunked.render(0, 0, 0, 4));
+        assertEquals("", new ChunkedBoard(0, 0, (r, c) -> Board.NOTBOMB).toString());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRenderInvalid() {
+        new ChunkedBoard(3, 3, (r, c) -> Board.NOTBOMB).render(-1, 0, 1, 1);
+    }
+}
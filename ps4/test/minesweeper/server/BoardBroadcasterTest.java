@@ -0,0 +1,110 @@
+/* Copyright (c) 2007-2016 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+package minesweeper.server;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import minesweeper.Board;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for BoardBroadcaster.
+ */
+public class BoardBroadcasterTest {
+
+    /*
+     * Testing strategies
+     *
+     * Partition the inputs as follows:
+     * spectators of a board: 0, 1, several; on several boards
+     * changes between broadcasts: none, some, more than the diff log holds
+     * queue: empty, partly full, overflowing
+     * wakeup: null, counting
+     */
+
+    // Render the whole board as the server does, for the resync messages.
+    private static String boardMessage(Board.Snapshot snapshot) {
+        return "BOARD " + snapshot.getVersion() + "\n" + snapshot;
+    }
+
+    @Test
+    public void testFanOut() {
+        Board board = new Board(4, 4, (r, c) -> r == 3 && c == 3);
+        Board other = new Board(4, 4, (r, c) -> false);
+        BoardBroadcaster broadcaster = new BoardBroadcaster(10, 8);
+        AtomicInteger wakeups = new AtomicInteger();
+        BoardBroadcaster.Subscription first = broadcaster.subscribe(board, wakeups::incrementAndGet);
+        BoardBroadcaster.Subscription second = broadcaster.subscribe(board, null);
+        BoardBroadcaster.Subscription third = broadcaster.subscribe(other, null);
+        assertEquals(2, broadcaster.getChannelCount());
+
+        broadcaster.broadcast();
+        assertTrue(first.drain(BoardBroadcasterTest::boardMessage).isEmpty());
+        assertEquals(0, wakeups.get());
+
+        board.flag(0, 1);
+        broadcaster.broadcast();
+        assertEquals(1, wakeups.get());
+        assertEquals(1, broadcaster.getBroadcasts());
+        List<String> messages = first.drain(BoardBroadcasterTest::boardMessage);
+        assertEquals(1, messages.size());
+        assertEquals("DELTA 0 1 1\n1 0 F", messages.get(0));
+        // Rendered once for all the spectators of the board
+        assertSame(messages.get(0), second.drain(BoardBroadcasterTest::boardMessage).get(0));
+        assertTrue(third.drain(BoardBroadcasterTest::boardMessage).isEmpty());
+
+        board.deflag(0, 1);
+        board.dig(3, 0);
+        broadcaster.broadcast();
+        messages = first.drain(BoardBroadcasterTest::boardMessage);
+        assertEquals(1, messages.size());
+        assertTrue(messages.get(0), messages.get(0).startsWith("DELTA 1 3 "));
+
+        broadcaster.unsubscribe(first);
+        broadcaster.unsubscribe(second);
+        broadcaster.unsubscribe(third);
+        assertEquals(0, broadcaster.getChannelCount());
+        board.flag(0, 1);
+        broadcaster.broadcast();
+        assertTrue(first.drain(BoardBroadcasterTest::boardMessage).isEmpty());
+    }
+
+    @Test
+    public void testSlowSpectatorResync() {
+        Board board = new Board(4, 4, (r, c) -> false);
+        BoardBroadcaster broadcaster = new BoardBroadcaster(10, 2);
+        BoardBroadcaster.Subscription slow = broadcaster.subscribe(board, null);
+        BoardBroadcaster.Subscription fast = broadcaster.subscribe(board, null);
+        for (int k = 0; k < 4; k++) {
+            board.flag(0, k);
+            broadcaster.broadcast();
+            assertEquals(1, fast.drain(BoardBroadcasterTest::boardMessage).size());
+        }
+        assertEquals(1, broadcaster.getResyncs());
+        List<String> messages = slow.drain(BoardBroadcasterTest::boardMessage);
+        assertEquals(1, messages.size());
+        assertEquals("BOARD 4\nF F F F\n- - - -\n- - - -\n- - - -", messages.get(0));
+
+        // Caught up: back to the changes
+        board.deflag(0, 0);
+        broadcaster.broadcast();
+        assertEquals("DELTA 4 5 1\n0 0 -", slow.drain(BoardBroadcasterTest::boardMessage).get(0));
+    }
+
+    @Test
+    public void testUpdatesAlreadySent() {
+        Board board = new Board(4, 4, (r, c) -> false);
+        BoardBroadcaster broadcaster = new BoardBroadcaster(10, 8);
+        BoardBroadcaster.Subscription subscription = broadcaster.subscribe(board, null);
+        board.flag(1, 1);
+        broadcaster.broadcast();
+        // The spectator was sent the whole board at version 1 meanwhile
+        subscription.synced(1);
+        assertTrue(subscription.drain(BoardBroadcasterTest::boardMessage).isEmpty());
+    }
+}
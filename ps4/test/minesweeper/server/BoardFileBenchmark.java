@@ -0,0 +1,50 @@
+/* Copyright (c) 2007-2016 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+package minesweeper.server;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * Benchmark of BoardFile.load on a large generated board file, reporting
+ * its load time and peak heap usage.
+ *
+ * <br> Usage:
+ *      BoardFileBenchmark [SIZE [ROUNDS]]
+ *
+ * <br> Not a JUnit test; run it with a plain "java" command.
+ */
+public class BoardFileBenchmark {
+
+    private static final int DEFAULT_SIZE = 3000;
+    private static final int DEFAULT_ROUNDS = 5;
+
+    public static void main(String[] args) throws IOException {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_SIZE;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_ROUNDS;
+
+        File file = File.createTempFile("board", ".txt");
+        file.deleteOnExit();
+        Random random = new Random(0);
+        try (BufferedWriter out = Files.newBufferedWriter(file.toPath(), StandardCharsets.US_ASCII)) {
+            out.write(size + " " + size + "\n");
+            for (int r = 0; r < size; r++) {
+                for (int c = 0; c < size; c++) {
+                    out.write(random.nextInt(4) == 0 ? '1' : '0');
+                    out.write(c == size - 1 ? '\n' : ' ');
+                }
+            }
+        }
+        System.out.println(String.format("%s: %.1f MB", file, file.length() / (double) (1 << 20)));
+
+        for (int i = 0; i < rounds; i++) {
+            System.gc();
+            System.out.println(BoardFile.load(file));
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/* Copyright (c) 2007-2016 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+package minesweeper.server;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+
+import minesweeper.Board;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for BoardFile.
+ */
+public class BoardFileTest {
+
+    /*
+     * Testing strategies
+     *
+     * Partition the inputs as follows:
+     * board: square, not square, 0 rows
+     * newlines: "\n", "\r\n", "\r", missing after the last line, trailing empty lines
+     * spacing: single spaces, runs of spaces and tabs, trailing spaces,
+     *          leading spaces
+     * windows: file in one window, lines spanning several windows
+     * malformed: bad header, too few or too many values or lines, leading
+     *            space, value other than 0 or 1
+     */
+
+    // Write content to a temporary file.
+    private static File write(String content) throws IOException {
+        File file = File.createTempFile("board", ".txt");
+        file.deleteOnExit();
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.US_ASCII));
+        return file;
+    }
+
+    @Test
+    public void testLoad() throws IOException {
+        BoardFile boardFile = BoardFile.load(write("2 3\n0 1 0\n1 0 0\n"));
+        assertEquals(2, boardFile.getRows());
+        assertEquals(3, boardFile.getCols());
+        assertEquals(2, boardFile.getBombs().bombCount());
+        assertTrue(boardFile.getBombs().generate(0, 1));
+        assertTrue(boardFile.getBombs().generate(1, 0));
+        assertFalse(boardFile.getBombs().generate(1, 2));
+        assertTrue(boardFile.getLoadNanos() >= 0);
+        assertTrue(boardFile.getPeakHeapBytes() >= 0);
+
+        Board board = boardFile.newBoard(Integer.MAX_VALUE);
+        assertFalse(board.dig(0, 0));
+        assertEquals("2 - -\n- - -", board.toString());
+    }
+
+    @Test
+    public void testNewlines() throws IOException {
+        String[] contents = { "2 2\r\n0 1\r\n0 0\r\n", "2 2\r0 1\r0 0", "2 2\n0 1\n0 0", "2 2\n0 1\n0 0\n\n\n" };
+        for (String content : contents) {
+            BoardFile boardFile = BoardFile.load(write(content));
+            assertEquals(2, boardFile.getRows());
+            assertEquals(1, boardFile.getBombs().bombCount());
+            assertTrue(boardFile.getBombs().generate(0, 1));
+        }
+        assertEquals(0, BoardFile.load(write("0 5\n")).getRows());
+    }
+
+    @Test
+    public void testWhitespaceRuns() throws IOException {
+        String[] contents = { "2  2\n0  1\n0\t0\n", "2 2 \n0 1 \n0 0  \n", "2\t 2\r\n0 \t1\t\r\n0 0 " };
+        for (String content : contents) {
+            BoardFile boardFile = BoardFile.load(write(content));
+            assertEquals(2, boardFile.getRows());
+            assertEquals(2, boardFile.getCols());
+            assertEquals(1, boardFile.getBombs().bombCount());
+            assertTrue(boardFile.getBombs().generate(0, 1));
+        }
+    }
+
+    @Test
+    public void testMalformed() throws IOException {
+        String[] contents = {
+            "", "2\n", "2 x\n", "2 \n", " 2 2\n0 0\n0 0\n", "2 2 2\n0 0\n0 0\n", "2 2\n0 0\n",
+            "2 2\n0 0\n0 0\n0 0\n", "2 2\n0 0 0\n0 0\n", "2 2\n0\n0 0\n", "2 2\n 0 0\n0 0\n", "2 2\n0 2\n0 0\n",
+            "2 2\n0 0\n0 ", "2 2\n00\n00\n", "99999 99999\n"
+        };
+        for (String content : contents) {
+            try {
+                BoardFile.load(write(content));
+                fail("expected IOException for " + content.replace("\n", "\\n"));
+            } catch (IOException ioe) {
+                assertTrue(ioe.getMessage().startsWith("malformed board file"));
+            }
+        }
+    }
+
+    // This test covers mapping a file in windows smaller than a line.
+    @Test
+    public void testWindows() throws IOException {
+        Random random = new Random(15);
+        int rows = 50;
+        int cols = 70;
+        boolean[][] bombs = new boolean[rows][cols];
+        StringBuilder content = new StringBuilder(rows + " " + cols + "\r\n");
+        for (int r = 0; r < rows; r++) {
+            for (int c = 0; c < cols; c++) {
+                bombs[r][c] = random.nextInt(4) == 0;
+                content.append(bombs[r][c] ? '1' : '0').append(c == cols - 1 ? "\r\n" : " ");
+            }
+        }
+        File file = write(content.toString());
+        for (int windowSize : new int[] { 64, 100, 4096, 1 << 20 }) {
+            BoardFile boardFile = BoardFile.load(file, windowSize);
+            for (int r = 0; r < rows; r++)
+                for (int c = 0; c < cols; c++)
+                    assertEquals("window " + windowSize, bombs[r][c], boardFile.getBombs().generate(r, c));
+        }
+    }
+}
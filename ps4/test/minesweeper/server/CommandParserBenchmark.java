@@ -0,0 +1,86 @@
+/* Copyright (c) 2007-2016 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+package minesweeper.server;
+
+/**
+ * Benchmark of CommandParser against the regular expression, split and
+ * parseInt path it replaces in MinesweeperServer.handleRequest.
+ *
+ * <br> Usage:
+ *      CommandParserBenchmark [LINES [ROUNDS]]
+ *
+ * <br> Not a JUnit test; run it with a plain "java" command.
+ */
+public class CommandParserBenchmark {
+
+    private static final int DEFAULT_LINES = 1_000_000;
+    private static final int DEFAULT_ROUNDS = 5;
+    private static final int WARMUP_ROUNDS = 3;
+    private static final String REGEX = "(look)|(look \\d+)|(help)|(bye)|(delta)|"
+                                       + "(dig -?\\d+ -?\\d+)|(flag -?\\d+ -?\\d+)|(deflag -?\\d+ -?\\d+)";
+    private static final String[] MIX = {
+        "dig 3 12", "flag 10 4", "look", "deflag 10 4", "dig -1 7", "look 42", "dig 2147483647 0", "oops"
+    };
+
+    public static void main(String[] args) {
+        int lines = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_LINES;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_ROUNDS;
+
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            regexPath(lines);
+            parserPath(lines);
+        }
+
+        long regexBest = Long.MAX_VALUE;
+        long parserBest = Long.MAX_VALUE;
+        for (int i = 0; i < rounds; i++) {
+            regexBest = Math.min(regexBest, regexPath(lines));
+            parserBest = Math.min(parserBest, parserPath(lines));
+        }
+        System.out.println(String.format("regex:  %.1f ns/line", (double) regexBest / lines));
+        System.out.println(String.format("parser: %.1f ns/line", (double) parserBest / lines));
+    }
+
+    // Parse lines requests the way handleRequest used to.
+    // @return: the time taken in nanoseconds.
+    private static long regexPath(int lines) {
+        long sink = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < lines; i++) {
+            String line = MIX[i % MIX.length];
+            if ( ! line.matches(REGEX))
+                continue;
+            String[] tokens = line.split(" ");
+            try {
+                if (tokens.length == 3)
+                    sink += Integer.parseInt(tokens[1]) + Integer.parseInt(tokens[2]);
+                else if (tokens.length == 2)
+                    sink += Long.parseLong(tokens[1]);
+            } catch (NumberFormatException nfe) {
+                sink--;
+            }
+            sink += tokens[0].length();
+        }
+        long elapsed = System.nanoTime() - start;
+        if (sink == 42)
+            System.out.print("");
+        return elapsed;
+    }
+
+    // Parse lines requests with a CommandParser.
+    // @return: the time taken in nanoseconds.
+    private static long parserPath(int lines) {
+        CommandParser parser = new CommandParser();
+        long sink = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < lines; i++) {
+            Command command = parser.parse(MIX[i % MIX.length]);
+            sink += command.getX() + command.getY() + command.getVersion() + command.getType().ordinal();
+        }
+        long elapsed = System.nanoTime() - start;
+        if (sink == 42)
+            System.out.print("");
+        return elapsed;
+    }
+}
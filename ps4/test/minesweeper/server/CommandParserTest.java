@@ -0,0 +1,191 @@
+/* Copyright (c) 2007-2016 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+package minesweeper.server;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for CommandParser.
+ */
+public class CommandParserTest {
+
+    /*
+     * Testing strategies
+     *
+     * Partition the inputs as follows:
+     * keyword: look, look VERSION, look window, dig, flag, deflag, delta, rle, watch, join, help, bye, unknown, prefix of a keyword, empty
+     * arguments: none, right number, too few, too many
+     * spacing: single spaces, double spaces, leading or trailing spaces
+     * numbers: 0, positive, negative, "-" without digits, overflowing int, overflowing long
+     * room: 1 character, MAX_ROOM_NAME_LENGTH characters, longer, invalid characters
+     * parser: fresh, reused after a valid or an invalid line
+     * parseAll: no lines, several lines, fewer lines than the previous call
+     */
+
+    private static final String[] INVALID_LINES = {
+        "", " ", "lo", "looks", "Look", "look ", " look", "look  1", "look -1", "look x",
+        "look 1 2", "look 1 2 3", "look 1 2 3 -4", "look 1 2 3 4 5", "look 1 2 -3 4", "look 1 2 3 4 ",
+        "look -1 2 3 4", "look 1 -2 3 4",
+        "dig", "dig 1", "dig 1 ", "dig 1 2 3", "dig  1 2", "dig 1  2", "dig - 2", "dig 1 -",
+        "dig 1.0 2", "dig +1 2", "flag 1", "deflag", "deflagx 1 2", "help me", "bye ",
+        "delta 1", "rle on", "rl", "watch 1", "watcher", "hello", "dig\t1 2", "dig 1 2\n",
+        "join", "join ", "join a b", "join a!", "join  a", "joina"
+    };
+
+    @Test
+    public void testInvalidLines() {
+        CommandParser parser = new CommandParser();
+        for (String line : INVALID_LINES)
+            assertEquals("'" + line + "'", Command.Type.INVALID, parser.parse(line).getType());
+    }
+
+    @Test
+    public void testKeywords() {
+        CommandParser parser = new CommandParser();
+        assertEquals(Command.Type.LOOK, parser.parse("look").getType());
+        assertEquals(Command.Type.HELP, parser.parse("help").getType());
+        assertEquals(Command.Type.BYE, parser.parse("bye").getType());
+        assertEquals(Command.Type.DELTA, parser.parse("delta").getType());
+        assertEquals(Command.Type.RLE, parser.parse("rle").getType());
+        assertEquals(Command.Type.WATCH, parser.parse("watch").getType());
+    }
+
+    @Test
+    public void testMoves() {
+        CommandParser parser = new CommandParser();
+        Command command = parser.parse("dig 3 12");
+        assertEquals(Command.Type.DIG, command.getType());
+        assertEquals(3, command.getX());
+        assertEquals(12, command.getY());
+
+        command = parser.parse("flag 0 -7");
+        assertEquals(Command.Type.FLAG, command.getType());
+        assertEquals(0, command.getX());
+        assertEquals(-7, command.getY());
+
+        command = parser.parse("deflag -1 2");
+        assertEquals(Command.Type.DEFLAG, command.getType());
+        assertEquals(-1, command.getX());
+        assertEquals(2, command.getY());
+    }
+
+    @Test
+    public void testLookSince() {
+        CommandParser parser = new CommandParser();
+        Command command = parser.parse("look 0");
+        assertEquals(Command.Type.LOOK_SINCE, command.getType());
+        assertEquals(0, command.getVersion());
+
+        command = parser.parse("look 0042");
+        assertEquals(Command.Type.LOOK_SINCE, command.getType());
+        assertEquals(42, command.getVersion());
+    }
+
+    @Test
+    public void testLookWindow() {
+        CommandParser parser = new CommandParser();
+        Command command = parser.parse("look 3 12 20 10");
+        assertEquals(Command.Type.LOOK_WINDOW, command.getType());
+        assertEquals(3, command.getX());
+        assertEquals(12, command.getY());
+        assertEquals(20, command.getWidth());
+        assertEquals(10, command.getHeight());
+
+        command = parser.parse("look 0 99999999999 0 99999999999");
+        assertEquals(Command.Type.LOOK_WINDOW, command.getType());
+        assertEquals(0, command.getX());
+        assertEquals(Integer.MAX_VALUE, command.getY());
+        assertEquals(0, command.getWidth());
+        assertEquals(Integer.MAX_VALUE, command.getHeight());
+
+        // A VERSION is not mistaken for the start of a window
+        assertEquals(Command.Type.LOOK_SINCE, parser.parse("look 3").getType());
+    }
+
+    @Test
+    public void testJoin() {
+        CommandParser parser = new CommandParser();
+        Command command = parser.parse("join a");
+        assertEquals(Command.Type.JOIN, command.getType());
+        assertEquals("a", command.getRoom());
+
+        command = parser.parse("join Room_2-b");
+        assertEquals(Command.Type.JOIN, command.getType());
+        assertEquals("Room_2-b", command.getRoom());
+
+        String longest = new String(new char[RoomRegistry.MAX_ROOM_NAME_LENGTH]).replace('\0', 'x');
+        assertEquals(longest, parser.parse("join " + longest).getRoom());
+        assertEquals(Command.Type.INVALID, parser.parse("join " + longest + "x").getType());
+    }
+
+    @Test
+    public void testOverflowSaturates() {
+        CommandParser parser = new CommandParser();
+        Command command = parser.parse("dig 2147483648 -99999999999999999999");
+        assertEquals(Command.Type.DIG, command.getType());
+        assertEquals(Integer.MAX_VALUE, command.getX());
+        assertEquals(-Integer.MAX_VALUE, command.getY());
+
+        command = parser.parse("dig 2147483647 -2147483647");
+        assertEquals(Integer.MAX_VALUE, command.getX());
+        assertEquals(-Integer.MAX_VALUE, command.getY());
+
+        command = parser.parse("look 99999999999999999999");
+        assertEquals(Command.Type.LOOK_SINCE, command.getType());
+        assertEquals(Long.MAX_VALUE, command.getVersion());
+    }
+
+    @Test
+    public void testReuse() {
+        CommandParser parser = new CommandParser();
+        Command first = parser.parse("dig 1 2");
+        assertEquals(Command.Type.INVALID, parser.parse("dig 1").getType());
+        Command last = parser.parse("flag 5 6");
+        assertSame(first, last);
+        assertEquals(Command.Type.FLAG, last.getType());
+        assertEquals(5, last.getX());
+        assertEquals(6, last.getY());
+    }
+
+    @Test
+    public void testParseAll() {
+        CommandParser parser = new CommandParser();
+        assertEquals(0, parser.parseAll(Arrays.asList()).size());
+        List<Command> commands = parser.parseAll(Arrays.asList("dig 1 2", "bye", "flag 3 4"));
+        assertEquals(3, commands.size());
+        assertEquals(Command.Type.DIG, commands.get(0).getType());
+        assertEquals(Command.Type.BYE, commands.get(1).getType());
+        assertEquals(Command.Type.FLAG, commands.get(2).getType());
+        assertEquals(3, commands.get(2).getX());
+        assertEquals(4, commands.get(2).getY());
+        Command first = commands.get(0);
+        // The commands are reused, and parse does not overwrite them
+        parser.parse("look");
+        commands = parser.parseAll(Arrays.asList("deflag 5 6", "dig 1"));
+        assertEquals(2, commands.size());
+        assertSame(first, commands.get(0));
+        assertEquals(Command.Type.DEFLAG, commands.get(0).getType());
+        assertEquals(Command.Type.INVALID, commands.get(1).getType());
+    }
+
+    @Test
+    public void testAgreesWithRegex() {
+        String regex = "(look)|(look \\d+)|(look \\d+ \\d+ \\d+ \\d+)|(help)|(bye)|(delta)|(rle)|(watch)|"
+                     + "(dig -?\\d+ -?\\d+)|(flag -?\\d+ -?\\d+)|(deflag -?\\d+ -?\\d+)";
+        CommandParser parser = new CommandParser();
+        String[] lines = { "look", "look 7", "look 1 2 3 4", "help", "bye", "delta", "rle", "watch", "dig 1 2", "flag -3 4", "deflag 5 -6" };
+        for (String line : lines) {
+            assertTrue(line.matches(regex));
+            assertFalse(line, parser.parse(line).getType() == Command.Type.INVALID);
+        }
+        for (String line : INVALID_LINES) {
+            assertFalse(line.matches(regex));
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/* Copyright (c) 2007-2016 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+package minesweeper.server;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for ConnectionWriter.
+ */
+public class ConnectionWriterTest {
+
+    /*
+     * Testing strategies
+     *
+     * Partition the inputs as follows:
+     * client: reading, slow to read, not reading, disconnected
+     * writer: own thread, sending thread
+     * messages queued while the writer writes: 0, 1, several
+     * pending bytes: below, at, above the maximum
+     * close: with messages queued, with a writer stuck on the client, without a writer thread
+     */
+
+    // A client which reads nothing until released, then everything.
+    private static class SlowClient extends OutputStream {
+        private final CountDownLatch released = new CountDownLatch(1);
+        private final ByteArrayOutputStream received = new ByteArrayOutputStream();
+
+        @Override public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override public void write(byte[] b, int off, int len) throws IOException {
+            try {
+                released.await();
+            } catch (InterruptedException ie) {
+                throw new IOException(ie);
+            }
+            synchronized (received) {
+                received.write(b, off, len);
+            }
+        }
+
+        String received() {
+            synchronized (received) {
+                return new String(received.toByteArray(), StandardCharsets.US_ASCII);
+            }
+        }
+    }
+
+    // A connection which tells when it is closed.
+    private static class Connection implements Closeable {
+        private final CountDownLatch closed = new CountDownLatch(1);
+
+        @Override public void close() {
+            closed.countDown();
+        }
+    }
+
+    private static final Optional<ThreadFactory> WRITER = Optional.of(Thread::new);
+
+    private static byte[] bytes(String message) {
+        return message.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @Test(timeout = 10000)
+    public void testCoalescedFlushes() throws IOException, InterruptedException {
+        SlowClient client = new SlowClient();
+        Connection connection = new Connection();
+        // Messages larger than the buffer, so that each batch reaches the client at once
+        ConnectionWriter writer = new ConnectionWriter(client, connection, 1 << 20, 5000, WRITER);
+        StringBuilder expected = new StringBuilder();
+        for (int k = 0; k < 10; k++) {
+            String message = k + new String(new char[10000]).replace('\0', 'x') + "\n";
+            writer.send(bytes(message));
+            expected.append(message);
+        }
+        client.released.countDown();
+        writer.close();
+        // Closed once every message is sent
+        connection.closed.await();
+        assertEquals(expected.toString(), client.received());
+        // The first message, then the ones queued while it was stuck
+        assertTrue("flushes: " + writer.getFlushes(), writer.getFlushes() <= 2);
+    }
+
+    @Test(timeout = 10000)
+    public void testSlowClientBlocksSender() throws IOException, InterruptedException {
+        SlowClient client = new SlowClient();
+        Connection connection = new Connection();
+        ConnectionWriter writer = new ConnectionWriter(client, connection, 10, 5000, WRITER);
+        writer.send(bytes("abcdef"));
+        writer.send(bytes("ghijkl"));
+        Thread sender = new Thread(() -> {
+            try {
+                writer.send(bytes("mn"));
+            } catch (IOException ioe) {
+                throw new AssertionError(ioe);
+            }
+        });
+        sender.start();
+        sender.join(200);
+        assertTrue("expected the sender to wait for the client", sender.isAlive());
+        client.released.countDown();
+        sender.join();
+        writer.close();
+        connection.closed.await();
+        assertEquals("abcdefghijklmn", client.received());
+    }
+
+    @Test(timeout = 10000)
+    public void testClientDisconnected() throws InterruptedException {
+        OutputStream broken = new OutputStream() {
+            @Override public void write(int b) throws IOException {
+                throw new IOException("Connection reset");
+            }
+        };
+        Connection connection = new Connection();
+        ConnectionWriter writer = new ConnectionWriter(broken, connection, 1 << 20, 5000, WRITER);
+        try {
+            while (true) {
+                writer.send(new byte[10000]);
+                Thread.sleep(10);
+            }
+        } catch (IOException ioe) {
+            // expected, once the writer has failed
+        }
+        // The writer closed the connection as it failed
+        connection.closed.await();
+        writer.close();
+    }
+
+    @Test(timeout = 10000)
+    public void testCloseLingers() throws IOException, InterruptedException {
+        SlowClient client = new SlowClient();
+        Connection connection = new Connection();
+        ConnectionWriter writer = new ConnectionWriter(client, connection, 1 << 20, 100, WRITER);
+        writer.send(bytes("stuck"));
+        long start = System.nanoTime();
+        writer.close();
+        assertTrue("close waited for the client", System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(100));
+        assertFalse("closed before the linger", connection.closed.await(50, TimeUnit.MILLISECONDS));
+        connection.closed.await();
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+        try {
+            writer.send(bytes("late"));
+            fail("expected IOException");
+        } catch (IOException ioe) {
+            // expected
+        }
+        client.released.countDown();
+    }
+
+    @Test(timeout = 10000)
+    public void testWithoutWriterThread() throws IOException {
+        ByteArrayOutputStream client = new ByteArrayOutputStream();
+        Connection connection = new Connection();
+        ConnectionWriter writer = new ConnectionWriter(client, connection, 1 << 20, 5000, Optional.empty());
+        writer.send(bytes("abc\n"));
+        writer.send(bytes("def\n"));
+        assertEquals("buffered until flushed", 0, client.size());
+        writer.flush();
+        assertEquals("abc\ndef\n", new String(client.toByteArray(), StandardCharsets.US_ASCII));
+        assertEquals(1, writer.getFlushes());
+        writer.close();
+        assertEquals(0, connection.closed.getCount());
+        try {
+            writer.send(bytes("late"));
+            fail("expected IOException");
+        } catch (IOException ioe) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/* Copyright (c) 2007-2016 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+package minesweeper.server;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import minesweeper.Board;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for IdleReaper.
+ */
+public class IdleReaperTest {
+
+    /*
+     * Testing strategies
+     *
+     * Partition the inputs as follows:
+     * sessions: none, 1, many
+     * session: idle, active, unregistered, watching a board with changes pushed,
+     *          watching a board without changes pushed, no longer watching
+     * reap: before the timeout, after the timeout, again after reaping, by the started reaper
+     */
+
+    // Sleep, ignoring interrupts since the tests only wait for time to pass.
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Make a session whose connection counts how often it is closed.
+    private static Session session(long id, AtomicInteger closes) {
+        return new Session(id, null, closes::incrementAndGet);
+    }
+
+    @Test
+    public void testReapIdle() {
+        IdleReaper reaper = new IdleReaper(50);
+        reaper.reap();
+        assertEquals(0, reaper.getReaped());
+
+        AtomicInteger closes = new AtomicInteger();
+        reaper.register(session(1, closes));
+        assertEquals(1, reaper.size());
+        reaper.reap();
+        assertEquals("reaped before the timeout", 0, closes.get());
+
+        sleep(150);
+        reaper.reap();
+        assertEquals(1, closes.get());
+        assertEquals(1, reaper.getReaped());
+        assertEquals(0, reaper.size());
+
+        sleep(150);
+        reaper.reap();
+        assertEquals("reaped twice", 1, closes.get());
+        assertEquals(1, reaper.getReaped());
+    }
+
+    @Test
+    public void testActiveNotReaped() {
+        IdleReaper reaper = new IdleReaper(300);
+        AtomicInteger closes = new AtomicInteger();
+        Session session = session(1, closes);
+        reaper.register(session);
+        for (int k = 0; k < 20; k++) {
+            sleep(30);
+            session.commandHandled();
+            reaper.reap();
+        }
+        assertEquals("active session reaped", 0, closes.get());
+
+        sleep(450);
+        reaper.reap();
+        assertEquals(1, closes.get());
+    }
+
+    @Test
+    public void testUnregistered() {
+        IdleReaper reaper = new IdleReaper(50);
+        AtomicInteger closes = new AtomicInteger();
+        Session session = session(1, closes);
+        reaper.register(session);
+        reaper.unregister(session);
+        assertEquals(0, reaper.size());
+
+        sleep(150);
+        reaper.reap();
+        assertEquals(0, closes.get());
+        assertEquals(0, reaper.getReaped());
+    }
+
+    @Test
+    public void testWatching() {
+        IdleReaper reaper = new IdleReaper(100);
+        BoardBroadcaster broadcaster = new BoardBroadcaster(10, 8);
+        AtomicInteger closes = new AtomicInteger();
+        Session session = session(1, closes);
+        session.setSubscription(broadcaster.subscribe(new Board(2, 2, (r, c) -> false), null));
+        reaper.register(session);
+
+        sleep(250);
+        reaper.reap();
+        assertEquals("spectator reaped", 0, closes.get());
+
+        session.updatesPushed();
+        sleep(250);
+        reaper.reap();
+        assertEquals("spectator reaped while pushed to", 0, closes.get());
+
+        sleep(300);
+        reaper.reap();
+        assertEquals("spectator without pushes kept connected", 1, closes.get());
+    }
+
+    @Test
+    public void testNoLongerWatching() {
+        IdleReaper reaper = new IdleReaper(100);
+        BoardBroadcaster broadcaster = new BoardBroadcaster(10, 8);
+        AtomicInteger closes = new AtomicInteger();
+        Session session = session(1, closes);
+        session.setSubscription(broadcaster.subscribe(new Board(2, 2, (r, c) -> false), null));
+        reaper.register(session);
+
+        sleep(150);
+        reaper.reap();
+        assertEquals("spectator reaped", 0, closes.get());
+
+        session.setSubscription(null);
+        sleep(300);
+        reaper.reap();
+        assertEquals(1, closes.get());
+    }
+
+    @Test
+    public void testManySessions() {
+        IdleReaper reaper = new IdleReaper(100);
+        AtomicInteger closes = new AtomicInteger();
+        List<Session> sessions = new ArrayList<>();
+        for (int id = 0; id < 10000; id++) {
+            Session session = session(id, closes);
+            sessions.add(session);
+            reaper.register(session);
+        }
+        for (int k = 0; k < 5; k++) {
+            sleep(40);
+            // The even sessions keep playing
+            for (int id = 0; id < sessions.size(); id += 2)
+                sessions.get(id).commandHandled();
+            reaper.reap();
+        }
+        assertEquals(5000, closes.get());
+        assertEquals(5000, reaper.getReaped());
+        assertEquals(5000, reaper.size());
+    }
+
+    @Test(timeout = 10000)
+    public void testStart() {
+        IdleReaper reaper = new IdleReaper(50);
+        AtomicInteger closes = new AtomicInteger();
+        reaper.register(session(1, closes));
+        reaper.start();
+        try {
+            while (closes.get() == 0)
+                sleep(10);
+            assertEquals(1, reaper.getReaped());
+        } finally {
+            reaper.stop();
+        }
+    }
+}
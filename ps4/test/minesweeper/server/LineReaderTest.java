@@ -0,0 +1,81 @@
+/* Copyright (c) 2007-2016 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+package minesweeper.server;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for LineReader.
+ */
+public class LineReaderTest {
+
+    /*
+     * Testing strategies
+     *
+     * Partition the inputs as follows:
+     * terminators: "\n", "\r", "\r\n", "\r\n" split between reads, end of stream
+     * lines: empty, shorter than, as long as, longer than the maximum;
+     *        longer than the buffer
+     * hasLine: no line received, part of a line, whole lines received
+     */
+
+    // Make a stream returning at most chunk bytes per read.
+    private static InputStream stream(String text, int chunk) {
+        return new ByteArrayInputStream(text.getBytes(StandardCharsets.ISO_8859_1)) {
+            @Override public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, chunk));
+            }
+        };
+    }
+
+    @Test
+    public void testTerminators() throws IOException {
+        for (int chunk : new int[] { 1, 2, 3, 1000 }) {
+            LineReader in = new LineReader(stream("look\r\nhelp\rbye\n\r\n\nlast", chunk), 10);
+            assertEquals("look", in.readLine());
+            assertEquals("help", in.readLine());
+            assertEquals("bye", in.readLine());
+            assertEquals("", in.readLine());
+            assertEquals("", in.readLine());
+            assertEquals("last", in.readLine());
+            assertNull(in.readLine());
+            assertNull(in.readLine());
+        }
+    }
+
+    @Test
+    public void testHasLine() throws IOException {
+        LineReader in = new LineReader(stream("dig 1 2\r\nflag 0 0\nlo", 1000), 10);
+        assertFalse(in.hasLine());
+        assertEquals("dig 1 2", in.readLine());
+        assertTrue(in.hasLine());
+        assertEquals("flag 0 0", in.readLine());
+        assertFalse(in.hasLine());
+        assertEquals("lo", in.readLine());
+        assertFalse(in.hasLine());
+        assertNull(in.readLine());
+    }
+
+    @Test
+    public void testLongLines() throws IOException {
+        StringBuilder longest = new StringBuilder();
+        for (int i = 0; i < 10000; i++)
+            longest.append((char) ('a' + i % 26));
+        LineReader in = new LineReader(stream(longest + "\n" + longest + "x\n", 4096), 10000);
+        assertEquals(longest.toString(), in.readLine());
+        try {
+            in.readLine();
+            fail("expected IOException");
+        } catch (IOException ioe) {
+            // expected
+        }
+    }
+}
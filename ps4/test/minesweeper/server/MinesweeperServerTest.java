@@ -8,14 +8,20 @@ import org.junit.Test;
 import java.io.*;
 import java.net.ConnectException;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Optional;
 import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
+import minesweeper.Board;
+
 import static org.junit.Assert.*;
 
 /**
@@ -56,10 +62,21 @@ public class MinesweeperServerTest {
      * @throws IOException if the connection fails
      */
     private static Socket connectToMinesweeperServer(Thread server) throws IOException {
+        return connectToMinesweeperServer(server, PORT);
+    }
+
+    /**
+     * Connect to a MinesweeperServer on a given port and return the connected socket.
+     * @param server abort connection attempts if the server thread dies
+     * @param port port the server listens on
+     * @return socket connected to the server
+     * @throws IOException if the connection fails
+     */
+    private static Socket connectToMinesweeperServer(Thread server, int port) throws IOException {
         int attempts = 0;
         while (true) {
             try {
-                Socket socket = new Socket(LOCALHOST, PORT);
+                Socket socket = new Socket(LOCALHOST, port);
                 return socket;
             } catch (ConnectException ce) {
                 if ( ! server.isAlive()) {
@@ -68,6 +85,7 @@ public class MinesweeperServerTest {
                 if (++attempts > MAX_CONNECTION_ATTEMPTS) {
                     throw new IOException("Exceeded max connection attempts", ce);
                 }
+                try { Thread.sleep(attempts * 10); } catch (InterruptedException ie) { }
             }
         }
     }
@@ -79,6 +97,20 @@ public class MinesweeperServerTest {
      * @throws IOException if the board file cannot be found
      */
     private static Thread startMinesweeperServer(Optional<String> boardFile) throws IOException {
+        return startMinesweeperServer(boardFile, PORT);
+    }
+
+    /**
+     * Start a MinesweeperServer on a given port, in debug mode with a board
+     * file from BOARDS_PKG or with a random board.
+     * @param boardFile board to load
+     * @param port port the server should listen on
+     * @param options additional command-line arguments
+     * @return thread running the server
+     * @throws IOException if the board file cannot be found
+     */
+    private static Thread startMinesweeperServer(Optional<String> boardFile, int port, String... options)
+            throws IOException {
         final String[] args;
         if(boardFile.isPresent()){
             final URL boardURL = ClassLoader.getSystemClassLoader().getResource(BOARDS_PKG + boardFile.get());
@@ -93,15 +125,17 @@ public class MinesweeperServerTest {
             }
             args = new String[] {
                     "--debug",
-                    "--port", Integer.toString(PORT),
+                    "--port", Integer.toString(port),
                     "--file", boardPath
             };
         }else{
             args = new String[] {
-                    "--port", Integer.toString(PORT)
+                    "--port", Integer.toString(port)
             };
         }
-        Thread serverThread = new Thread(() -> MinesweeperServer.main(args));
+        String[] allArgs = Arrays.copyOf(args, args.length + options.length);
+        System.arraycopy(options, 0, allArgs, args.length, options.length);
+        Thread serverThread = new Thread(() -> MinesweeperServer.main(allArgs));
         serverThread.start();
         return serverThread;
     }
@@ -109,11 +143,13 @@ public class MinesweeperServerTest {
     // This test covers that the server could handle multiple clients
     @Test
     public void testMinesweeperServerHandleMultipleClients() throws IOException {
+        // A port of its own, so that the board file tests do not connect to this random board
+        final int port = PORT + 3;
         Set<Socket> clients = new HashSet<>();
-        Thread serverThread = startMinesweeperServer(Optional.ofNullable(null));
+        Thread serverThread = startMinesweeperServer(Optional.ofNullable(null), port);
         try{
             while(true){
-                Socket socket = connectToMinesweeperServer(serverThread);
+                Socket socket = connectToMinesweeperServer(serverThread, port);
                 clients.add(socket);
                 if (clients.size() > MAX_CLIENTS)
                     throw new IOException("Too many client connections");
@@ -179,4 +215,691 @@ public class MinesweeperServerTest {
         // since the server thread continues to run, it tries to
         assertNull(in.readLine());
     }
+
+    // This test covers the delta replies: switching to them, moves, and look with a version
+    @Test(timeout = 10000)
+    public void testDeltaReplies() throws IOException {
+        final int port = PORT + 1;
+        Thread thread = startMinesweeperServer(Optional.of("board_file_5"), port);
+        Socket socket = connectToMinesweeperServer(thread, port);
+
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+
+        assertTrue("expected HELLO message", in.readLine().startsWith("Welcome"));
+
+        out.println("delta");
+        assertEquals("BOARD 0", in.readLine());
+        for (int r = 0; r < 7; r++)
+            assertEquals("- - - - - - -", in.readLine());
+
+        out.println("dig 3 1");
+        assertEquals("DELTA 0 1 1", in.readLine());
+        assertEquals("3 1 1", in.readLine());
+
+        out.println("flag 0 0");
+        assertEquals("DELTA 1 2 1", in.readLine());
+        assertEquals("0 0 F", in.readLine());
+
+        out.println("flag 0 0"); // No effects
+        assertEquals("DELTA 2 2 0", in.readLine());
+
+        out.println("look 0");
+        assertEquals("DELTA 0 2 2", in.readLine());
+        assertEquals("0 0 F", in.readLine());
+        assertEquals("3 1 1", in.readLine());
+
+        out.println("look 99"); // Unknown version
+        assertEquals("BOARD 2", in.readLine());
+        assertEquals("F - - - - - -", in.readLine());
+        assertEquals("- - - 1 - - -", in.readLine());
+        for (int r = 2; r < 7; r++)
+            assertEquals("- - - - - - -", in.readLine());
+
+        out.println("bye");
+        assertNull(in.readLine());
+    }
+
+    // This test covers the non-blocking mode: several clients, CRLF line endings, BOOM and bye
+    @Test(timeout = 10000)
+    public void testNonBlockingMode() throws IOException {
+        final int port = PORT + 2;
+        Thread thread = startMinesweeperServer(Optional.of("board_file_5"), port, "--mode", "nio");
+        Socket socket1 = connectToMinesweeperServer(thread, port);
+        BufferedReader in1 = new BufferedReader(new InputStreamReader(socket1.getInputStream()));
+        PrintWriter out1 = new PrintWriter(socket1.getOutputStream(), true);
+        assertTrue("expected HELLO message", in1.readLine().startsWith("Welcome"));
+
+        Socket socket2 = connectToMinesweeperServer(thread, port);
+        BufferedReader in2 = new BufferedReader(new InputStreamReader(socket2.getInputStream()));
+        PrintWriter out2 = new PrintWriter(socket2.getOutputStream(), true);
+        assertTrue("expected 2 players", in2.readLine().contains("Players: 2 including you"));
+
+        out1.print("dig 3 1\r\nflag 0 0\r\n");
+        out1.flush();
+        assertEquals("- - - - - - -", in1.readLine());
+        assertEquals("- - - 1 - - -", in1.readLine());
+        for (int r = 2; r < 7; r++)
+            assertEquals("- - - - - - -", in1.readLine());
+        assertEquals("F - - - - - -", in1.readLine());
+        assertEquals("- - - 1 - - -", in1.readLine());
+        for (int r = 2; r < 7; r++)
+            assertEquals("- - - - - - -", in1.readLine());
+
+        out2.println("look");
+        assertEquals("F - - - - - -", in2.readLine());
+        assertEquals("- - - 1 - - -", in2.readLine());
+        for (int r = 2; r < 7; r++)
+            assertEquals("- - - - - - -", in2.readLine());
+
+        out2.println("bogus");
+        assertEquals("Invalid command", in2.readLine());
+
+        out2.println("dig 4 1");
+        assertEquals("BOOM!", in2.readLine());
+
+        out1.println("bye");
+        assertNull(in1.readLine());
+        out2.println("bye");
+        assertNull(in2.readLine());
+    }
+
+    // This test covers the virtual thread mode with a limit of one connection
+    @Test(timeout = 10000)
+    public void testVirtualThreadModeMaxConnections() throws IOException {
+        final int port = PORT + 4;
+        Thread thread = startMinesweeperServer(Optional.of("board_file_5"), port,
+                "--mode", "virtual", "--max-connections", "1");
+        Socket socket1 = connectToMinesweeperServer(thread, port);
+        BufferedReader in1 = new BufferedReader(new InputStreamReader(socket1.getInputStream()));
+        PrintWriter out1 = new PrintWriter(socket1.getOutputStream(), true);
+        assertTrue("expected HELLO message", in1.readLine().startsWith("Welcome"));
+
+        // The second client is only served once the first one leaves
+        Socket socket2 = connectToMinesweeperServer(thread, port);
+        BufferedReader in2 = new BufferedReader(new InputStreamReader(socket2.getInputStream()));
+        socket2.setSoTimeout(200);
+        try {
+            in2.readLine();
+            fail("expected the second client to wait");
+        } catch (SocketTimeoutException ste) {
+            // expected
+        }
+        socket2.setSoTimeout(0);
+
+        out1.println("bye");
+        assertNull(in1.readLine());
+        assertTrue("expected 1 player", in2.readLine().contains("Players: 1 including you"));
+        socket2.close();
+    }
+
+    // This test covers shutting down a server with a connected client
+    @Test(timeout = 10000)
+    public void testShutdown() throws IOException, InterruptedException {
+        final int port = PORT + 5;
+        MinesweeperServer server = new MinesweeperServer(port, false, 3, 3, Optional.empty(),
+                ServerConfig.DEFAULT.withMode(MinesweeperServer.Mode.VIRTUAL));
+        Thread thread = new Thread(() -> {
+            try {
+                server.serve();
+            } catch (IOException ioe) {
+                throw new RuntimeException(ioe);
+            }
+        });
+        thread.start();
+        Socket socket = connectToMinesweeperServer(thread, port);
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        assertTrue("expected HELLO message", in.readLine().startsWith("Welcome"));
+
+        server.shutdown(100, TimeUnit.MILLISECONDS);
+        thread.join();
+        assertNull(in.readLine());
+        socket.close();
+    }
+
+    // This test covers rejecting excess clients in pool mode, the connection counters and the sessions
+    @Test(timeout = 10000)
+    public void testPoolModeRejectExcess() throws IOException, InterruptedException {
+        final int port = PORT + 6;
+        MinesweeperServer server = new MinesweeperServer(port, false, 3, 3, Optional.empty(),
+                ServerConfig.DEFAULT.withMode(MinesweeperServer.Mode.POOL)
+                        .withWorkers(1).withQueueCapacity(1).withMaxConnections(1).withRejectExcess(true));
+        Thread thread = new Thread(() -> {
+            try {
+                server.serve();
+            } catch (IOException ioe) {
+                throw new RuntimeException(ioe);
+            }
+        });
+        thread.start();
+        Socket socket1 = connectToMinesweeperServer(thread, port);
+        BufferedReader in1 = new BufferedReader(new InputStreamReader(socket1.getInputStream()));
+        PrintWriter out1 = new PrintWriter(socket1.getOutputStream(), true);
+        assertTrue("expected HELLO message", in1.readLine().startsWith("Welcome"));
+
+        Socket socket2 = connectToMinesweeperServer(thread, port);
+        BufferedReader in2 = new BufferedReader(new InputStreamReader(socket2.getInputStream()));
+        assertEquals(MinesweeperServer.REJECTED_MESSAGE, in2.readLine());
+        assertNull(in2.readLine());
+        socket2.close();
+
+        assertEquals(1, server.getAcceptedConnections());
+        assertEquals(1, server.getRejectedConnections());
+        assertEquals(1, server.getActiveConnections());
+
+        out1.println("look");
+        for (int r = 0; r < 3; r++)
+            assertEquals("- - -", in1.readLine());
+        Session session = server.getSessions().get(0);
+        assertEquals(1, session.getCommandsHandled());
+        // The welcome message, and the board: 3 lines of 5 characters
+        long welcomeBytes = server.welcomeMessage().length() + System.lineSeparator().length();
+        assertEquals(welcomeBytes + 3 * 5 + 2 + System.lineSeparator().length(), session.getBytesSent());
+
+        out1.println("bye");
+        assertNull(in1.readLine());
+        socket1.close();
+        server.shutdown(1, TimeUnit.SECONDS);
+        thread.join();
+        assertEquals(0, server.getActiveConnections());
+        assertTrue(server.getSessions().isEmpty());
+    }
+
+    // This test covers rejecting the clients beyond the queue in pool mode, and the connection counters
+    @Test(timeout = 10000)
+    public void testPoolModeQueueFull() throws IOException, InterruptedException {
+        final int port = PORT + 23;
+        MinesweeperServer server = new MinesweeperServer(port, false, 3, 3, Optional.empty(),
+                ServerConfig.DEFAULT.withMode(MinesweeperServer.Mode.POOL).withWorkers(1).withQueueCapacity(1));
+        Thread thread = new Thread(() -> {
+            try {
+                server.serve();
+            } catch (IOException ioe) {
+                throw new RuntimeException(ioe);
+            }
+        });
+        thread.start();
+        Socket socket1 = connectToMinesweeperServer(thread, port);
+        BufferedReader in1 = new BufferedReader(new InputStreamReader(socket1.getInputStream()));
+        PrintWriter out1 = new PrintWriter(socket1.getOutputStream(), true);
+        assertTrue("expected HELLO message", in1.readLine().startsWith("Welcome"));
+        // Waits in the queue for the only worker
+        Socket socket2 = connectToMinesweeperServer(thread, port);
+        BufferedReader in2 = new BufferedReader(new InputStreamReader(socket2.getInputStream()));
+
+        Socket socket3 = connectToMinesweeperServer(thread, port);
+        BufferedReader in3 = new BufferedReader(new InputStreamReader(socket3.getInputStream()));
+        assertEquals(MinesweeperServer.REJECTED_MESSAGE, in3.readLine());
+        assertNull(in3.readLine());
+        socket3.close();
+        assertEquals(2, server.getAcceptedConnections());
+        assertEquals(1, server.getRejectedConnections());
+        assertEquals(2, server.getActiveConnections());
+
+        out1.println("bye");
+        assertNull(in1.readLine());
+        socket1.close();
+        assertTrue("expected HELLO message", in2.readLine().startsWith("Welcome"));
+        socket2.close();
+        server.shutdown(1, TimeUnit.SECONDS);
+        thread.join();
+        assertEquals(2, server.getAcceptedConnections());
+        assertEquals(1, server.getRejectedConnections());
+    }
+
+    // This test covers that the number of players does not drift when many clients come and go
+    @Test(timeout = 10000)
+    public void testPlayerCount() throws IOException, InterruptedException {
+        final int port = PORT + 7;
+        MinesweeperServer server = new MinesweeperServer(port, false, 3, 3, Optional.empty());
+        Thread thread = new Thread(() -> {
+            try {
+                server.serve();
+            } catch (IOException ioe) {
+                throw new RuntimeException(ioe);
+            }
+        });
+        thread.start();
+        Set<Socket> clients = new HashSet<>();
+        for (int i = 0; i < 20; i++) {
+            Socket socket = connectToMinesweeperServer(thread, port);
+            new BufferedReader(new InputStreamReader(socket.getInputStream())).readLine();
+            clients.add(socket);
+        }
+        assertEquals(20, server.getActiveConnections());
+        for (Socket client : clients) {
+            PrintWriter out = new PrintWriter(client.getOutputStream(), true);
+            out.println("bye");
+        }
+        for (Socket client : clients) {
+            assertNull(new BufferedReader(new InputStreamReader(client.getInputStream())).readLine());
+            client.close();
+        }
+        // The server unregisters a session right after closing its socket
+        while (server.getActiveConnections() > 0)
+            Thread.sleep(10);
+
+        Socket socket = connectToMinesweeperServer(thread, port);
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        assertTrue("expected 1 player", in.readLine().contains("Players: 1 including you"));
+        socket.close();
+        server.shutdown(1, TimeUnit.SECONDS);
+        thread.join();
+    }
+
+    // This test covers joining rooms, their player lists, the room limit and the eviction of idle rooms
+    @Test(timeout = 10000)
+    public void testRooms() throws IOException, InterruptedException {
+        final int port = PORT + 8;
+        MinesweeperServer server = new MinesweeperServer(port, false, 3, 3, Optional.empty(),
+                ServerConfig.DEFAULT.withMaxRooms(1).withRoomIdleMillis(0));
+        Thread thread = new Thread(() -> {
+            try {
+                server.serve();
+            } catch (IOException ioe) {
+                throw new RuntimeException(ioe);
+            }
+        });
+        thread.start();
+        Socket socket1 = connectToMinesweeperServer(thread, port);
+        BufferedReader in1 = new BufferedReader(new InputStreamReader(socket1.getInputStream()));
+        PrintWriter out1 = new PrintWriter(socket1.getOutputStream(), true);
+        assertTrue("expected HELLO message", in1.readLine().startsWith("Welcome"));
+        Socket socket2 = connectToMinesweeperServer(thread, port);
+        BufferedReader in2 = new BufferedReader(new InputStreamReader(socket2.getInputStream()));
+        PrintWriter out2 = new PrintWriter(socket2.getOutputStream(), true);
+        assertTrue("expected HELLO message", in2.readLine().startsWith("Welcome"));
+
+        out1.println("join room-1");
+        for (int r = 0; r < 3; r++)
+            assertEquals("- - -", in1.readLine());
+        out1.println("flag 0 0");
+        assertEquals("F - -", in1.readLine());
+        assertEquals("- - -", in1.readLine());
+        assertEquals("- - -", in1.readLine());
+
+        // The default room has its own board
+        out2.println("look");
+        for (int r = 0; r < 3; r++)
+            assertEquals("- - -", in2.readLine());
+        out2.println("join room-1");
+        assertEquals("F - -", in2.readLine());
+        assertEquals("- - -", in2.readLine());
+        assertEquals("- - -", in2.readLine());
+        assertEquals(2, server.getRooms().size());
+        GameRoom room = server.getRooms().stream().filter(r -> r.getName().equals("room-1")).findAny().get();
+        assertEquals(2, room.getPlayerCount());
+
+        // At most one room besides the default room
+        out1.println("join other");
+        assertEquals("Too many rooms", in1.readLine());
+        out1.println("join bad!name");
+        assertEquals("Invalid command", in1.readLine());
+
+        // Once empty, the room is evicted with its board
+        out1.println("bye");
+        assertNull(in1.readLine());
+        socket1.close();
+        out2.println("join default");
+        for (int r = 0; r < 3; r++)
+            assertEquals("- - -", in2.readLine());
+        out2.println("join room-1");
+        for (int r = 0; r < 3; r++)
+            assertEquals("- - -", in2.readLine());
+        assertEquals(2, server.getRooms().size());
+
+        out2.println("bye");
+        assertNull(in2.readLine());
+        socket2.close();
+        server.shutdown(1, TimeUnit.SECONDS);
+        thread.join();
+    }
+
+    // This test covers saving the board on shutdown and restoring it in a new server
+    @Test(timeout = 10000)
+    public void testSnapshotRestore() throws IOException, InterruptedException {
+        File snapshot = File.createTempFile("board", ".bin");
+        assertTrue(snapshot.delete());
+        snapshot.deleteOnExit();
+        ServerConfig config = ServerConfig.DEFAULT.withSnapshotFile(Optional.of(snapshot))
+                .withSnapshotIntervalMillis(50);
+        for (int port = PORT + 9; port <= PORT + 10; port++) {
+            MinesweeperServer server = new MinesweeperServer(port, false, 4, 3, Optional.empty(), config);
+            Thread thread = new Thread(() -> {
+                try {
+                    server.serve();
+                } catch (IOException ioe) {
+                    throw new RuntimeException(ioe);
+                }
+            });
+            thread.start();
+            Socket socket = connectToMinesweeperServer(thread, port);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            assertTrue("expected HELLO message", in.readLine().startsWith("Welcome"));
+            if (port == PORT + 9) {
+                out.println("flag 3 2");
+            } else {
+                // The second server restored the board of the first one
+                out.println("look");
+            }
+            assertEquals("- - - -", in.readLine());
+            assertEquals("- - - -", in.readLine());
+            assertEquals("- - - F", in.readLine());
+            out.println("bye");
+            assertNull(in.readLine());
+            socket.close();
+            server.shutdown(1, TimeUnit.SECONDS);
+            thread.join();
+            assertTrue(snapshot.isFile());
+        }
+        assertTrue(snapshot.delete());
+    }
+
+    // This test covers journaling the moves and replaying them in a new server
+    @Test(timeout = 10000)
+    public void testJournalReplay() throws IOException, InterruptedException {
+        File boardFile = File.createTempFile("board", ".txt");
+        boardFile.deleteOnExit();
+        Files.write(boardFile.toPath(), "3 4\n0 0 0 1\n0 0 0 0\n0 0 0 0\n".getBytes(StandardCharsets.US_ASCII));
+        File journal = File.createTempFile("moves", ".log");
+        assertTrue(journal.delete());
+        journal.deleteOnExit();
+        ServerConfig config = ServerConfig.DEFAULT.withJournalFile(Optional.of(journal));
+        for (int port = PORT + 11; port <= PORT + 12; port++) {
+            MinesweeperServer server = new MinesweeperServer(port, false, -1, -1, Optional.of(boardFile), config);
+            Thread thread = new Thread(() -> {
+                try {
+                    server.serve();
+                } catch (IOException ioe) {
+                    throw new RuntimeException(ioe);
+                }
+            });
+            thread.start();
+            Socket socket = connectToMinesweeperServer(thread, port);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            assertTrue("expected HELLO message", in.readLine().startsWith("Welcome"));
+            if (port == PORT + 11) {
+                out.println("dig 0 2");
+                assertEquals("    1 -", in.readLine());
+                assertEquals("    1 1", in.readLine());
+                assertEquals("       ", in.readLine());
+                out.println("flag 3 0");
+            } else {
+                // The second server replayed the moves of the first one
+                out.println("look");
+            }
+            assertEquals("    1 F", in.readLine());
+            assertEquals("    1 1", in.readLine());
+            assertEquals("       ", in.readLine());
+            out.println("bye");
+            assertNull(in.readLine());
+            socket.close();
+            server.shutdown(1, TimeUnit.SECONDS);
+            thread.join();
+        }
+        assertEquals(MoveJournal.HEADER_SIZE + 2 * MoveJournal.RECORD_SIZE, journal.length());
+    }
+
+    // This test covers a journal with a snapshot of a random board, and a crash before the first periodic save
+    @Test(timeout = 10000)
+    public void testJournalBeforeFirstSnapshot() throws IOException, InterruptedException {
+        File snapshot = File.createTempFile("board", ".bin");
+        assertTrue(snapshot.delete());
+        snapshot.deleteOnExit();
+        File journal = File.createTempFile("moves", ".log");
+        assertTrue(journal.delete());
+        journal.deleteOnExit();
+        ServerConfig config = ServerConfig.DEFAULT.withSnapshotFile(Optional.of(snapshot))
+                .withJournalFile(Optional.of(journal));
+        MinesweeperServer crashed = new MinesweeperServer(PORT + 24, false, 4, 3, Optional.empty(), config);
+        assertTrue("snapshot not saved on startup", snapshot.isFile());
+        Board board = crashed.getRooms().get(0).getBoard();
+        board.flag(2, 3);
+        while (journal.length() < MoveJournal.HEADER_SIZE + MoveJournal.RECORD_SIZE)
+            Thread.sleep(10);
+
+        // Restart without shutting the first server down, as after a crash
+        MinesweeperServer restarted = new MinesweeperServer(PORT + 25, false, 4, 3, Optional.empty(), config);
+        assertEquals(board.toString(), restarted.getRooms().get(0).getBoard().toString());
+        restarted.shutdown(1, TimeUnit.SECONDS);
+        crashed.shutdown(1, TimeUnit.SECONDS);
+        assertTrue(snapshot.delete());
+    }
+
+    // This test covers pipelined requests, in the blocking and non-blocking modes:
+    // replies in order, and no request performed after bye
+    @Test(timeout = 10000)
+    public void testPipelinedRequests() throws IOException {
+        for (int port = PORT + 13; port <= PORT + 14; port++) {
+            String mode = port == PORT + 13 ? "thread" : "nio";
+            Thread thread = startMinesweeperServer(Optional.of("board_file_5"), port, "--mode", mode);
+            Socket socket = connectToMinesweeperServer(thread, port);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            OutputStream out = socket.getOutputStream();
+            assertTrue("expected HELLO message", in.readLine().startsWith("Welcome"));
+
+            out.write("flag 0 0\nbogus\r\nflag 1 0\nlook\nbye\nflag 2 0\n".getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            assertEquals("F - - - - - -", in.readLine());
+            for (int r = 1; r < 7; r++)
+                assertEquals("- - - - - - -", in.readLine());
+            assertEquals("Invalid command", in.readLine());
+            for (int k = 0; k < 2; k++) {
+                assertEquals(mode, "F F - - - - -", in.readLine());
+                for (int r = 1; r < 7; r++)
+                    assertEquals("- - - - - - -", in.readLine());
+            }
+            assertNull(in.readLine());
+            socket.close();
+
+            socket = connectToMinesweeperServer(thread, port);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            PrintWriter writer = new PrintWriter(socket.getOutputStream(), true);
+            assertTrue("expected HELLO message", in.readLine().startsWith("Welcome"));
+            writer.println("look");
+            assertEquals("F F - - - - -", in.readLine());
+            writer.println("bye");
+            socket.close();
+        }
+    }
+
+    // This test covers 'look LEFT TOP WIDTH HEIGHT': inside, overlapping and outside the board, negative origin
+    @Test(timeout = 10000)
+    public void testLookWindow() throws IOException {
+        final int port = PORT + 15;
+        Thread thread = startMinesweeperServer(Optional.of("board_file_5"), port);
+        Socket socket = connectToMinesweeperServer(thread, port);
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+        assertTrue("expected HELLO message", in.readLine().startsWith("Welcome"));
+
+        out.println("dig 3 1");
+        for (int r = 0; r < 7; r++)
+            in.readLine();
+        out.println("look 2 0 3 2");
+        assertEquals("- - -", in.readLine());
+        assertEquals("- 1 -", in.readLine());
+        out.println("look 3 1 1 1");
+        assertEquals("1", in.readLine());
+        out.println("look 5 5 3 99");
+        assertEquals("- -", in.readLine());
+        assertEquals("- -", in.readLine());
+        out.println("look -1 5 3 99");
+        assertEquals("Invalid command", in.readLine());
+        out.println("look 7 0 1 1");
+        assertEquals("", in.readLine());
+        out.println("look 0 0 0 5");
+        assertEquals("", in.readLine());
+        out.println("look 0 0 2 2 2");
+        assertEquals("Invalid command", in.readLine());
+
+        out.println("bye");
+        assertNull(in.readLine());
+    }
+
+    // This test covers run-length encoded boards: look, moves, windows and delta mode
+    @Test(timeout = 10000)
+    public void testRunLengthEncoding() throws IOException {
+        final int port = PORT + 16;
+        Thread thread = startMinesweeperServer(Optional.of("board_file_5"), port);
+        Socket socket = connectToMinesweeperServer(thread, port);
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+        assertTrue("expected HELLO message", in.readLine().startsWith("Welcome"));
+
+        out.println("rle");
+        for (int r = 0; r < 7; r++)
+            assertEquals("-7", in.readLine());
+        out.println("dig 3 1");
+        assertEquals("-7", in.readLine());
+        assertEquals("-3,1,-3", in.readLine());
+        for (int r = 2; r < 7; r++)
+            assertEquals("-7", in.readLine());
+        out.println("look 2 1 3 1");
+        assertEquals("-,1,-", in.readLine());
+
+        out.println("delta");
+        assertTrue(in.readLine().startsWith("BOARD "));
+        StringBuilder encoded = new StringBuilder();
+        for (int r = 0; r < 7; r++)
+            encoded.append(r > 0 ? "\n" : "").append(in.readLine());
+        assertEquals("- - - - - - -", RunLengthDecoder.decode(encoded.toString()).split("\n")[0]);
+        assertEquals("- - - 1 - - -", RunLengthDecoder.decode(encoded.toString()).split("\n")[1]);
+
+        out.println("bye");
+        assertNull(in.readLine());
+    }
+
+    // This test covers 'watch', in the blocking and non-blocking modes: the
+    // moves of another player pushed to a spectator, which still makes requests
+    @Test(timeout = 10000)
+    public void testWatch() throws IOException {
+        for (int port = PORT + 17; port <= PORT + 18; port++) {
+            String mode = port == PORT + 17 ? "thread" : "nio";
+            Thread thread = startMinesweeperServer(Optional.of("board_file_5"), port, "--mode", mode);
+            Socket spectator = connectToMinesweeperServer(thread, port);
+            BufferedReader in1 = new BufferedReader(new InputStreamReader(spectator.getInputStream()));
+            PrintWriter out1 = new PrintWriter(spectator.getOutputStream(), true);
+            assertTrue("expected HELLO message", in1.readLine().startsWith("Welcome"));
+            Socket player = connectToMinesweeperServer(thread, port);
+            BufferedReader in2 = new BufferedReader(new InputStreamReader(player.getInputStream()));
+            PrintWriter out2 = new PrintWriter(player.getOutputStream(), true);
+            assertTrue("expected HELLO message", in2.readLine().startsWith("Welcome"));
+
+            out1.println("watch");
+            assertEquals(mode, "BOARD 0", in1.readLine());
+            for (int r = 0; r < 7; r++)
+                assertEquals("- - - - - - -", in1.readLine());
+
+            out2.println("flag 0 0");
+            for (int r = 0; r < 7; r++)
+                in2.readLine();
+            // Pushed without a request
+            assertEquals(mode, "DELTA 0 1 1", in1.readLine());
+            assertEquals("0 0 F", in1.readLine());
+
+            out1.println("help");
+            assertTrue(in1.readLine().startsWith("MESSAGE ::="));
+            while ( ! in1.readLine().startsWith("INT ::="))
+                continue;
+
+            out2.println("dig 3 1");
+            for (int r = 0; r < 7; r++)
+                in2.readLine();
+            assertEquals(mode, "DELTA 1 2 1", in1.readLine());
+            assertEquals("3 1 1", in1.readLine());
+
+            out1.println("bye");
+            assertNull(in1.readLine());
+            out2.println("bye");
+            assertNull(in2.readLine());
+            spectator.close();
+            player.close();
+        }
+    }
+
+    // This test covers a client which does not read its replies: the other
+    // clients keep playing, in the blocking and non-blocking modes
+    @Test(timeout = 20000)
+    public void testSlowReader() throws IOException {
+        for (int port = PORT + 19; port <= PORT + 20; port++) {
+            String mode = port == PORT + 19 ? "thread" : "nio";
+            Thread thread = startMinesweeperServer(Optional.empty(), port, "--size", "300,300", "--mode", mode);
+            Socket slow = connectToMinesweeperServer(thread, port);
+            BufferedReader in1 = new BufferedReader(new InputStreamReader(slow.getInputStream()));
+            assertTrue("expected HELLO message", in1.readLine().startsWith("Welcome"));
+            Socket player = connectToMinesweeperServer(thread, port);
+            BufferedReader in2 = new BufferedReader(new InputStreamReader(player.getInputStream()));
+            PrintWriter out2 = new PrintWriter(player.getOutputStream(), true);
+            assertTrue("expected HELLO message", in2.readLine().startsWith("Welcome"));
+
+            // Far more replies than the socket and the server buffer
+            OutputStream out1 = slow.getOutputStream();
+            StringBuilder looks = new StringBuilder();
+            for (int k = 0; k < 100; k++)
+                looks.append("look\n");
+            out1.write(looks.toString().getBytes(StandardCharsets.US_ASCII));
+            out1.flush();
+
+            for (int c = 0; c < 5; c++) {
+                out2.println("flag " + c + " 0");
+                assertTrue(mode, in2.readLine().startsWith("F "));
+                for (int r = 1; r < 300; r++)
+                    in2.readLine();
+            }
+            out2.println("bye");
+            assertNull(in2.readLine());
+            player.close();
+            slow.close();
+        }
+    }
+
+    @Test(timeout = 20000)
+    public void testIdleTimeout() throws IOException, InterruptedException {
+        for (int port = PORT + 21; port <= PORT + 22; port++) {
+            String mode = port == PORT + 21 ? "thread" : "nio";
+            Thread thread = startMinesweeperServer(Optional.of("board_file_5"), port,
+                    "--mode", mode, "--idle-timeout", "1");
+            Socket idle = connectToMinesweeperServer(thread, port);
+            BufferedReader in1 = new BufferedReader(new InputStreamReader(idle.getInputStream()));
+            assertTrue("expected HELLO message", in1.readLine().startsWith("Welcome"));
+            Socket spectator = connectToMinesweeperServer(thread, port);
+            BufferedReader in2 = new BufferedReader(new InputStreamReader(spectator.getInputStream()));
+            PrintWriter out2 = new PrintWriter(spectator.getOutputStream(), true);
+            assertTrue("expected HELLO message", in2.readLine().startsWith("Welcome"));
+            Socket player = connectToMinesweeperServer(thread, port);
+            BufferedReader in3 = new BufferedReader(new InputStreamReader(player.getInputStream()));
+            PrintWriter out3 = new PrintWriter(player.getOutputStream(), true);
+            assertTrue("expected HELLO message", in3.readLine().startsWith("Welcome"));
+
+            out2.println("watch");
+            assertEquals(mode, "BOARD 0", in2.readLine());
+            for (int r = 0; r < 7; r++)
+                in2.readLine();
+
+            // The player keeps playing for twice the timeout
+            for (int k = 0; k < 8; k++) {
+                Thread.sleep(250);
+                out3.println("look");
+                for (int r = 0; r < 7; r++)
+                    assertEquals(mode, "- - - - - - -", in3.readLine());
+            }
+            assertNull("expected the idle client to be disconnected", in1.readLine());
+
+            // The spectator is still connected, and pushed the changes of the board
+            out3.println("flag 0 0");
+            for (int r = 0; r < 7; r++)
+                in3.readLine();
+            assertEquals(mode, "DELTA 0 1 1", in2.readLine());
+            assertEquals("0 0 F", in2.readLine());
+
+            out3.println("bye");
+            assertNull(in3.readLine());
+            idle.close();
+            spectator.close();
+            player.close();
+        }
+    }
 }
@@ -0,0 +1,93 @@
+/* Copyright (c) 2007-2016 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+package minesweeper.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import minesweeper.Board;
+
+/**
+ * Benchmark of MoveJournal: PLAYERS threads make MOVES moves each on a
+ * large board, each waiting for its move to be on disk as the server does,
+ * reporting the journal throughput and how many moves share a force; then
+ * the journal is replayed into a fresh board, reporting the replay speed.
+ *
+ * <br> Usage:
+ *      MoveJournalBenchmark [PLAYERS [MOVES]]
+ *
+ * <br> Not a JUnit test; run it with a plain "java" command.
+ */
+public class MoveJournalBenchmark {
+
+    private static final int DEFAULT_PLAYERS = 32;
+    private static final int DEFAULT_MOVES = 2000;
+    private static final int SIZE = 1000;
+    private static final int TILE_SIZE = 64;
+
+    // Make the board of the benchmark, the same each time.
+    private static Board newBoard() {
+        Random random = new Random(0);
+        boolean[] bombs = new boolean[SIZE * SIZE];
+        for (int i = 0; i < bombs.length; i++)
+            bombs[i] = random.nextInt(4) == 0;
+        return new Board(SIZE, SIZE, (r, c) -> bombs[r * SIZE + c], TILE_SIZE);
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int players = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PLAYERS;
+        int moves = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_MOVES;
+
+        File file = File.createTempFile("moves", ".log");
+        file.deleteOnExit();
+        if ( ! file.delete())
+            throw new IOException("cannot delete " + file);
+        Board board = newBoard();
+        MoveJournal journal = MoveJournal.open(file, board);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < players; t++) {
+            Random random = new Random(t + 1);
+            threads.add(new Thread(() -> {
+                for (int k = 0; k < moves; k++) {
+                    int r = random.nextInt(SIZE);
+                    int c = random.nextInt(SIZE);
+                    switch (random.nextInt(4)) {
+                        case 0: board.dig(r, c); break;
+                        case 1: board.deflag(r, c); break;
+                        default: board.flag(r, c); break;
+                    }
+                    try {
+                        journal.awaitDurable(board.getVersion());
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                }
+            }));
+        }
+        long start = System.nanoTime();
+        for (Thread thread : threads)
+            thread.start();
+        for (Thread thread : threads)
+            thread.join();
+        long elapsed = System.nanoTime() - start;
+        journal.close();
+        System.out.println(String.format("journal: %d players, %d moves, %.0f moves/s, %d commits,"
+                + " %.1f moves per commit, %.1f MB", players, journal.getRecords(),
+                journal.getRecords() * 1e9 / elapsed, journal.getCommits(),
+                journal.getRecords() / (double) Math.max(journal.getCommits(), 1),
+                file.length() / (double) (1 << 20)));
+
+        Board replayed = newBoard();
+        start = System.nanoTime();
+        MoveJournal reopened = MoveJournal.open(file, replayed);
+        elapsed = System.nanoTime() - start;
+        reopened.close();
+        System.out.println(String.format("replay: %d moves in %.1f ms, %.0f moves/s, %s", reopened.getReplayed(),
+                elapsed / 1e6, reopened.getReplayed() * 1e9 / elapsed,
+                replayed.toString().equals(board.toString()) ? "boards match" : "BOARDS DIFFER"));
+    }
+}
@@ -0,0 +1,268 @@
+/* Copyright (c) 2007-2016 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+package minesweeper.server;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import minesweeper.Board;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for MoveJournal.
+ */
+public class MoveJournalTest {
+
+    /*
+     * Testing strategies
+     *
+     * Partition the inputs as follows:
+     * file: missing, empty, with moves, with a torn record at its end, not a journal
+     * board: initial board of the journal, snapshot within the journal,
+     *        board of another size, another board of the same size,
+     *        board older than the journal
+     * moves: dig, flag, deflag, moves changing nothing, concurrent players
+     */
+
+    // Make a fresh board, the same each time.
+    private static Board newBoard() {
+        return new Board(6, 5, (r, c) -> (r * 5 + c) % 7 == 3, 2);
+    }
+
+    // Make a temporary journal file, which does not exist yet.
+    private static File newFile() throws IOException {
+        File file = File.createTempFile("moves", ".log");
+        assertTrue(file.delete());
+        file.deleteOnExit();
+        return file;
+    }
+
+    @Test(timeout = 10000)
+    public void testReplay() throws IOException, InterruptedException {
+        File file = newFile();
+        Board board = newBoard();
+        MoveJournal journal = MoveJournal.open(file, board);
+        assertEquals(0, journal.getReplayed());
+        board.flag(0, 0);
+        board.flag(0, 0); // changes nothing, not journaled
+        board.dig(5, 4);
+        board.deflag(0, 0);
+        board.dig(0, 3);  // a bomb
+        assertTrue(journal.awaitDurable(board.getVersion()));
+        assertTrue(journal.isDurable(board.getVersion()));
+        assertFalse(journal.isDurable(board.getVersion() + 1));
+        assertEquals(4, journal.getRecords());
+        assertTrue(journal.getCommits() >= 1);
+        journal.close();
+        assertEquals(MoveJournal.HEADER_SIZE + 4 * MoveJournal.RECORD_SIZE, file.length());
+
+        // A crashed server restarts on the initial board
+        Board replayed = newBoard();
+        MoveJournal reopened = MoveJournal.open(file, replayed);
+        assertEquals(4, reopened.getReplayed());
+        assertEquals(board.toString(), replayed.toString());
+        assertEquals(board.getVersion(), replayed.getVersion());
+        // and keeps journaling after the replayed moves
+        replayed.flag(2, 0);
+        reopened.close();
+        Board again = newBoard();
+        MoveJournal.open(file, again).close();
+        assertEquals(replayed.toString(), again.toString());
+        assertEquals(5, again.getVersion());
+    }
+
+    @Test(timeout = 10000)
+    public void testReplayAfterSnapshot() throws IOException, InterruptedException {
+        File file = newFile();
+        Board board = newBoard();
+        MoveJournal journal = MoveJournal.open(file, board);
+        board.dig(5, 4);
+        board.flag(0, 0);
+        ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+        board.save(snapshot, true);
+        board.flag(1, 1);
+        board.deflag(0, 0);
+        journal.close();
+
+        Board restored = Board.load(new ByteArrayInputStream(snapshot.toByteArray()));
+        MoveJournal reopened = MoveJournal.open(file, restored);
+        assertEquals(2, reopened.getReplayed());
+        assertEquals(board.toString(), restored.toString());
+        assertEquals(board.getVersion(), restored.getVersion());
+        reopened.close();
+    }
+
+    @Test(timeout = 10000)
+    public void testRotate() throws IOException, InterruptedException {
+        File file = newFile();
+        Board board = newBoard();
+        MoveJournal journal = MoveJournal.open(file, board);
+        board.dig(5, 4);
+        board.flag(0, 0);
+        ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+        CRC32 fingerprint = new CRC32();
+        long version = board.save(snapshot, true, fingerprint);
+        assertEquals(2, version);
+        board.flag(1, 1);
+        journal.rotate(version, (int) fingerprint.getValue());
+        while (journal.getRotations() == 0)
+            Thread.sleep(10);
+        board.deflag(0, 0);
+        journal.rotate(1, 0); // older than the file, ignored
+        journal.close();
+        assertEquals(1, journal.getRotations());
+        assertEquals(MoveJournal.HEADER_SIZE + 2 * MoveJournal.RECORD_SIZE, file.length());
+
+        // Replayed on the snapshot, whose fingerprint is checked
+        Board restored = Board.load(new ByteArrayInputStream(snapshot.toByteArray()));
+        MoveJournal reopened = MoveJournal.open(file, restored);
+        assertEquals(2, reopened.getReplayed());
+        assertEquals(board.toString(), restored.toString());
+        assertEquals(board.getVersion(), restored.getVersion());
+        reopened.close();
+
+        // The moves before the snapshot are gone: the initial board is too old
+        try {
+            MoveJournal.open(file, newBoard());
+            fail("expected IOException");
+        } catch (IOException ioe) {
+            // expected
+        }
+        Board other = new Board(6, 5, (r, c) -> false, 2);
+        other.flag(0, 0);
+        other.flag(5, 4);
+        try {
+            MoveJournal.open(file, other);
+            fail("expected IOException");
+        } catch (IOException ioe) {
+            // expected: another board at the version of the snapshot
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testTornRecord() throws IOException {
+        File file = newFile();
+        Board board = newBoard();
+        MoveJournal journal = MoveJournal.open(file, board);
+        board.flag(0, 0);
+        board.flag(0, 1);
+        journal.close();
+
+        // A crash in the middle of the second record
+        long length = MoveJournal.HEADER_SIZE + MoveJournal.RECORD_SIZE + 5;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(length);
+        }
+        Board replayed = newBoard();
+        MoveJournal reopened = MoveJournal.open(file, replayed);
+        assertEquals(1, reopened.getReplayed());
+        assertEquals("F - - - -", replayed.toString().split("\n")[0]);
+        reopened.close();
+        assertEquals(MoveJournal.HEADER_SIZE + MoveJournal.RECORD_SIZE, file.length());
+
+        // A record with a bad checksum ends the journal too
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(MoveJournal.HEADER_SIZE + 9);
+            raf.writeInt(4);
+        }
+        Board corrupted = newBoard();
+        MoveJournal.open(file, corrupted).close();
+        assertEquals(0, corrupted.getVersion());
+        assertEquals(newBoard().toString(), corrupted.toString());
+    }
+
+    @Test(timeout = 10000)
+    public void testMalformed() throws IOException {
+        File file = newFile();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.writeBytes("3 4\n0 0 0 1\n0 0 0 0\n0 0 0 0\n");
+        }
+        try {
+            MoveJournal.open(file, newBoard());
+            fail("expected IOException");
+        } catch (IOException ioe) {
+            // expected
+        }
+
+        // A journal of another board of the same size, whose moves would
+        // all change newBoard() too
+        File other = newFile();
+        Board board = new Board(6, 5, (r, c) -> Board.BOMB);
+        MoveJournal journal = MoveJournal.open(other, board);
+        board.flag(0, 0);
+        board.flag(1, 1);
+        journal.close();
+        assertMismatch(other, newBoard());
+
+        // A journal of a board of another size
+        assertMismatch(other, new Board(5, 6, (r, c) -> Board.BOMB));
+
+        // A journal started after the board, from a snapshot
+        File later = newFile();
+        Board snapshot = newBoard();
+        snapshot.flag(0, 0);
+        MoveJournal.open(later, snapshot).close();
+        assertMismatch(later, newBoard());
+    }
+
+    // Check that the journal file is not opened for board.
+    private static void assertMismatch(File file, Board board) {
+        try {
+            MoveJournal.open(file, board).close();
+            fail("expected IOException");
+        } catch (IOException ioe) {
+            // expected
+        }
+        assertEquals(0, board.getVersion());
+    }
+
+    @Test(timeout = 20000)
+    public void testConcurrentPlayers() throws IOException, InterruptedException {
+        File file = newFile();
+        Board board = new Board(40, 40, (r, c) -> (r * 7 + c * 13) % 5 == 0, 8);
+        MoveJournal journal = MoveJournal.open(file, board);
+        List<Thread> players = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            Random random = new Random(t);
+            players.add(new Thread(() -> {
+                for (int k = 0; k < 200; k++) {
+                    int r = random.nextInt(40);
+                    int c = random.nextInt(40);
+                    switch (random.nextInt(3)) {
+                        case 0: board.dig(r, c); break;
+                        case 1: board.flag(r, c); break;
+                        default: board.deflag(r, c); break;
+                    }
+                    try {
+                        assertTrue(journal.awaitDurable(board.getVersion()));
+                    } catch (InterruptedException ie) {
+                        throw new AssertionError(ie);
+                    }
+                }
+            }));
+        }
+        for (Thread player : players)
+            player.start();
+        for (Thread player : players)
+            player.join();
+        journal.close();
+        assertEquals(board.getVersion(), journal.getRecords());
+        assertTrue(journal.getCommits() <= journal.getRecords());
+
+        Board replayed = new Board(40, 40, (r, c) -> (r * 7 + c * 13) % 5 == 0);
+        MoveJournal.open(file, replayed).close();
+        assertEquals(board.toString(), replayed.toString());
+        assertEquals(board.getVersion(), replayed.getVersion());
+    }
+}
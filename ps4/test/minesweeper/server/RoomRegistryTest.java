@@ -0,0 +1,164 @@
+/* Copyright (c) 2007-2016 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+package minesweeper.server;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import minesweeper.Board;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for RoomRegistry and GameRoom.
+ */
+public class RoomRegistryTest {
+
+    /*
+     * Testing strategies
+     *
+     * Partition the inputs as follows:
+     * room joined: default, existing, new, the current room of the player
+     * rooms: below the limit, at the limit
+     * idle timeout: 0, longer than the test
+     * room evicted: default, empty, with players
+     * threads: 1, several joining and leaving at once
+     */
+
+    private static Board newBoard() {
+        return new Board(2, 2, (r, c) -> Board.NOTBOMB);
+    }
+
+    private static Session newSession(long id) {
+        return new Session(id, null, () -> { });
+    }
+
+    @Test
+    public void testJoinAndLeave() {
+        Board lobby = newBoard();
+        RoomRegistry rooms = new RoomRegistry(lobby, RoomRegistryTest::newBoard, 10, 60_000);
+        assertEquals(1, rooms.size());
+        Session alice = newSession(0);
+        Session bob = newSession(1);
+        assertSame(lobby, rooms.join(RoomRegistry.DEFAULT_ROOM, alice).get().getBoard());
+        rooms.join(RoomRegistry.DEFAULT_ROOM, bob);
+        assertEquals(2, rooms.getDefaultRoom().getPlayerCount());
+
+        GameRoom room = rooms.join("a", alice).get();
+        assertSame(room, alice.getRoom());
+        assertFalse(lobby == room.getBoard());
+        assertEquals(2, rooms.size());
+        assertEquals(1, rooms.getDefaultRoom().getPlayerCount());
+        assertSame(room, rooms.join("a", bob).get());
+        assertSame(room, rooms.join("a", bob).get());
+        assertEquals(2, room.getPlayerCount());
+        assertTrue(room.getPlayers().contains(alice));
+
+        rooms.leave(alice);
+        assertNull(alice.getRoom());
+        assertEquals(1, room.getPlayerCount());
+        rooms.leave(alice); // No effects
+        assertEquals(1, room.getPlayerCount());
+    }
+
+    @Test
+    public void testMaxRooms() {
+        RoomRegistry rooms = new RoomRegistry(newBoard(), RoomRegistryTest::newBoard, 1, 60_000);
+        Session alice = newSession(0);
+        Session bob = newSession(1);
+        rooms.join(RoomRegistry.DEFAULT_ROOM, alice);
+        assertTrue(rooms.join("a", alice).isPresent());
+        assertFalse(rooms.join("b", bob).isPresent());
+        assertNull(bob.getRoom());
+        // Existing rooms may still be joined
+        assertTrue(rooms.join("a", bob).isPresent());
+        assertEquals(2, rooms.size());
+    }
+
+    // This test covers the boards of new rooms, only made once a room is left for them
+    @Test
+    public void testNewBoards() {
+        int[] boardsMade = { 0 };
+        RoomRegistry rooms = new RoomRegistry(newBoard(), () -> {
+            boardsMade[0]++;
+            return newBoard();
+        }, 1, 60_000);
+        Session alice = newSession(0);
+        Session bob = newSession(1);
+        rooms.join("a", alice);
+        rooms.join("a", bob);
+        assertEquals(1, boardsMade[0]);
+        rooms.join("b", bob);
+        assertEquals(1, boardsMade[0]);
+        assertEquals(2, rooms.size());
+    }
+
+    @Test
+    public void testEvictIdle() {
+        RoomRegistry rooms = new RoomRegistry(newBoard(), RoomRegistryTest::newBoard, 10, 0);
+        Session alice = newSession(0);
+        GameRoom room = rooms.join("a", alice).get();
+        assertEquals(0, rooms.evictIdle());
+
+        rooms.join(RoomRegistry.DEFAULT_ROOM, alice);
+        assertEquals(1, rooms.evictIdle());
+        assertFalse(rooms.get("a").isPresent());
+        assertTrue(rooms.get(RoomRegistry.DEFAULT_ROOM).isPresent());
+        assertEquals(1, rooms.size());
+
+        // Joining again makes a new room
+        assertFalse(room == rooms.join("a", alice).get());
+    }
+
+    @Test
+    public void testNoEvictionBeforeTimeout() {
+        RoomRegistry rooms = new RoomRegistry(newBoard(), RoomRegistryTest::newBoard, 10, 60_000);
+        Session alice = newSession(0);
+        rooms.join("a", alice);
+        rooms.leave(alice);
+        assertEquals(0, rooms.evictIdle());
+        assertTrue(rooms.get("a").isPresent());
+    }
+
+    // This test covers players joining and leaving rooms while idle rooms are evicted
+    @Test
+    public void testConcurrentJoins() throws Exception {
+        RoomRegistry rooms = new RoomRegistry(newBoard(), RoomRegistryTest::newBoard, 1000, 0);
+        int threads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Void>> results = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                Session session = newSession(t);
+                results.add(executor.submit(() -> {
+                    for (int k = 0; k < 2000; k++) {
+                        GameRoom room = rooms.join("room" + (k % 5), session).get();
+                        // The room joined is still registered, with the player in it
+                        assertSame(room, rooms.get(room.getName()).get());
+                        assertTrue(room.getPlayers().contains(session));
+                        if (k % 3 == 0)
+                            rooms.leave(session);
+                    }
+                    rooms.leave(session);
+                    return null;
+                }));
+            }
+            for (Future<Void> result : results)
+                result.get(60, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+        for (GameRoom room : rooms.rooms())
+            assertEquals(0, room.getPlayerCount());
+        rooms.evictIdle();
+        assertEquals(1, rooms.size());
+        assertEquals(1, rooms.rooms().size());
+    }
+}
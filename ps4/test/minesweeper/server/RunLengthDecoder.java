@@ -0,0 +1,51 @@
+/* Copyright (c) 2007-2016 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+package minesweeper.server;
+
+/**
+ * Decoder of the boards run-length encoded by RunLengthEncoder, as a client
+ * which sent 'rle' decodes the replies of the server.
+ */
+public class RunLengthDecoder {
+
+    private RunLengthDecoder() {
+        throw new AssertionError("Not instantiable");
+    }
+
+    /**
+     * Decode a run-length encoded board.
+     *
+     * @param encoded rows encoded as specified by RunLengthEncoder, separated by "\n"
+     * @return the board as displayed by 'look'
+     * @throws IllegalArgumentException if encoded is not a valid encoding
+     */
+    public static String decode(String encoded) {
+        StringBuilder board = new StringBuilder();
+        String[] rows = encoded.split("\n", -1);
+        for (int r = 0; r < rows.length; r++) {
+            if (r > 0)
+                board.append('\n');
+            if (rows[r].isEmpty())
+                continue;
+            boolean first = true;
+            for (String run : rows[r].split(",", -1)) {
+                if (run.isEmpty())
+                    throw new IllegalArgumentException("empty run in row " + r + ": " + rows[r]);
+                int length = 1;
+                if (run.length() > 1) {
+                    if ( ! run.substring(1).matches("[2-9][0-9]*|1[0-9]+"))
+                        throw new IllegalArgumentException("bad run length in row " + r + ": " + run);
+                    length = Integer.parseInt(run.substring(1));
+                }
+                for (int k = 0; k < length; k++) {
+                    if ( ! first)
+                        board.append(' ');
+                    board.append(run.charAt(0));
+                    first = false;
+                }
+            }
+        }
+        return board.toString();
+    }
+}
@@ -0,0 +1,92 @@
+/* Copyright (c) 2007-2016 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+package minesweeper.server;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import minesweeper.Board;
+import minesweeper.RandomBombGenerator;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for RunLengthEncoder, decoded by RunLengthDecoder.
+ */
+public class RunLengthEncoderTest {
+
+    /*
+     * Testing strategies
+     *
+     * Partition the inputs as follows:
+     * board: empty, 1 square, 1 row, 1 column, several rows; untouched, mid-game, all dug
+     * runs: of length 1, 2-9, >= 10; of states '-', 'F', ' ', digits
+     * decoding: valid, empty run, bad run length
+     */
+
+    // Assert that board is encoded as expected, and decoded back.
+    private static void assertRoundTrip(String expected, String board) {
+        String encoded = RunLengthEncoder.encode(board);
+        assertEquals(expected, encoded);
+        assertEquals(board, RunLengthDecoder.decode(encoded));
+    }
+
+    @Test
+    public void testRuns() {
+        assertRoundTrip("", "");
+        assertRoundTrip("-", "-");
+        assertRoundTrip("-3,12, 3", "- - - 1 1      ");
+        assertRoundTrip("F,-,F", "F - F");
+        assertRoundTrip(" 10,1", String.join(" ", "          1".split("")));
+        assertRoundTrip("111,2\n-2\n 2", String.join(" ", "111111111112".split("")) + "\n- -\n   ");
+        assertRoundTrip("-\nF\n3", "-\nF\n3");
+    }
+
+    @Test
+    public void testBoards() {
+        Random random = new Random(22);
+        for (int k = 0; k < 20; k++) {
+            int rows = 1 + random.nextInt(40);
+            int cols = 1 + random.nextInt(40);
+            Board board = new Board(rows, cols, new RandomBombGenerator(k, random.nextDouble() * .3));
+            for (int m = 0; m < rows * cols / 10; m++) {
+                if (random.nextBoolean())
+                    board.dig(random.nextInt(rows), random.nextInt(cols));
+                else
+                    board.flag(random.nextInt(rows), random.nextInt(cols));
+            }
+            String encoded = RunLengthEncoder.encode(board.toString());
+            assertEquals(rows, encoded.split("\n", -1).length);
+            assertEquals(board.toString(), RunLengthDecoder.decode(encoded));
+        }
+    }
+
+    // This test covers the compression of a large mid-game board, with the
+    // density of the random boards of the server
+    @Test
+    public void testCompression() {
+        Board board = new Board(300, 300, new RandomBombGenerator(7, .25));
+        Random random = new Random(7);
+        for (int m = 0; m < 100; m++)
+            board.dig(random.nextInt(300), random.nextInt(300));
+        String plain = board.toString();
+        String encoded = RunLengthEncoder.encode(plain);
+        assertEquals(plain, RunLengthDecoder.decode(encoded));
+        assertTrue("compressed " + plain.length() + " to " + encoded.length(),
+                encoded.length() * 10 < plain.length());
+    }
+
+    @Test
+    public void testDecodeMalformed() {
+        for (String encoded : new String[] { ",", "-,", "-1", "-0", "-01", "-2,,F" }) {
+            try {
+                RunLengthDecoder.decode(encoded);
+                fail("expected IllegalArgumentException for '" + encoded + "'");
+            } catch (IllegalArgumentException iae) {
+                // expected
+            }
+        }
+    }
+}